@@ -0,0 +1,62 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the implementations under test by a short name, the value of the {@code engine} parameter.
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+class BenchmarkLimits {
+
+    /**
+     * Ticks so rarely that no refill happens while measuring, the benchmarks that want one call it themselves.
+     */
+    static final RefillScheduler IDLE_SCHEDULER = new HashedWheelRefillScheduler(1, TimeUnit.HOURS, 8);
+
+    private BenchmarkLimits() {
+    }
+
+    /**
+     * The single ones have {@code limit} per hour. The multi ones have 3 time limits: {@code limit} per hour,
+     * per day and per week.
+     */
+    @NotNull
+    static ExtendedLimitPerTime create(@NotNull String engine, long limit) {
+        LimitPerTimeSpec hour = new LimitPerTimeSpec(limit, 1, TimeUnit.HOURS);
+        switch (engine) {
+            case "simple":
+                return new SimpleLimitPerTime(hour, IDLE_SCHEDULER);
+            case "concurrent":
+                return new ConcurrentLimitPerTime(hour, IDLE_SCHEDULER);
+            case "lazy":
+                return new LazyLimitPerTime(hour);
+            case "countmin":
+                return new CountMinLimitPerTime(hour, 1 << 16, 4, IDLE_SCHEDULER);
+            case "sliding":
+                return new SlidingWindowLimitPerTime(new LimitPerTimeSpec(limit, 1, TimeUnit.HOURS, LimitPerTimeSpec.Algorithm.SLIDING_WINDOW));
+            case "gcra":
+                return new GcraLimitPerTime(new LimitPerTimeSpec(limit, 1, TimeUnit.HOURS, LimitPerTimeSpec.Algorithm.GCRA));
+            case "multi":
+                return MultiLimitPerTime.create().scheduler(IDLE_SCHEDULER)
+                        .add(limit, 1, TimeUnit.HOURS)
+                        .add(limit, 1, TimeUnit.DAYS)
+                        .add(limit, 7, TimeUnit.DAYS)
+                        .build();
+            case "fused":
+                return new FusedMultiLimitPerTime(Arrays.asList(
+                        hour,
+                        new LimitPerTimeSpec(limit, 1, TimeUnit.DAYS),
+                        new LimitPerTimeSpec(limit, 7, TimeUnit.DAYS)
+                ), IDLE_SCHEDULER);
+            case "null":
+                return NullLimitPerTime.getInstance();
+            default:
+                throw new IllegalArgumentException("Unknown engine: "+engine+"!");
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+package crema.limitpertime;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link ExtendedLimitPerTime#consume}, {@link ExtendedLimitPerTime#canConsume} and {@link ExtendedLimitPerTime#consumeOrSpec}.
+ *
+ * <p>The thread count is a JMH option, for example {@code -t 1}, {@code -t 8}, {@code -t 64}.</p>
+ *
+ * <p>Parameters:
+ * <ul>
+ *   <li>engine: see {@link BenchmarkLimits#create}</li>
+ *   <li>keys: the number of distinct keys, the threads pick them in a scattered order</li>
+ *   <li>keyType: {@code string} or {@code long}, the latter calls the primitive methods where there are any</li>
+ *   <li>outcome: {@code accept} has a limit that is not reached while measuring,
+ *       {@code reject} has all keys exhausted before measuring</li>
+ * </ul></p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsumeBenchmark {
+
+    @Param({"simple", "concurrent", "lazy", "countmin", "sliding", "gcra", "multi", "fused", "null"})
+    public String engine;
+
+    @Param({"1", "1000", "1000000"})
+    public int keys;
+
+    @Param({"string", "long"})
+    public String keyType;
+
+    @Param({"accept", "reject"})
+    public String outcome;
+
+    private ExtendedLimitPerTime limit;
+    private boolean longKeys;
+    private String[] stringKeyValues;
+    private long[] longKeyValues;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        longKeys = "long".equals(keyType);
+        stringKeyValues = new String[keys];
+        longKeyValues = new long[keys];
+        for (int i=0; i<keys; i++) {
+            stringKeyValues[i] = "user-"+i;
+            longKeyValues[i] = 1000000000L + i;
+        }
+        boolean accept = "accept".equals(outcome);
+        limit = BenchmarkLimits.create(engine, accept ? Integer.MAX_VALUE : 1);
+        if (!accept) {
+            for (int i=0; i<keys; i++) {
+                if (longKeys) {
+                    limit.consume(longKeyValues[i]);
+                } else {
+                    limit.consume(stringKeyValues[i]);
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        limit.destroy();
+    }
+
+    /**
+     * Per thread, walks the keys in a scattered order so that the threads don't run in lockstep.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next = (int) System.nanoTime();
+
+        int next(int n) {
+            next += 0x9e3779b9;
+            return (next & 0x7fffffff) % n;
+        }
+    }
+
+    @Benchmark
+    public boolean consume(Cursor cursor) {
+        int i = cursor.next(keys);
+        return longKeys ? limit.consume(longKeyValues[i]) : limit.consume(stringKeyValues[i]);
+    }
+
+    @Benchmark
+    public boolean canConsume(Cursor cursor) {
+        int i = cursor.next(keys);
+        return longKeys ? limit.canConsume(longKeyValues[i]) : limit.canConsume(stringKeyValues[i]);
+    }
+
+    /**
+     * There is no primitive variant, a long key is boxed.
+     */
+    @Benchmark
+    public LimitPerTimeSpec consumeOrSpec(Cursor cursor) {
+        int i = cursor.next(keys);
+        return longKeys ? limit.consumeOrSpec(longKeyValues[i]) : limit.consumeOrSpec(stringKeyValues[i]);
+    }
+
+}
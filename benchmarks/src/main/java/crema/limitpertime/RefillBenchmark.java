@@ -0,0 +1,91 @@
+package crema.limitpertime;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pause of one rollover: how long {@link Refillable#refill()} takes on a limit that counts {@code keys} keys.
+ *
+ * <p>That's the time the refill holds the lock of the limit (simple, lockable), or the time the scheduler
+ * thread is busy with it (concurrent swaps the map, fused expunges the keys whose windows are over).
+ * One refill per iteration, on a freshly filled limit.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class RefillBenchmark {
+
+    @Param({"simple", "lockable", "concurrent", "fused"})
+    public String engine;
+
+    @Param({"1000", "1000000"})
+    public int keys;
+
+    private String[] keyValues;
+    private LimitPerTime limit;
+    private Refillable refillable;
+
+    @Setup(Level.Trial)
+    public void createKeys() {
+        keyValues = new String[keys];
+        for (int i=0; i<keys; i++) {
+            keyValues[i] = "user-"+i;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void fill() throws InterruptedException {
+        LimitPerTimeSpec spec = new LimitPerTimeSpec(10, 10, TimeUnit.MILLISECONDS);
+        switch (engine) {
+            case "simple":
+                limit = new SimpleLimitPerTime(spec, BenchmarkLimits.IDLE_SCHEDULER);
+                break;
+            case "lockable":
+                limit = new LockableLimitPerTime(spec, BenchmarkLimits.IDLE_SCHEDULER);
+                break;
+            case "concurrent":
+                limit = new ConcurrentLimitPerTime(spec, BenchmarkLimits.IDLE_SCHEDULER);
+                break;
+            case "fused":
+                limit = new FusedMultiLimitPerTime(Arrays.asList(spec, new LimitPerTimeSpec(20, 20, TimeUnit.MILLISECONDS)), BenchmarkLimits.IDLE_SCHEDULER);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown engine: "+engine+"!");
+        }
+        refillable = (Refillable) limit;
+        for (String key : keyValues) {
+            limit.consume(key);
+        }
+        Thread.sleep(50); //all windows are over, the fused one has all keys to expunge.
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        limit.destroy();
+    }
+
+    @Benchmark
+    public void refill() {
+        refillable.refill();
+    }
+
+}
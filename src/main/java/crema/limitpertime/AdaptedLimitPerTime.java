@@ -0,0 +1,93 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Makes an {@link ExtendedLimitPerTime} of a plain {@link LimitPerTime}, for example one implemented outside of
+ * this library.
+ *
+ * <p>Long keys are boxed, batches consume key by key. Permits can't be more than 1: the plain limit can't take
+ * several at once, all or nothing.</p>
+ *
+ * @see LimitsPerTime#extended(LimitPerTime)
+ * @author Alexei Arshavin, Optimaize
+ */
+class AdaptedLimitPerTime implements ExtendedLimitPerTime {
+
+    @NotNull
+    private final LimitPerTime delegate;
+
+    AdaptedLimitPerTime(@NotNull LimitPerTime delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key) {
+        return delegate.consume(key);
+    }
+
+    @Override
+    public boolean consume(long key) {
+        return delegate.consume(Long.valueOf(key));
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key, long permits) {
+        checkSinglePermit(permits);
+        return delegate.consume(key);
+    }
+
+    @Override @Nullable
+    public LimitPerTimeSpec consumeOrSpec(@NotNull Object key) {
+        return delegate.consumeOrSpec(key);
+    }
+
+    @NotNull @Override
+    public BitSet consumeAll(@NotNull Collection<?> keys) {
+        return Util.consumeEach(this, keys);
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key) {
+        return delegate.canConsume(key);
+    }
+
+    @Override
+    public boolean canConsume(long key) {
+        return delegate.canConsume(Long.valueOf(key));
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key, long permits) {
+        checkSinglePermit(permits);
+        return delegate.canConsume(key);
+    }
+
+    @Override @Nullable
+    public LimitPerTimeSpec canConsumeOrSpec(@NotNull Object key) {
+        return delegate.canConsumeOrSpec(key);
+    }
+
+    @Override
+    public void destroy() {
+        delegate.destroy();
+    }
+
+    @NotNull @Override
+    public List<LimitPerTimeSpec> getSpec() {
+        return delegate.getSpec();
+    }
+
+    private void checkSinglePermit(long permits) {
+        Util.checkPermits(permits);
+        if (permits > 1) {
+            throw new UnsupportedOperationException("Permits need an ExtendedLimitPerTime, "+delegate.getClass().getSimpleName()+" takes 1 but was: "+permits+"!");
+        }
+    }
+
+}
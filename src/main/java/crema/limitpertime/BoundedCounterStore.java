@@ -0,0 +1,160 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link CounterStore} on the heap that never holds more than a fixed number of keys.
+ *
+ * <p>Without a bound, a client that sends a new key with every request grows the map of a limit until the memory
+ * runs out. What happens to a new key once the store is full is up to the {@link CounterStores.Overflow}:
+ * <ul>
+ *   <li>{@link CounterStores.Overflow#FAIL_OPEN FAIL_OPEN}: an idle key is evicted to make room. Should that key
+ *       come back within the same time interval it starts over with the full limit.</li>
+ *   <li>{@link CounterStores.Overflow#FAIL_CLOSED FAIL_CLOSED}: nothing is evicted, all keys that don't fit share
+ *       one overflow counter until the end of the time interval. Together they get the limit of one key.</li>
+ * </ul></p>
+ *
+ * <p>Implementation detail:
+ * The keys and values are in arrays of the maximal size, plus a map from the key to its slot.
+ * Eviction uses the CLOCK algorithm: each access marks the slot as referenced, the clock hand skips the referenced
+ * slots (and unmarks them) and evicts the first one that was not accessed since the hand passed last.
+ * Long keys are boxed, the map holds objects anyway.
+ * </p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+class BoundedCounterStore implements CounterStore {
+
+    private final CounterStores.Overflow overflow;
+    private final Object[] keys;
+    private final long[] values;
+    private final boolean[] referenced;
+    private final Map<Object,Integer> slots;
+    private int size = 0;
+    private int hand = 0;
+    private boolean hasOverflowValue = false;
+    private long overflowValue;
+    private long evictions = 0;
+    private long intervalStart = System.currentTimeMillis();
+
+    BoundedCounterStore(int maxKeys, @NotNull CounterStores.Overflow overflow) {
+        if (maxKeys < 1) {
+            throw new IllegalArgumentException("Max keys must be >=1 but was: "+maxKeys+"!");
+        }
+        this.overflow = overflow;
+        this.keys = new Object[maxKeys];
+        this.values = new long[maxKeys];
+        this.referenced = new boolean[maxKeys];
+        this.slots = new HashMap<>();
+    }
+
+    @Override
+    public long get(@NotNull Object key, long absent) {
+        Integer slot = slots.get(key);
+        if (slot != null) {
+            referenced[slot] = true;
+            return values[slot];
+        }
+        if (isOverflowing()) {
+            return hasOverflowValue ? overflowValue : absent;
+        }
+        return absent;
+    }
+
+    @Override
+    public void put(@NotNull Object key, long value) {
+        Integer slot = slots.get(key);
+        if (slot != null) {
+            referenced[slot] = true;
+            values[slot] = value;
+            return;
+        }
+        if (isOverflowing()) {
+            hasOverflowValue = true;
+            overflowValue = value;
+            return;
+        }
+        int free;
+        if (size < keys.length) {
+            free = size++;
+        } else {
+            free = evict();
+        }
+        keys[free] = key;
+        values[free] = value;
+        referenced[free] = true;
+        slots.put(key, free);
+    }
+
+    @Override
+    public long get(long key, long absent) {
+        return get(Long.valueOf(key), absent);
+    }
+
+    @Override
+    public void put(long key, long value) {
+        put(Long.valueOf(key), value);
+    }
+
+    /**
+     * @return the number of keys with a slot, the shared overflow counter is not counted.
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        slots.clear();
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(referenced, false);
+        size = 0;
+        hand = 0;
+        hasOverflowValue = false;
+        intervalStart = System.currentTimeMillis();
+    }
+
+    @Override
+    public long getIntervalStartMillis() {
+        return intervalStart;
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+
+    /**
+     * @return the number of keys evicted since the store was created.
+     */
+    long getEvictionCount() {
+        return evictions;
+    }
+
+
+    private boolean isOverflowing() {
+        return size == keys.length && overflow == CounterStores.Overflow.FAIL_CLOSED;
+    }
+
+    /**
+     * Frees the slot of the next key that was not accessed since the last round of the clock hand.
+     * Terminates within 2 rounds: the first one unmarks all slots.
+     */
+    private int evict() {
+        while (referenced[hand]) {
+            referenced[hand] = false;
+            hand = (hand + 1) % keys.length;
+        }
+        int victim = hand;
+        hand = (hand + 1) % keys.length;
+        slots.remove(keys[victim]);
+        evictions++;
+        return victim;
+    }
+
+}
@@ -0,0 +1,249 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Impl with just one limit that works without a global lock.
+ *
+ * <p>Implementation detail:
+ * The counters live in a {@link ConcurrentHashMap}, one {@link AtomicLong} per key, that is decremented
+ * with compare-and-set. Consumptions on different keys never contend, and consumptions on the same key
+ * are atomic.
+ * The refill swaps in a fresh map instead of clearing the old one, therefore consumers never wait for it.
+ * A consumption that races with the swap is counted in the window that just ended, which is the same
+ * as if it had happened a moment earlier.
+ * Long keys, also the boxed ones, are counted without boxing in a {@link StripedLongLongMap}.
+ * </p>
+ *
+ * <p>It is the default fixed window in a {@link MultiLimitPerTime}, which serializes the calls per key.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+class ConcurrentLimitPerTime implements LockableLimit, Refillable, KeyCounted, Waitable {
+
+    private static final long ABSENT = -1;
+
+    @NotNull
+    private final LimitPerTimeSpec spec;
+    private volatile ConcurrentMap<Object,AtomicLong> counters;
+    private volatile StripedLongLongMap longCounters;
+    private final RefillScheduler.Registration refillRegistration;
+    /**
+     * When the next refill is due, in {@link System#nanoTime()} terms. Only written by the scheduler.
+     */
+    private volatile long refillDueNanos;
+
+    protected ConcurrentLimitPerTime(long limit, long timeAmount, @NotNull TimeUnit timeUnit) {
+        this(new LimitPerTimeSpec(limit, timeAmount, timeUnit));
+    }
+
+    protected ConcurrentLimitPerTime(@NotNull LimitPerTimeSpec spec) {
+        this(spec, HashedWheelRefillScheduler.getDefault());
+    }
+
+    protected ConcurrentLimitPerTime(@NotNull LimitPerTimeSpec spec, @NotNull RefillScheduler scheduler) {
+        this.spec = spec;
+        this.counters = new ConcurrentHashMap<>();
+        this.longCounters = new StripedLongLongMap();
+        this.refillDueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(spec.getTimeAmountInMillis());
+        this.refillRegistration = WeakRefillTask.schedule(scheduler, this, spec.getTimeAmountInMillis());
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key) {
+        return consume(key, 1);
+    }
+
+    @Override
+    public boolean consume(long key) {
+        return consumeLong(key, 1);
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        if (key instanceof Long) {
+            return consumeLong((Long) key, permits);
+        }
+        if (permits > spec.getLimit()) {
+            return false;
+        }
+        ConcurrentMap<Object,AtomicLong> map = counters;
+        AtomicLong counter = map.get(key);
+        if (counter==null) {
+            counter = map.putIfAbsent(key, new AtomicLong(spec.getLimit() - permits));
+            if (counter==null) {
+                return true;
+            }
+        }
+        while (true) {
+            long current = counter.get();
+            if (current < permits) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current - permits)) {
+                return true;
+            }
+        }
+    }
+
+    @Override @Nullable
+    public LimitPerTimeSpec consumeOrSpec(@NotNull Object key) {
+        if (consume(key)) {
+            return null;
+        } else {
+            return spec;
+        }
+    }
+
+    @NotNull @Override
+    public BitSet consumeAll(@NotNull Collection<?> keys) {
+        return Util.consumeEach(this, keys);
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key) {
+        return canConsume(key, 1);
+    }
+
+    @Override
+    public boolean canConsume(long key) {
+        return canConsumeLong(key, 1);
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        if (key instanceof Long) {
+            return canConsumeLong((Long) key, permits);
+        }
+        AtomicLong counter = counters.get(key);
+        if (counter==null) {
+            return permits <= spec.getLimit();
+        } else {
+            return counter.get() >= permits;
+        }
+    }
+
+    @Override @Nullable
+    public LimitPerTimeSpec canConsumeOrSpec(@NotNull Object key) {
+        if (canConsume(key)) {
+            return null;
+        } else {
+            return spec;
+        }
+    }
+
+    /**
+     * There is nothing to lock: the state only changes by consumptions, and those are atomic per key.
+     * {@link MultiLimitPerTime} already serializes its calls per key.
+     */
+    @Override
+    public void lock() {
+    }
+
+    @Override
+    public void unlock() {
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec lockedCanConsumeOrSpec(@NotNull Object key) {
+        return canConsumeOrSpec(key);
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec lockedCanConsumeOrSpec(long key) {
+        return canConsume(key) ? null : spec;
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec lockedCanConsumeOrSpec(@NotNull Object key, long permits) {
+        return canConsume(key, permits) ? null : spec;
+    }
+
+    @Override
+    public void doConsume(@NotNull Object key) {
+        if (!consume(key)) {
+            throw new IllegalStateException("Cannot consume, check with canConsume() first!");
+        }
+    }
+
+    @Override
+    public void doConsume(long key) {
+        if (!consume(key)) {
+            throw new IllegalStateException("Cannot consume, check with canConsume() first!");
+        }
+    }
+
+    @Override
+    public void doConsume(@NotNull Object key, long permits) {
+        if (!consume(key, permits)) {
+            throw new IllegalStateException("Cannot consume, check with canConsume() first!");
+        }
+    }
+
+    @Override
+    public void destroy() {
+        refillRegistration.cancel();
+        counters.clear();
+        longCounters.clear();
+    }
+
+    /**
+     * The time until the next refill, if the key can't consume now.
+     */
+    @Override
+    public long millisUntil(@NotNull Object key, long permits) {
+        return canConsume(key, permits) ? 0 : Util.millisUntil(refillDueNanos);
+    }
+
+    @Override
+    public int getKeyCount() {
+        return counters.size() + longCounters.size();
+    }
+
+    @NotNull @Override
+    public List<LimitPerTimeSpec> getSpec() {
+        return Collections.singletonList(spec);
+    }
+
+    private boolean consumeLong(long key, long permits) {
+        LongLongHashMap stripe = longCounters.stripe(key);
+        synchronized (stripe) {
+            long counter = stripe.get(key, ABSENT);
+            long remaining = counter==ABSENT ? spec.getLimit() : counter;
+            if (remaining >= permits) {
+                stripe.put(key, remaining - permits);
+                return true;
+            } else {
+                return false;
+            }
+        }
+    }
+
+    private boolean canConsumeLong(long key, long permits) {
+        LongLongHashMap stripe = longCounters.stripe(key);
+        synchronized (stripe) {
+            long counter = stripe.get(key, ABSENT);
+            return (counter==ABSENT ? spec.getLimit() : counter) >= permits;
+        }
+    }
+
+    @Override
+    public void refill() {
+        refillDueNanos += TimeUnit.MILLISECONDS.toNanos(spec.getTimeAmountInMillis());
+        counters = new ConcurrentHashMap<>();
+        longCounters = new StripedLongLongMap();
+    }
+
+}
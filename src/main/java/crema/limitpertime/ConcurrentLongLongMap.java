@@ -0,0 +1,283 @@
+package crema.limitpertime;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent map from primitive long to primitive long, where reading and replacing a value is lock-free.
+ *
+ * <p>Like the {@link LongLongHashMap} it uses open addressing with linear probing, keys and values interleaved
+ * in one {@link AtomicLongArray}, no entry objects and no boxing. {@link #get} and {@link #replace} are a probe
+ * and a compare-and-set on the value. Only adding a key, growing and removing take the monitor of a stripe.
+ * Growing and removing rebuild the table of the stripe and publish the new one, within a table a key never
+ * moves.</p>
+ *
+ * <p>A rebuild marks each value of the old table as {@link #NONE} before it copies it. A reader that sees such a
+ * value waits for the rebuild to finish, and then reads the new table. Therefore no update made meanwhile to the
+ * old table gets lost. The value {@link #NONE} itself cannot be stored.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+final class ConcurrentLongLongMap {
+
+    /**
+     * Marks a value that was moved to a new table or removed, and the absent key 0.
+     */
+    static final long NONE = Long.MIN_VALUE;
+    private static final int STRIPES = 64;
+    private static final int MIN_CAPACITY = 16;
+
+    private final Stripe[] stripes;
+    /**
+     * Key 0 marks a free slot, the real key 0 is kept aside.
+     */
+    private final AtomicLong zeroValue = new AtomicLong(NONE);
+
+    ConcurrentLongLongMap() {
+        stripes = new Stripe[STRIPES];
+        for (int i=0; i<STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * @return the value, or {@code absent} if the key is not in the map.
+     */
+    long get(long key, long absent) {
+        if (key == 0) {
+            long value = zeroValue.get();
+            return (value == NONE) ? absent : value;
+        }
+        Stripe stripe = stripe(key);
+        while (true) {
+            AtomicLongArray table = stripe.table;
+            int slot = find(table, key);
+            if (slot < 0) {
+                return absent;
+            }
+            long value = table.get(slot + 1);
+            if (value != NONE) {
+                return value;
+            }
+            stripe.awaitRebuild();
+        }
+    }
+
+    /**
+     * Lock-free.
+     * @return true if the key had the value {@code expect}, and has {@code update} now.
+     */
+    boolean replace(long key, long expect, long update) {
+        checkValue(update);
+        if (key == 0) {
+            return expect != NONE && zeroValue.compareAndSet(expect, update);
+        }
+        Stripe stripe = stripe(key);
+        while (true) {
+            AtomicLongArray table = stripe.table;
+            int slot = find(table, key);
+            if (slot < 0) {
+                return false;
+            }
+            if (table.compareAndSet(slot + 1, expect, update)) {
+                return true;
+            }
+            if (table.get(slot + 1) != NONE) {
+                return false;
+            }
+            stripe.awaitRebuild();
+        }
+    }
+
+    /**
+     * Takes the monitor of the key's stripe.
+     * @return true if the key was not in the map, and has the value now.
+     */
+    boolean putIfAbsent(long key, long value) {
+        checkValue(value);
+        if (key == 0) {
+            return zeroValue.compareAndSet(NONE, value);
+        }
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            if (find(stripe.table, key) >= 0) {
+                return false;
+            }
+            if ((stripe.size + 1) * 2 > stripe.table.length() / 2) {
+                stripe.rebuild(stripe.table.length(), NONE);
+            }
+            insertNew(stripe.table, key, value);
+            stripe.size++;
+            return true;
+        }
+    }
+
+    /**
+     * Removes all entries whose value is smaller than the {@code threshold}, one stripe at a time. A stripe is
+     * only rebuilt if it has such entries, its readers wait meanwhile, the ones of other stripes don't.
+     * @return the number of removed entries.
+     */
+    int removeValuesBelow(long threshold) {
+        int removed = 0;
+        long value = zeroValue.get();
+        if (value != NONE && value < threshold && zeroValue.compareAndSet(value, NONE)) {
+            removed++;
+        }
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                if (stripe.hasValueBelow(threshold)) {
+                    int before = stripe.size;
+                    stripe.rebuild(stripe.table.length() / 2, threshold);
+                    removed += before - stripe.size;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes all entries, one stripe at a time.
+     */
+    void clear() {
+        zeroValue.set(NONE);
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * Sums the sizes of the stripes, one at a time. Not a snapshot under concurrent updates.
+     */
+    int size() {
+        int size = (zeroValue.get() == NONE) ? 0 : 1;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+
+    /**
+     * Uses the high bits of the hash, the table inside uses the low ones.
+     */
+    private Stripe stripe(long key) {
+        return stripes[(int) (LongLongHashMap.mix(key) >>> (64 - Integer.numberOfTrailingZeros(STRIPES)))];
+    }
+
+    /**
+     * @return the index of the key in the table, or -1.
+     */
+    private static int find(AtomicLongArray table, long key) {
+        int mask = table.length() / 2 - 1;
+        int slot = (int) LongLongHashMap.mix(key) & mask;
+        while (true) {
+            long k = table.get(slot << 1);
+            if (k == key) {
+                return slot << 1;
+            }
+            if (k == 0) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * For a key that is known not to be in the table yet, under the monitor of the stripe. The value is written
+     * first: a reader that finds the key sees its value.
+     */
+    private static void insertNew(AtomicLongArray table, long key, long value) {
+        int mask = table.length() / 2 - 1;
+        int slot = (int) LongLongHashMap.mix(key) & mask;
+        while (table.get(slot << 1) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table.set((slot << 1) + 1, value);
+        table.set(slot << 1, key);
+    }
+
+    private static void checkValue(long value) {
+        if (value == NONE) {
+            throw new IllegalArgumentException("Value not permitted: "+value+"!");
+        }
+    }
+
+
+    private static final class Stripe {
+
+        /**
+         * Replaced, never modified other than by insertNew and the compare-and-set of a value.
+         */
+        volatile AtomicLongArray table = new AtomicLongArray(MIN_CAPACITY * 2);
+        /**
+         * Guarded by the monitor.
+         */
+        int size;
+
+        /**
+         * Waits for the rebuild that marked a value, it holds the monitor until the new table is published.
+         */
+        void awaitRebuild() {
+            synchronized (this) {
+                //nothing, the new table is visible now.
+            }
+        }
+
+        /**
+         * Must hold the monitor.
+         */
+        boolean hasValueBelow(long threshold) {
+            AtomicLongArray table = this.table;
+            for (int i=0; i<table.length(); i+=2) {
+                if (table.get(i) != 0 && table.get(i + 1) < threshold) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Must hold the monitor. Keeps the capacity.
+         */
+        void clear() {
+            AtomicLongArray old = table;
+            for (int i=1; i<old.length(); i+=2) {
+                old.set(i, NONE);
+            }
+            size = 0;
+            table = new AtomicLongArray(old.length());
+        }
+
+        /**
+         * Must hold the monitor. Moves the entries with a value of at least {@code threshold} to a new table that
+         * holds at least twice their number, and publishes it.
+         * @param minCapacity in slots.
+         */
+        void rebuild(int minCapacity, long threshold) {
+            AtomicLongArray old = table;
+            int capacity = Math.max(MIN_CAPACITY, minCapacity);
+            while (capacity < (size + 1) * 2) {
+                capacity <<= 1;
+            }
+            AtomicLongArray fresh = new AtomicLongArray(capacity * 2);
+            int kept = 0;
+            for (int i=0; i<old.length(); i+=2) {
+                long key = old.get(i);
+                if (key != 0) {
+                    long value = old.getAndSet(i + 1, NONE);
+                    if (value != NONE && value >= threshold) {
+                        insertNew(fresh, key, value);
+                        kept++;
+                    }
+                }
+            }
+            size = kept;
+            table = fresh;
+        }
+    }
+
+}
@@ -0,0 +1,231 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Impl with just one limit that counts approximately, in a fixed amount of memory.
+ *
+ * <p>For key spaces that are unbounded, for example anonymous IP addresses, where an exact map per time window
+ * grows with every key an attacker makes up. The memory here is {@code 2 * width * depth * 8} bytes, no matter
+ * how many keys are used.</p>
+ *
+ * <p>The counters are a count-min sketch: {@code depth} rows of {@code width} counters, each key maps to one counter
+ * per row, and its count is the smallest of those. Other keys that map to the same counters can only make the
+ * count too high, never too low. Therefore the limit is never exceeded for a key, but a key can be rejected early.
+ * With {@code N} consumptions in a window, a count is too high by more than {@code e * N / width} (e = 2.718) with a
+ * probability of at most {@code e^-depth}. For example width 65536 and depth 4: with 1 million consumptions per
+ * window, a key is rejected more than 42 permits early with a probability below 2%.</p>
+ *
+ * <p>Implementation detail:
+ * The counters are updated conservatively: only those that are below the new count of the key are raised to it,
+ * that lowers the error compared to incrementing all of them. The counters of a key never exceed the limit.
+ * The check and the update of one key are serialized on one of 64 monitors picked by its hash; different keys that
+ * share counters don't need to, a counter is raised with compare-and-set.
+ * There are two sketches, the refill clears the spare one and swaps it in. The one of the window that just ended
+ * stays as it is until the next refill, therefore a consumption that races with the swap is counted in the window
+ * that just ended, which is the same as if it had happened a moment earlier.
+ * Keys are hashed with {@link CounterStores#hash(Object)}, long keys without boxing.
+ * </p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+class CountMinLimitPerTime implements ExtendedLimitPerTime, Refillable, Waitable {
+
+    private static final int MAX_DEPTH = 16;
+    private static final int STRIPES = 64;
+
+    @NotNull
+    private final LimitPerTimeSpec spec;
+    private final int width;
+    private final int depth;
+    private final int mask;
+    private final Object[] stripes;
+    private volatile AtomicLongArray counters;
+    private AtomicLongArray spare;
+    private final RefillScheduler.Registration refillRegistration;
+    /**
+     * When the next refill is due, in {@link System#nanoTime()} terms. Only written by the scheduler.
+     */
+    private volatile long refillDueNanos;
+
+    /**
+     * @param width counters per row, a power of 2. More means a smaller error.
+     * @param depth number of rows, 1 to 16. More means a lower probability of a larger error.
+     */
+    CountMinLimitPerTime(@NotNull LimitPerTimeSpec spec, int width, int depth, @NotNull RefillScheduler scheduler) {
+        if (width < 1 || Integer.bitCount(width) != 1) {
+            throw new IllegalArgumentException("Width must be a power of 2 but was: "+width+"!");
+        }
+        if (depth < 1 || depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Depth must be 1 to "+MAX_DEPTH+" but was: "+depth+"!");
+        }
+        if ((long) width * depth > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Sketch too large: "+width+" * "+depth+"!");
+        }
+        this.spec = spec;
+        this.width = width;
+        this.depth = depth;
+        this.mask = width - 1;
+        this.stripes = new Object[STRIPES];
+        for (int i=0; i<STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        this.counters = new AtomicLongArray(width * depth);
+        this.spare = new AtomicLongArray(width * depth);
+        this.refillDueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(spec.getTimeAmountInMillis());
+        this.refillRegistration = WeakRefillTask.schedule(scheduler, this, spec.getTimeAmountInMillis());
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key) {
+        return consumeHash(CounterStores.hash(key), 1);
+    }
+
+    @Override
+    public boolean consume(long key) {
+        return consumeHash(CounterStores.hash(key), 1);
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        return consumeHash(CounterStores.hash(key), permits);
+    }
+
+    @Override @Nullable
+    public LimitPerTimeSpec consumeOrSpec(@NotNull Object key) {
+        if (consume(key)) {
+            return null;
+        } else {
+            return spec;
+        }
+    }
+
+    @NotNull @Override
+    public BitSet consumeAll(@NotNull Collection<?> keys) {
+        return Util.consumeEach(this, keys);
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key) {
+        return canConsumeHash(CounterStores.hash(key), 1);
+    }
+
+    @Override
+    public boolean canConsume(long key) {
+        return canConsumeHash(CounterStores.hash(key), 1);
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        return canConsumeHash(CounterStores.hash(key), permits);
+    }
+
+    @Override @Nullable
+    public LimitPerTimeSpec canConsumeOrSpec(@NotNull Object key) {
+        if (canConsume(key)) {
+            return null;
+        } else {
+            return spec;
+        }
+    }
+
+    /**
+     * The time until the next refill, if the key can't consume now.
+     */
+    @Override
+    public long millisUntil(@NotNull Object key, long permits) {
+        return canConsume(key, permits) ? 0 : Util.millisUntil(refillDueNanos);
+    }
+
+    @Override
+    public void refill() {
+        refillDueNanos += TimeUnit.MILLISECONDS.toNanos(spec.getTimeAmountInMillis());
+        //the spare was retired a whole window ago, nobody is using it anymore.
+        AtomicLongArray next = spare;
+        for (int i=0; i<next.length(); i++) {
+            next.set(i, 0);
+        }
+        spare = counters;
+        counters = next;
+    }
+
+    @Override
+    public void destroy() {
+        refillRegistration.cancel();
+    }
+
+    @NotNull @Override
+    public List<LimitPerTimeSpec> getSpec() {
+        return Collections.singletonList(spec);
+    }
+
+    /**
+     * @return the number of counters per row.
+     */
+    int getWidth() {
+        return width;
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+
+    private boolean consumeHash(long hash, long permits) {
+        if (permits > spec.getLimit()) {
+            return false;
+        }
+        AtomicLongArray c = counters;
+        synchronized (stripes[(int) (hash >>> 58)]) {
+            long count = estimate(c, hash) + permits;
+            if (count > spec.getLimit()) {
+                return false;
+            }
+            for (int row=0; row<depth; row++) {
+                int i = index(hash, row);
+                while (true) {
+                    long current = c.get(i);
+                    if (current >= count || c.compareAndSet(i, current, count)) {
+                        break;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    private boolean canConsumeHash(long hash, long permits) {
+        return permits <= spec.getLimit() && estimate(counters, hash) + permits <= spec.getLimit();
+    }
+
+    /**
+     * The smallest counter of the key, at least as high as its real count.
+     */
+    private long estimate(AtomicLongArray c, long hash) {
+        long min = Long.MAX_VALUE;
+        for (int row=0; row<depth; row++) {
+            min = Math.min(min, c.get(index(hash, row)));
+        }
+        return min;
+    }
+
+    /**
+     * Derives the rows' positions from the two halves of the 64 bit hash (Kirsch-Mitzenmacher).
+     */
+    private int index(long hash, int row) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        return row * width + ((h1 + row * h2) & mask);
+    }
+
+}
@@ -0,0 +1,66 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Holds the counters of one time limit: a long value per key.
+ *
+ * <p>The limit implementations that use it ({@link SimpleLimitPerTime}, {@link LockableLimitPerTime} and through
+ * it the {@link MultiLimitPerTime}) only ever access it while holding their lock.
+ * Therefore implementations don't need to be thread safe.</p>
+ *
+ * <p>A key of type {@link Long} must be treated the same as the primitive long key of the same value.</p>
+ *
+ * @see CounterStores for the available implementations.
+ * @author Alexei Arshavin, Optimaize
+ */
+public interface CounterStore {
+
+    /**
+     * @return the value, or {@code absent} if the key is not in the store.
+     */
+    long get(@NotNull Object key, long absent);
+
+    void put(@NotNull Object key, long value);
+
+    /**
+     * @return the value, or {@code absent} if the key is not in the store.
+     */
+    long get(long key, long absent);
+
+    void put(long key, long value);
+
+    /**
+     * @return the number of keys in the store.
+     */
+    int size();
+
+    /**
+     * Removes all keys. Called at the end of each time interval.
+     * Sets the {@link #getIntervalStartMillis() interval start} to now.
+     */
+    void clear();
+
+    /**
+     * @return the {@link System#currentTimeMillis()} when the current time interval started: when the store was
+     *         created or last cleared. A persistent store returns the one of the previous process, the limit then
+     *         continues that interval instead of starting a new one.
+     */
+    long getIntervalStartMillis();
+
+    /**
+     * Releases the resources, called when the limit is destroyed. The store is not used anymore afterwards.
+     * A persistent store keeps its content.
+     */
+    void close();
+
+
+    /**
+     * Creates one store per time limit.
+     */
+    interface Factory {
+        @NotNull
+        CounterStore create(@NotNull LimitPerTimeSpec spec);
+    }
+
+}
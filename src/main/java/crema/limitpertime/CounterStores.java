@@ -0,0 +1,155 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+
+/**
+ * Provides the {@link CounterStore} implementations.
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+public class CounterStores {
+
+    private static final CounterStore.Factory HEAP = new CounterStore.Factory() {
+        @NotNull
+        @Override
+        public CounterStore create(@NotNull LimitPerTimeSpec spec) {
+            return new HeapCounterStore();
+        }
+    };
+
+    /**
+     * What a {@link #bounded bounded} store does with a new key once it is full.
+     */
+    public enum Overflow {
+        /**
+         * Evicts an idle key to make room. An evicted key starts over with the full limit.
+         * The limit can be exceeded by keys that come and go, but every key is served.
+         */
+        FAIL_OPEN,
+        /**
+         * Evicts nothing. The keys that don't fit share one counter until the end of the time interval,
+         * together they get the limit of one key. Nobody can exceed the limit, but new keys can be starved.
+         */
+        FAIL_CLOSED
+    }
+
+    private CounterStores() {
+    }
+
+    /**
+     * The default: keeps the keys and counters on the Java heap.
+     */
+    @NotNull
+    public static CounterStore.Factory heap() {
+        return HEAP;
+    }
+
+    /**
+     * Keeps the keys and counters on the Java heap, but never more than {@code maxKeys} keys per time limit.
+     * The memory is bounded no matter how many keys the clients make up.
+     * @param overflow what happens to new keys once it's full.
+     * @see BoundedCounterStore
+     */
+    @NotNull
+    public static CounterStore.Factory bounded(final int maxKeys, @NotNull final Overflow overflow) {
+        if (maxKeys < 1) {
+            throw new IllegalArgumentException("Max keys must be >=1 but was: "+maxKeys+"!");
+        }
+        return new CounterStore.Factory() {
+            @NotNull
+            @Override
+            public CounterStore create(@NotNull LimitPerTimeSpec spec) {
+                return new BoundedCounterStore(maxKeys, overflow);
+            }
+        };
+    }
+
+    /**
+     * Keeps hashes of the keys and the counters in direct memory, the heap footprint stays constant.
+     * @param expectedKeys per time limit, sized to hold that many without growing. It grows when needed, up to
+     *                     about 50 million keys, beyond that it fails closed like {@link Overflow#FAIL_CLOSED}.
+     * @see OffHeapCounterStore about hash collisions of non-numeric keys.
+     */
+    @NotNull
+    public static CounterStore.Factory offHeap(final int expectedKeys) {
+        return new CounterStore.Factory() {
+            @NotNull
+            @Override
+            public CounterStore create(@NotNull LimitPerTimeSpec spec) {
+                return new OffHeapCounterStore(expectedKeys);
+            }
+        };
+    }
+
+    /**
+     * Keeps hashes of the keys and the counters in memory-mapped files, one per time limit, named after the limit.
+     * A new process attaches to the files as they are, the counters and their time interval survive a restart.
+     * <p>A file is locked while in use: use one directory per limit instance.</p>
+     * @param directory is created if it does not exist.
+     * @param expectedKeys per time limit. The capacity of a new file is fixed to hold that many, the keys beyond
+     *                     fail closed like {@link Overflow#FAIL_CLOSED}.
+     * @see MappedCounterStore
+     */
+    @NotNull
+    public static CounterStore.Factory mapped(@NotNull final File directory, final int expectedKeys) {
+        return new CounterStore.Factory() {
+            @NotNull
+            @Override
+            public CounterStore create(@NotNull LimitPerTimeSpec spec) {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IllegalArgumentException("Cannot create directory: "+directory+"!");
+                }
+                File file = new File(directory, "limit-"+spec.getLimit()+"-per-"+spec.getTimeAmountInMillis()+"ms.counters");
+                return MappedCounterStore.open(file, expectedKeys, spec.getTimeAmountInMillis());
+            }
+        };
+    }
+
+    /**
+     * Continues the time interval of the {@code counters}, or starts a new one if it is over.
+     * @return the millis until the end of the interval, when the first refill is due.
+     */
+    static long continueInterval(@NotNull CounterStore counters, long intervalMillis) {
+        long elapsed = System.currentTimeMillis() - counters.getIntervalStartMillis();
+        if (elapsed < 0 || elapsed >= intervalMillis) { //over, or the clock was set back.
+            counters.clear();
+            return intervalMillis;
+        }
+        return intervalMillis - elapsed;
+    }
+
+
+    /**
+     * A 64 bit hash for stores that don't keep the key itself.
+     *
+     * <p>For {@link Long} keys (and primitive long keys) the hash is unique per value.
+     * For {@link String} keys it's a 64 bit hash over the characters, collisions are very unlikely.
+     * For other keys it's derived from {@link Object#hashCode()}, which has 32 bits only.
+     * Prefer long or String keys with such stores.</p>
+     */
+    static long hash(@NotNull Object key) {
+        if (key instanceof Long) {
+            return hash(((Long) key).longValue());
+        }
+        if (key instanceof String) {
+            String s = (String) key;
+            long h = 0xcbf29ce484222325L; //FNV-1a
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            return LongLongHashMap.mix(h ^ 0x5bd1e9955bd1e995L);
+        }
+        return LongLongHashMap.mix(0x9e3779b97f4a7c15L ^ key.hashCode());
+    }
+
+    /**
+     * A bijection, therefore unique per value.
+     */
+    static long hash(long key) {
+        return LongLongHashMap.mix(key);
+    }
+
+}
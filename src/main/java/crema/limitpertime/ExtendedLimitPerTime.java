@@ -0,0 +1,57 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * A {@link LimitPerTime} with numeric keys, permits and batches. All the limits of {@link LimitsPerTime} are one.
+ *
+ * <p>These methods came after {@link LimitPerTime}, and are in an interface of their own so that existing
+ * implementations of it keep compiling. The wrappers of {@link LimitsPerTime} take any {@link LimitPerTime}, see
+ * {@link LimitsPerTime#extended(LimitPerTime)} for what a plain one supports.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+public interface ExtendedLimitPerTime extends LimitPerTime {
+
+    /**
+     * Same as {@link #consume(Object)} for a numeric key, without boxing it.
+     *
+     * <p>The key shares its counters with the boxed {@link Long} of the same value: {@code consume(5L)} and
+     * {@code consume((Object) 5L)} count against the same limit.</p>
+     */
+    boolean consume(long key);
+
+    /**
+     * Same as {@link #consume(Object)}, but takes {@code permits} at once, for requests of different cost.
+     * All or nothing: either all permits are taken from all time limits, or none.
+     * @param permits >= 1. More than the limit are never granted.
+     */
+    boolean consume(@NotNull Object key, long permits);
+
+    /**
+     * Same as calling {@link #consume(Object)} for each key in iteration order, a key that is in there twice is
+     * consumed twice.
+     *
+     * <p>The implementations with a lock acquire it once for the whole batch instead of once per key.
+     * Other threads wait for the whole batch meanwhile.</p>
+     *
+     * @return bit i is set if the i-th key was consumed.
+     */
+    @NotNull
+    BitSet consumeAll(@NotNull Collection<?> keys);
+
+    /**
+     * Same as {@link #canConsume(Object)} for a numeric key, without boxing it.
+     * @see #consume(long)
+     */
+    boolean canConsume(long key);
+
+    /**
+     * Tells if {@link #consume(Object, long)} would grant the {@code permits} right now.
+     */
+    boolean canConsume(@NotNull Object key, long permits);
+
+}
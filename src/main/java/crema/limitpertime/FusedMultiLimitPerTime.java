@@ -0,0 +1,223 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Combines multiple {@link LimitPerTimeSpec.Algorithm#FIXED_WINDOW fixed window} limits in one table.
+ *
+ * <p>Same behavior as a {@link MultiLimitPerTime} of fixed windows, but each key has one record, a
+ * {@code long[]} with one slot per time limit. Checking and consuming all time limits is therefore one
+ * hash lookup plus a scan over a few contiguous longs, and the memory per key is one array instead of one
+ * map entry and counter per time limit.</p>
+ *
+ * <p>The time limits can be changed with {@link #updateSpec}, the keys keep their counts.</p>
+ *
+ * <p>Implementation detail:
+ * The table is a {@link FusedRecords}, the packing is done by {@link FusedWindows}: each slot packs the window
+ * (epoch) it was last used in and the used count, as {@code epoch * (limit+1) + used}, like the
+ * {@link LazyLimitPerTime}. A slot of an older epoch counts as unused, so no refill has to touch
+ * the records. The epochs are counted from the creation of this object, the windows are aligned the same way
+ * as with the timer based refill.
+ * Consumptions on the same key synchronize on its record, different keys don't contend.
+ * Long keys are not boxed, they have a primitive table of their own in the {@link FusedRecords}.
+ * </p>
+ *
+ * <p>Keys whose windows are all over are removed by the expunge. The {@link RefillScheduler} runs it once per
+ * longest time interval, so the memory is bounded the same as with the separate windows. It runs in slices,
+ * see {@link FusedRecords#expungeStep}, so that many keys don't delay the refills of other limits.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+class FusedMultiLimitPerTime implements ReconfigurableLimitPerTime, Refillable, KeyCounted, Waitable, Snapshottable {
+
+    private final FusedRecords records;
+    private final FusedRecords.Lineage lineage;
+    @NotNull
+    private final RefillScheduler scheduler;
+    private RefillScheduler.Registration expungeRegistration;
+
+    /**
+     * @param specs {@link LimitPerTimeSpecs#sortAndValidate sorted and validated}, all fixed windows.
+     * @throws IllegalArgumentException if a limit is so high for its time interval that the packed counter
+     *         would overflow within 100 years, see {@link LazyLimitPerTime}.
+     */
+    FusedMultiLimitPerTime(@NotNull List<LimitPerTimeSpec> specs, @NotNull RefillScheduler scheduler) {
+        FusedWindows windows = new FusedWindows(specs);
+        this.records = new FusedRecords();
+        this.lineage = records.newLineage(windows);
+        this.scheduler = scheduler;
+        this.expungeRegistration = scheduleExpunge(windows.getLongestMillis());
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key) {
+        return consumeOrSpec(key, 1) == null;
+    }
+
+    @Override
+    public boolean consume(long key) {
+        return consumeOrSpec(key, 1) == null;
+    }
+
+    /**
+     * All or nothing over all time limits.
+     */
+    @Override
+    public boolean consume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        return consumeOrSpec(key, permits) == null;
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec consumeOrSpec(@NotNull Object key) {
+        return consumeOrSpec(key, 1);
+    }
+
+    /**
+     * Same as {@link #consumeOrSpec(Object)} for a numeric key, without boxing it.
+     */
+    @Nullable
+    public LimitPerTimeSpec consumeOrSpec(long key) {
+        return consumeOrSpec(key, 1);
+    }
+
+    @NotNull @Override
+    public BitSet consumeAll(@NotNull Collection<?> keys) {
+        return Util.consumeEach(this, keys);
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key) {
+        return canConsumeOrSpec(key, 1) == null;
+    }
+
+    @Override
+    public boolean canConsume(long key) {
+        return canConsumeOrSpec(key, 1) == null;
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        return canConsumeOrSpec(key, permits) == null;
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec canConsumeOrSpec(@NotNull Object key) {
+        return canConsumeOrSpec(key, 1);
+    }
+
+    /**
+     * Same as {@link #canConsumeOrSpec(Object)} for a numeric key, without boxing it.
+     */
+    @Nullable
+    public LimitPerTimeSpec canConsumeOrSpec(long key) {
+        return canConsumeOrSpec(key, 1);
+    }
+
+    /**
+     * Removes the keys that were not used in the current interval of any of the time limits.
+     * Does not block consumers of other keys.
+     * @return the number of removed keys.
+     */
+    public int expungeStaleEntries() {
+        return records.expungeStaleEntries();
+    }
+
+    /**
+     * Takes effect with the next call of each key, see {@link FusedRecords}.
+     * @throws IllegalArgumentException if a time limit is not a fixed window.
+     */
+    @Override
+    public synchronized void updateSpec(@NotNull List<LimitPerTimeSpec> spec) {
+        FusedWindows windows = new FusedWindows(LimitPerTimeSpecs.sortAndValidate(spec));
+        long before = records.getWindows(lineage).getLongestMillis();
+        records.update(lineage, windows);
+        if (windows.getLongestMillis() != before) {
+            expungeRegistration.cancel();
+            expungeRegistration = scheduleExpunge(windows.getLongestMillis());
+        }
+    }
+
+    /**
+     * Does a slice of the expunge, see {@link FusedRecords#expungeStep}.
+     */
+    @Override
+    public void refill() {
+        records.expungeStep(records.getWindows(lineage).getLongestMillis());
+    }
+
+    @NotNull
+    private RefillScheduler.Registration scheduleExpunge(long longestMillis) {
+        return WeakRefillTask.schedule(scheduler, this, FusedRecords.expungeTickMillis(longestMillis));
+    }
+
+    @Override
+    public synchronized void destroy() {
+        expungeRegistration.cancel();
+        records.clear();
+    }
+
+    /**
+     * The time until the last of the time limits that are used up starts a new interval.
+     */
+    @Override
+    public long millisUntil(@NotNull Object key, long permits) {
+        return Util.millisUntil(System.nanoTime() + records.waitNanos(key, lineage, permits));
+    }
+
+    @Override
+    public long writeSnapshot(@NotNull LimitPerTimeSnapshot.Writer out) throws IOException {
+        return records.writeSnapshot(out);
+    }
+
+    @Override
+    public void readSnapshot(@NotNull Object key, @NotNull long[] rows, int n) {
+        records.readSnapshot(key, lineage, rows, n);
+    }
+
+    @Override
+    public int getKeyCount() {
+        return records.size();
+    }
+
+    /**
+     * @return the number of generations of time limits in memory, see {@link FusedRecords}.
+     */
+    int getGenerationCount() {
+        return records.generationCount();
+    }
+
+    @NotNull @Override
+    public List<LimitPerTimeSpec> getSpec() {
+        return records.getWindows(lineage).getSpecs();
+    }
+
+
+    @Nullable
+    private LimitPerTimeSpec consumeOrSpec(@NotNull Object key, long permits) {
+        return records.consumeOrSpec(key, lineage, permits);
+    }
+
+    @Nullable
+    private LimitPerTimeSpec consumeOrSpec(long key, long permits) {
+        return records.consumeOrSpec(key, lineage, permits);
+    }
+
+    @Nullable
+    private LimitPerTimeSpec canConsumeOrSpec(@NotNull Object key, long permits) {
+        return records.canConsumeOrSpec(key, lineage, permits);
+    }
+
+    @Nullable
+    private LimitPerTimeSpec canConsumeOrSpec(long key, long permits) {
+        return records.canConsumeOrSpec(key, lineage, permits);
+    }
+
+}
@@ -0,0 +1,713 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The table of packed records of the {@link FusedMultiLimitPerTime} and the {@link TieredLimitPerTime}, with the
+ * time limits that can change while it is in use.
+ *
+ * <p>Each set of time limits that can be changed is a {@link Lineage}, for example a tier. Every change adds a
+ * generation: the new {@link FusedWindows}. Changing is one volatile write, consumers are never blocked.
+ * A record knows the generation it was written in. When it is used next and its lineage has moved on, it is
+ * converted with {@link FusedWindows#carry}, the counts are carried over. When its key belongs to another lineage
+ * now, it starts over.</p>
+ *
+ * <p>The expunge removes the keys that are not in use anymore. The {@link RefillScheduler} runs it in slices of
+ * {@link #EXPUNGE_SLICE} records every {@link #expungeTickMillis tick}, see {@link #expungeStep}: a table of a
+ * million keys does not stall the scheduler's thread for the other limits.</p>
+ *
+ * <p>The old generations are dropped by the expunge once no record that is still in use refers to
+ * them, at the earliest in the second run after the change, and all of them by {@link #clear}. The generations in
+ * memory are therefore bounded by the changes within about two of the longest time intervals, not by all changes
+ * ever made. A record whose generation is gone starts over, that only happens to a consumption that stalled for a
+ * whole run of the expunge while its time limits were changed.</p>
+ *
+ * <p>Implementation detail:
+ * A record is a {@code long[]} with the slots of its windows, plus one slot with the id of its generation. The ids
+ * are never reused. The generations in memory are in an array sorted by id that is copied on write, an old one is
+ * found by binary search, which is only needed to convert a record, or to expunge or snapshot it.
+ * Consumptions on the same key synchronize on its record, different keys don't contend. A converted record replaces
+ * the old one in the map, the old one is marked as removed.
+ * Long keys, also boxed ones, have a table of their own: striped {@link LongArrayHashMap}s, where the records are
+ * used under the monitor of their stripe. The key is not boxed then, the record is the only allocation per key.
+ * </p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+final class FusedRecords {
+
+    /**
+     * Marks a record that was removed from the map, in its first slot.
+     */
+    private static final long DEAD = -1;
+    private static final int LONG_STRIPES = 64;
+    /**
+     * The records that one {@link #expungeStep} looks at, and how often it is called at most.
+     */
+    static final int EXPUNGE_SLICE = 4096;
+    private static final long EXPUNGE_TICK_MILLIS = 50;
+    /**
+     * The long keys that {@link #writeSnapshot} copies under one lock of their stripe.
+     */
+    static final int SNAPSHOT_BATCH = 1024;
+
+    private final long origin = System.nanoTime();
+    private final ConcurrentMap<Object,long[]> records = new ConcurrentHashMap<>();
+    private final LongArrayHashMap[] longRecords = new LongArrayHashMap[LONG_STRIPES];
+    /**
+     * The generations in memory, sorted by id.
+     */
+    private volatile Generation[] generations = new Generation[0];
+    private long nextId = 0;
+    /**
+     * Runs of the expunge, which are serialized on the {@link #expungeLock}.
+     */
+    private volatile long expungeRuns = 0;
+    private final Object expungeLock = new Object();
+    /**
+     * The run in progress, guarded by the expungeLock: where it is, null when there is none.
+     */
+    private Iterator<Map.Entry<Object,long[]>> expungeCursor = null;
+    private long expungeRun;
+    private long expungeStarted = 0;
+    private int expungeStripe;
+    private int expungeSlot;
+    private int expungeCapacity;
+    private int expungeRemoved;
+
+    FusedRecords() {
+        for (int i=0; i<LONG_STRIPES; i++) {
+            longRecords[i] = new LongArrayHashMap();
+        }
+    }
+
+    /**
+     * The time limits of one lineage, the current ones and the ones before.
+     */
+    static final class Lineage {
+        private volatile Generation current;
+    }
+
+    /**
+     * Creates a lineage with the given time limits.
+     */
+    @NotNull
+    Lineage newLineage(@NotNull FusedWindows windows) {
+        Lineage lineage = new Lineage();
+        addGeneration(windows, lineage);
+        return lineage;
+    }
+
+    /**
+     * Changes the time limits of the lineage, atomically for the consumers.
+     */
+    void update(@NotNull Lineage lineage, @NotNull FusedWindows windows) {
+        addGeneration(windows, lineage);
+    }
+
+    /**
+     * @return the current time limits of the lineage.
+     */
+    @NotNull
+    FusedWindows getWindows(@NotNull Lineage lineage) {
+        return lineage.current.windows;
+    }
+
+    /**
+     * All or nothing over all current time limits of the lineage.
+     * @return the first time limit that does not have the permits left, or null if consumed.
+     */
+    @Nullable
+    LimitPerTimeSpec consumeOrSpec(@NotNull Object key, @NotNull Lineage lineage, long permits) {
+        if (key instanceof Long) {
+            return consumeOrSpec(((Long) key).longValue(), lineage, permits);
+        }
+        while (true) {
+            Generation generation = lineage.current;
+            FusedWindows windows = generation.windows;
+            LimitPerTimeSpec tooSmall = windows.firstLimitBelow(permits);
+            if (tooSmall != null) {
+                return tooSmall;
+            }
+            long[] record = records.get(key);
+            if (record==null) {
+                record = records.putIfAbsent(key, newRecord(generation, now(), permits));
+                if (record==null) {
+                    return null;
+                }
+            }
+            synchronized (record) {
+                if (record[0] == DEAD) {
+                    records.remove(key, record); //help the one who removed it, then try again.
+                    continue;
+                }
+                if (lineage.current != generation) {
+                    continue; //changed meanwhile. the records never go back to an older generation.
+                }
+                //the time is taken under the lock, so that the epochs of a record never go backwards.
+                long now = now();
+                if (idOf(record) != generation.id) {
+                    if (records.replace(key, record, convert(record, generation, now))) {
+                        record[0] = DEAD;
+                    }
+                    continue;
+                }
+                return windows.consume(record, now, permits);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #consumeOrSpec(Object, Lineage, long)} without boxing the key.
+     */
+    @Nullable
+    LimitPerTimeSpec consumeOrSpec(long key, @NotNull Lineage lineage, long permits) {
+        LongArrayHashMap stripe = stripe(key);
+        synchronized (stripe) {
+            Generation generation = lineage.current;
+            FusedWindows windows = generation.windows;
+            LimitPerTimeSpec tooSmall = windows.firstLimitBelow(permits);
+            if (tooSmall != null) {
+                return tooSmall;
+            }
+            long now = now();
+            long[] record = stripe.get(key);
+            if (record==null) {
+                stripe.put(key, newRecord(generation, now, permits));
+                return null;
+            }
+            if (idOf(record) != generation.id) {
+                record = convert(record, generation, now);
+                stripe.put(key, record);
+            }
+            return windows.consume(record, now, permits);
+        }
+    }
+
+    /**
+     * @return the first of the lineage's current time limits that does not have the permits left, or null.
+     */
+    @Nullable
+    LimitPerTimeSpec canConsumeOrSpec(@NotNull Object key, @NotNull Lineage lineage, long permits) {
+        if (key instanceof Long) {
+            return canConsumeOrSpec(((Long) key).longValue(), lineage, permits);
+        }
+        LimitPerTimeSpec tooSmall = getWindows(lineage).firstLimitBelow(permits);
+        if (tooSmall != null) {
+            return tooSmall;
+        }
+        while (true) {
+            long[] record = records.get(key);
+            if (record==null) {
+                return null;
+            }
+            synchronized (record) {
+                if (record[0] == DEAD) {
+                    records.remove(key, record); //expunged or converted meanwhile, read the current one.
+                    continue;
+                }
+                Generation generation = lineage.current;
+                FusedWindows windows = generation.windows;
+                long now = now();
+                if (idOf(record) != generation.id) {
+                    record = convert(record, generation, now);
+                }
+                return windows.check(record, now, permits);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #canConsumeOrSpec(Object, Lineage, long)} without boxing the key.
+     */
+    @Nullable
+    LimitPerTimeSpec canConsumeOrSpec(long key, @NotNull Lineage lineage, long permits) {
+        LongArrayHashMap stripe = stripe(key);
+        synchronized (stripe) {
+            Generation generation = lineage.current;
+            FusedWindows windows = generation.windows;
+            LimitPerTimeSpec tooSmall = windows.firstLimitBelow(permits);
+            long[] record = stripe.get(key);
+            if (tooSmall != null || record==null) {
+                return tooSmall;
+            }
+            long now = now();
+            if (idOf(record) != generation.id) {
+                record = convert(record, generation, now);
+            }
+            return windows.check(record, now, permits);
+        }
+    }
+
+    /**
+     * @return the nanos until the last of the lineage's current time limits that don't have the permits starts a
+     *         new interval.
+     */
+    long waitNanos(@NotNull Object key, @NotNull Lineage lineage, long permits) {
+        if (key instanceof Long) {
+            LongArrayHashMap stripe = stripe((Long) key);
+            synchronized (stripe) {
+                long[] record = stripe.get((Long) key);
+                return (record==null) ? 0 : waitNanos(record, lineage, permits);
+            }
+        }
+        while (true) {
+            long[] record = records.get(key);
+            if (record==null) {
+                return 0;
+            }
+            synchronized (record) {
+                if (record[0] == DEAD) {
+                    records.remove(key, record); //expunged or converted meanwhile, read the current one.
+                    continue;
+                }
+                return waitNanos(record, lineage, permits);
+            }
+        }
+    }
+
+    /**
+     * Must hold the lock on the record.
+     */
+    private long waitNanos(@NotNull long[] record, @NotNull Lineage lineage, long permits) {
+        Generation generation = lineage.current;
+        FusedWindows windows = generation.windows;
+        long now = now();
+        if (idOf(record) != generation.id) {
+            record = convert(record, generation, now);
+        }
+        return windows.waitNanos(record, now, permits);
+    }
+
+    /**
+     * Removes the keys that were not used in the current interval of any of their time limits, and then the old
+     * generations that no remaining record refers to anymore, see class header. Finishes a run that
+     * {@link #expungeStep} is in the middle of first, and then makes a whole run at once.
+     * Does not block consumers of other keys.
+     * @return the number of keys removed by the whole run.
+     */
+    int expungeStaleEntries() {
+        synchronized (expungeLock) {
+            while (expungeCursor != null) {
+                expungeSlice(Integer.MAX_VALUE);
+            }
+            expungeSlice(Integer.MAX_VALUE);
+            return expungeRemoved;
+        }
+    }
+
+    /**
+     * @return the period to schedule {@link #expungeStep} with, for runs every {@code intervalMillis}.
+     */
+    static long expungeTickMillis(long intervalMillis) {
+        return Math.min(intervalMillis, EXPUNGE_TICK_MILLIS);
+    }
+
+    /**
+     * Does a bounded part of the expunge, for the {@link RefillScheduler} to call on every tick: continues the
+     * current run with at most {@link #EXPUNGE_SLICE} records, or starts a new run once the last one started at
+     * least {@code intervalMillis} ago. A run over many keys is spread over many ticks this way, and does not
+     * delay the tasks of other limits on the scheduler's thread.
+     */
+    void expungeStep(long intervalMillis) {
+        synchronized (expungeLock) {
+            if (expungeCursor == null && now() - expungeStarted < intervalMillis * 1000000L) {
+                return;
+            }
+            expungeSlice(EXPUNGE_SLICE);
+        }
+    }
+
+    /**
+     * Must hold the {@link #expungeLock}. Starts a run if there is none, and continues it with at most {@code max}
+     * records: first the object keys, then the stripes of the long keys. A stripe is locked for one slice at most.
+     * After the last slice the old generations are dropped, and {@link #expungeRemoved} has the result of the run.
+     */
+    private void expungeSlice(int max) {
+        if (expungeCursor == null) {
+            expungeRun = ++expungeRuns;
+            expungeStarted = now();
+            expungeCursor = records.entrySet().iterator();
+            expungeStripe = 0;
+            expungeSlot = 0;
+            expungeCapacity = -1;
+            expungeRemoved = 0;
+        }
+        final long run = expungeRun;
+        int budget = max;
+        while (budget > 0 && expungeCursor.hasNext()) {
+            Map.Entry<Object,long[]> entry = expungeCursor.next();
+            long[] record = entry.getValue();
+            synchronized (record) {
+                if (record[0] != DEAD && isStale(record, now(), run)) {
+                    record[0] = DEAD;
+                    records.remove(entry.getKey(), record);
+                    expungeRemoved++;
+                }
+            }
+            budget--;
+        }
+        while (budget > 0 && expungeStripe < LONG_STRIPES) {
+            LongArrayHashMap stripe = longRecords[expungeStripe];
+            synchronized (stripe) {
+                if (stripe.capacity() != expungeCapacity) {
+                    //new, or it grew since the last slice: start over, the records seen twice are just checked twice.
+                    expungeCapacity = stripe.capacity();
+                    expungeSlot = 0;
+                }
+                final long now = now();
+                final int[] seen = {0};
+                int before = stripe.size();
+                expungeSlot = stripe.visit(new LongArrayHashMap.Visitor() {
+                    @Override
+                    public boolean visit(long key, @NotNull long[] record) {
+                        seen[0]++;
+                        return isStale(record, now, run);
+                    }
+                }, expungeSlot, budget);
+                expungeRemoved += before - stripe.size();
+                budget -= seen[0];
+                if (expungeSlot == stripe.capacity()) {
+                    expungeStripe++;
+                    expungeCapacity = -1;
+                }
+            }
+        }
+        if (budget > 0) {
+            expungeCursor = null;
+            dropGenerations(run);
+        }
+    }
+
+    /**
+     * Must hold the lock on the record. Marks the generation of a record that stays as in use.
+     * @return true if the record was not used in the current interval of any of its time limits, or its generation
+     *         is gone.
+     */
+    private boolean isStale(@NotNull long[] record, long now, long run) {
+        Generation generation = generation(idOf(record));
+        if (generation == null || generation.windows.isStale(record, now)) {
+            return true;
+        }
+        generation.usedInRun = run;
+        return false;
+    }
+
+    /**
+     * Writes the counts of all keys that used the current interval of any of their time limits.
+     * Locks one record at a time, or a stripe of long keys for a batch of {@link #SNAPSHOT_BATCH} of them, and
+     * writes each batch before it takes the next one. The keys that come and go meanwhile may or may not be in,
+     * each key is in at most once.
+     * @return the number of keys written.
+     */
+    long writeSnapshot(@NotNull LimitPerTimeSnapshot.Writer out) throws IOException {
+        long written = 0;
+        long[] rows = new long[0];
+        for (Map.Entry<Object,long[]> entry : records.entrySet()) {
+            long[] record = entry.getValue();
+            int n;
+            synchronized (record) {
+                if (record[0] == DEAD) {
+                    continue;
+                }
+                Generation generation = generation(idOf(record));
+                if (generation == null) {
+                    continue;
+                }
+                FusedWindows windows = generation.windows;
+                if (rows.length < windows.size() * 4) {
+                    rows = new long[windows.size() * 4];
+                }
+                n = windows.export(record, now(), System.currentTimeMillis(), rows);
+            }
+            if (n > 0 && out.entry(entry.getKey(), rows, n)) {
+                written++;
+            }
+        }
+        for (final LongArrayHashMap stripe : longRecords) {
+            //copied in batches under the lock of the stripe, written without: the channel can be slow.
+            final LongLongHashMap done = new LongLongHashMap();
+            final List<Long> keys = new ArrayList<>();
+            final List<long[]> exported = new ArrayList<>();
+            int slot = 0;
+            int capacity = -1;
+            int removals = -1;
+            boolean end = false;
+            while (!end) {
+                keys.clear();
+                exported.clear();
+                synchronized (stripe) {
+                    if (stripe.capacity() != capacity || stripe.removals() != removals) {
+                        //new, or entries moved since the last batch: start over, skipping the keys already written.
+                        capacity = stripe.capacity();
+                        removals = stripe.removals();
+                        slot = 0;
+                    }
+                    final long now = now();
+                    final long nowMillis = System.currentTimeMillis();
+                    slot = stripe.visit(new LongArrayHashMap.Visitor() {
+                        @Override
+                        public boolean visit(long key, @NotNull long[] record) {
+                            Generation generation = generation(idOf(record));
+                            if (generation == null || done.get(key, 0) != 0) {
+                                return false;
+                            }
+                            FusedWindows windows = generation.windows;
+                            long[] rows = new long[windows.size() * 4 + 1];
+                            int n = windows.export(record, now, nowMillis, rows);
+                            if (n > 0) {
+                                done.put(key, 1);
+                                rows[rows.length - 1] = n;
+                                keys.add(key);
+                                exported.add(rows);
+                            }
+                            return false;
+                        }
+                    }, slot, SNAPSHOT_BATCH);
+                    end = slot == capacity;
+                }
+                for (int i=0; i<keys.size(); i++) {
+                    long[] copy = exported.get(i);
+                    if (out.entry(keys.get(i), copy, (int) copy[copy.length - 1])) {
+                        written++;
+                    }
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Adds the counts of a key from a snapshot to the lineage's current time limits with the same time amount.
+     * Counts of intervals that are over by now are dropped.
+     * @param rows as written by {@link FusedWindows#export}.
+     */
+    void readSnapshot(@NotNull Object key, @NotNull Lineage lineage, @NotNull long[] rows, int n) {
+        if (key instanceof Long) {
+            LongArrayHashMap stripe = stripe((Long) key);
+            synchronized (stripe) {
+                Generation generation = lineage.current;
+                long now = now();
+                long[] record = stripe.get((Long) key);
+                if (record==null) {
+                    record = newRecord(generation, now, 0);
+                } else if (idOf(record) != generation.id) {
+                    record = convert(record, generation, now);
+                }
+                stripe.put((Long) key, record);
+                add(record, generation.windows, now, rows, n);
+            }
+            return;
+        }
+        while (true) {
+            Generation generation = lineage.current;
+            FusedWindows windows = generation.windows;
+            long[] record = records.get(key);
+            if (record==null) {
+                long[] fresh = newRecord(generation, now(), 0);
+                record = records.putIfAbsent(key, fresh);
+                if (record==null) {
+                    record = fresh;
+                }
+            }
+            synchronized (record) {
+                if (record[0] == DEAD) {
+                    records.remove(key, record);
+                    continue;
+                }
+                if (lineage.current != generation) {
+                    continue;
+                }
+                long now = now();
+                if (idOf(record) != generation.id) {
+                    if (records.replace(key, record, convert(record, generation, now))) {
+                        record[0] = DEAD;
+                    }
+                    continue;
+                }
+                add(record, windows, now, rows, n);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Must hold the lock on the record.
+     */
+    private static void add(@NotNull long[] record, @NotNull FusedWindows windows, long now, @NotNull long[] rows, int n) {
+        long nowMillis = System.currentTimeMillis();
+        for (int i=0; i<n; i++) {
+            long limit = rows[i*4];
+            long remaining = rows[i*4 + 2];
+            if (rows[i*4 + 3] > nowMillis) {
+                windows.add(record, now, rows[i*4 + 1], limit - remaining);
+            }
+        }
+    }
+
+    /**
+     * Sums up the tables, a stripe at a time. Not a snapshot under concurrent updates.
+     */
+    int size() {
+        int size = records.size();
+        for (LongArrayHashMap stripe : longRecords) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Removes all records, and all generations but the current ones.
+     */
+    void clear() {
+        records.clear();
+        for (LongArrayHashMap stripe : longRecords) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+        synchronized (this) {
+            List<Generation> current = new ArrayList<>();
+            for (Generation generation : generations) {
+                if (generation.replacedInRun < 0) {
+                    current.add(generation);
+                }
+            }
+            generations = current.toArray(new Generation[current.size()]);
+        }
+    }
+
+    /**
+     * @return the number of generations in memory.
+     */
+    int generationCount() {
+        return generations.length;
+    }
+
+
+    /**
+     * Makes the windows the current generation of the lineage.
+     */
+    private synchronized void addGeneration(@NotNull FusedWindows windows, @NotNull Lineage lineage) {
+        Generation generation = new Generation(nextId++, windows, lineage);
+        Generation[] next = Arrays.copyOf(generations, generations.length + 1);
+        next[generations.length] = generation;
+        generations = next; //before it is current, so that it can be found.
+        if (lineage.current != null) {
+            lineage.current.replacedInRun = expungeRuns;
+        }
+        lineage.current = generation;
+    }
+
+    /**
+     * Drops the generations that are not current, were replaced before the last run started, and had no record
+     * in use in this run.
+     */
+    private synchronized void dropGenerations(long run) {
+        List<Generation> kept = new ArrayList<>(generations.length);
+        for (Generation generation : generations) {
+            if (generation.replacedInRun < 0 || generation.replacedInRun >= run - 1 || generation.usedInRun == run) {
+                kept.add(generation);
+            }
+        }
+        if (kept.size() < generations.length) {
+            generations = kept.toArray(new Generation[kept.size()]);
+        }
+    }
+
+    /**
+     * @return the generation with the id, or null if it is gone.
+     */
+    @Nullable
+    private Generation generation(long id) {
+        Generation[] all = generations;
+        int low = 0;
+        int high = all.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (all[mid].id < id) {
+                low = mid + 1;
+            } else if (all[mid].id > id) {
+                high = mid - 1;
+            } else {
+                return all[mid];
+            }
+        }
+        return null;
+    }
+
+    @NotNull
+    private static long[] newRecord(@NotNull Generation generation, long now, long permits) {
+        long[] record = generation.windows.newRecord(now, permits, 1);
+        record[record.length - 1] = generation.id;
+        return record;
+    }
+
+    /**
+     * Must hold the lock on the record.
+     * @return a new record of the generation, with the counts carried over if it is of the same lineage.
+     */
+    @NotNull
+    private long[] convert(@NotNull long[] record, @NotNull Generation generation, long now) {
+        Generation from = generation(idOf(record));
+        FusedWindows windows = generation.windows;
+        long[] ret;
+        if (from != null && from.lineage == generation.lineage) {
+            ret = windows.carry(from.windows, record, now, 1);
+        } else {
+            ret = windows.newRecord(now, 0, 1);
+        }
+        ret[ret.length - 1] = generation.id;
+        return ret;
+    }
+
+    /**
+     * The stripe is the monitor for its records. Uses the high bits of the hash, the table inside uses the low ones.
+     */
+    @NotNull
+    private LongArrayHashMap stripe(long key) {
+        return longRecords[(int) (LongLongHashMap.mix(key) >>> (64 - Integer.numberOfTrailingZeros(LONG_STRIPES)))];
+    }
+
+    private static long idOf(@NotNull long[] record) {
+        return record[record.length - 1];
+    }
+
+    private long now() {
+        return System.nanoTime() - origin;
+    }
+
+
+    private static final class Generation {
+        private final long id;
+        private final FusedWindows windows;
+        private final Lineage lineage;
+        /**
+         * The last run of the expunge when it was replaced, or -1 while it is current.
+         */
+        private volatile long replacedInRun = -1;
+        /**
+         * The last run of the expunge that found a record of it in use.
+         */
+        private volatile long usedInRun = -1;
+
+        private Generation(long id, FusedWindows windows, Lineage lineage) {
+            this.id = id;
+            this.windows = windows;
+            this.lineage = lineage;
+        }
+    }
+
+}
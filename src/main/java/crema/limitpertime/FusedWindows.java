@@ -0,0 +1,242 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A set of {@link LimitPerTimeSpec.Algorithm#FIXED_WINDOW fixed window} limits, and the arithmetic on the packed
+ * records of the {@link FusedMultiLimitPerTime} and the {@link TieredLimitPerTime}.
+ *
+ * <p>A record is a {@code long[]} with one slot per time limit at the start, the owner can append slots of its own.
+ * Each slot packs the window (epoch) it was last used in and the used count, as {@code epoch * (limit+1) + used}.
+ * The {@code now} is in nanos since an origin chosen by the owner.
+ * The methods that take a record must be called with the lock on it held.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+final class FusedWindows {
+
+    /**
+     * The number of time intervals that must fit into a long in the packed form.
+     */
+    private static final long MIN_LIFETIME_MILLIS = TimeUnit.DAYS.toMillis(100 * 365);
+
+    private final LimitPerTimeSpec[] specs;
+    private final long[] limits;
+    private final long[] bases;
+    private final long[] intervalNanos;
+    private final long longestMillis;
+
+    /**
+     * @param specs {@link LimitPerTimeSpecs#sortAndValidate sorted and validated}, all fixed windows.
+     * @throws IllegalArgumentException if a limit is so high for its time interval that the packed counter
+     *         would overflow within 100 years, see {@link LazyLimitPerTime}.
+     */
+    FusedWindows(@NotNull List<LimitPerTimeSpec> specs) {
+        if (specs.isEmpty()) {
+            throw new IllegalArgumentException("At least one limit is required!");
+        }
+        int n = specs.size();
+        this.specs = specs.toArray(new LimitPerTimeSpec[n]);
+        this.limits = new long[n];
+        this.bases = new long[n];
+        this.intervalNanos = new long[n];
+        long longest = 0;
+        for (int i=0; i<n; i++) {
+            LimitPerTimeSpec spec = this.specs[i];
+            if (spec.getAlgorithm() != LimitPerTimeSpec.Algorithm.FIXED_WINDOW) {
+                throw new IllegalArgumentException("Only fixed windows can be fused: "+spec+"!");
+            }
+            limits[i] = spec.getLimit();
+            bases[i] = spec.getLimit() + 1;
+            long maxEpochs = MIN_LIFETIME_MILLIS / spec.getTimeAmountInMillis() + 1;
+            if (bases[i] > Long.MAX_VALUE / maxEpochs) {
+                throw new IllegalArgumentException("Limit too high for the time interval: "+spec+"!");
+            }
+            intervalNanos[i] = TimeUnit.MILLISECONDS.toNanos(spec.getTimeAmountInMillis());
+            longest = Math.max(longest, spec.getTimeAmountInMillis());
+        }
+        this.longestMillis = longest;
+    }
+
+    /**
+     * @return the number of time limits, which is the number of slots they use in a record.
+     */
+    int size() {
+        return specs.length;
+    }
+
+    @NotNull
+    LimitPerTimeSpec getSpec(int i) {
+        return specs[i];
+    }
+
+    /**
+     * @return the time limits, sorted.
+     */
+    @NotNull
+    List<LimitPerTimeSpec> getSpecs() {
+        return new ArrayList<>(Arrays.asList(specs));
+    }
+
+    long getLongestMillis() {
+        return longestMillis;
+    }
+
+    /**
+     * @return the first time limit that can never grant that many permits, or null.
+     */
+    @Nullable
+    LimitPerTimeSpec firstLimitBelow(long permits) {
+        for (int i=0; i<specs.length; i++) {
+            if (permits > limits[i]) {
+                return specs[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param extraSlots appended for the owner, left 0.
+     * @return a record that consumed the permits at {@code now}.
+     */
+    @NotNull
+    long[] newRecord(long now, long permits, int extraSlots) {
+        long[] record = new long[specs.length + extraSlots];
+        for (int i=0; i<specs.length; i++) {
+            record[i] = (now / intervalNanos[i]) * bases[i] + permits;
+        }
+        return record;
+    }
+
+    /**
+     * Converts a record of other time limits to these, at {@code now}.
+     *
+     * <p>A time limit with the same time amount as one in {@code from} keeps its used count, capped at the new
+     * limit: the windows are aligned the same, so that is exact. Any other takes the share of the limit that is used
+     * up in the time limit of {@code from} with the closest time amount, rounded up.</p>
+     *
+     * @param record a record of {@code from}, not modified.
+     * @param extraSlots appended for the owner, left 0.
+     */
+    @NotNull
+    long[] carry(@NotNull FusedWindows from, @NotNull long[] record, long now, int extraSlots) {
+        long[] ret = new long[specs.length + extraSlots];
+        for (int i=0; i<specs.length; i++) {
+            int closest = 0;
+            for (int j=1; j<from.specs.length; j++) {
+                if (Math.abs(from.intervalNanos[j] - intervalNanos[i]) < Math.abs(from.intervalNanos[closest] - intervalNanos[i])) {
+                    closest = j;
+                }
+            }
+            long used = from.used(record, closest, now);
+            if (from.intervalNanos[closest] != intervalNanos[i]) {
+                used = (long) Math.ceil((double) used * limits[i] / from.limits[closest]);
+            }
+            ret[i] = (now / intervalNanos[i]) * bases[i] + Math.min(used, limits[i]);
+        }
+        return ret;
+    }
+
+    /**
+     * @return the first time limit that does not have the permits left, or null.
+     */
+    @Nullable
+    LimitPerTimeSpec check(@NotNull long[] record, long now, long permits) {
+        for (int i=0; i<specs.length; i++) {
+            if (used(record, i, now) + permits > limits[i]) {
+                return specs[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * All or nothing: checks all first, otherwise we'd consume some until one says no.
+     * @return the first time limit that does not have the permits left, or null if consumed.
+     */
+    @Nullable
+    LimitPerTimeSpec consume(@NotNull long[] record, long now, long permits) {
+        LimitPerTimeSpec spec = check(record, now, permits);
+        if (spec != null) {
+            return spec;
+        }
+        for (int i=0; i<specs.length; i++) {
+            record[i] = (now / intervalNanos[i]) * bases[i] + used(record, i, now) + permits;
+        }
+        return null;
+    }
+
+    /**
+     * @return the nanos until the last of the time limits that don't have the permits starts a new interval.
+     */
+    long waitNanos(@NotNull long[] record, long now, long permits) {
+        long waitNanos = 0;
+        for (int i=0; i<specs.length; i++) {
+            if (used(record, i, now) + permits > limits[i]) {
+                waitNanos = Math.max(waitNanos, intervalNanos[i] - now % intervalNanos[i]);
+            }
+        }
+        return waitNanos;
+    }
+
+    /**
+     * Copies the counts of the current intervals, for a {@link LimitPerTimeSnapshot}. Per time limit that is used,
+     * 4 longs: the limit, the time amount in millis, the permits remaining, and the end of the interval in
+     * {@link System#currentTimeMillis()} terms.
+     * @param rows at least {@code 4 * size()} long.
+     * @return the number of time limits copied.
+     */
+    int export(@NotNull long[] record, long now, long nowMillis, @NotNull long[] rows) {
+        int n = 0;
+        for (int i=0; i<specs.length; i++) {
+            long used = used(record, i, now);
+            if (used > 0) {
+                rows[n*4] = limits[i];
+                rows[n*4 + 1] = specs[i].getTimeAmountInMillis();
+                rows[n*4 + 2] = limits[i] - used;
+                rows[n*4 + 3] = nowMillis + TimeUnit.NANOSECONDS.toMillis(intervalNanos[i] - now % intervalNanos[i]);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Adds used permits of a {@link LimitPerTimeSnapshot} to the current interval of the time limit with the same
+     * time amount, capped at its limit.
+     * @return false if there is no such time limit.
+     */
+    boolean add(@NotNull long[] record, long now, long timeAmountMillis, long used) {
+        for (int i=0; i<specs.length; i++) {
+            if (specs[i].getTimeAmountInMillis() == timeAmountMillis) {
+                record[i] = (now / intervalNanos[i]) * bases[i] + Math.min(limits[i], used(record, i, now) + used);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the record was not used in the current interval of any of the time limits.
+     */
+    boolean isStale(@NotNull long[] record, long now) {
+        for (int i=0; i<specs.length; i++) {
+            if (record[i] / bases[i] >= now / intervalNanos[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private long used(long[] record, int i, long now) {
+        return (record[i] / bases[i] == now / intervalNanos[i]) ? record[i] % bases[i] : 0;
+    }
+
+}
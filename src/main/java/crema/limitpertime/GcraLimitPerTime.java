@@ -0,0 +1,308 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Impl with just one limit using the {@link LimitPerTimeSpec.Algorithm#GCRA generic cell rate algorithm}.
+ *
+ * <p>This is a token bucket that holds {@code limit} tokens and regains one every {@code timeAmount / limit}.
+ * Instead of a token count it remembers per key one "theoretical arrival time" (TAT): the time when the
+ * bucket of that key will be full again. A consumption is permitted if it does not push the TAT further than
+ * one time amount into the future.</p>
+ *
+ * <p>Implementation detail:
+ * One {@link AtomicLong} per key in {@link System#nanoTime()} terms, updated with compare-and-set.
+ * No timer, no clearing, and no allocation except on the first use of a key.
+ * Long keys, also the boxed ones, keep their TAT in a {@link ConcurrentLongLongMap} without any allocation,
+ * updated with compare-and-set as well. Only the first use of a long key, and the expunge, take the monitor of
+ * its stripe.
+ * </p>
+ *
+ * <p>Keys whose TAT has passed are full, they stay in the map until {@link #expungeStaleEntries()} is called.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+class GcraLimitPerTime implements LockableLimit, KeyCounted, Waitable {
+
+    /**
+     * Marks a counter that was removed from the map.
+     */
+    private static final long DEAD = Long.MIN_VALUE;
+
+    @NotNull
+    private final LimitPerTimeSpec spec;
+    /**
+     * The time for regaining one token.
+     */
+    private final long emissionIntervalNanos;
+    private final long intervalNanos;
+    private final long origin;
+    private final ConcurrentMap<Object,AtomicLong> arrivalTimes;
+    private final ConcurrentLongLongMap longArrivalTimes;
+
+    protected GcraLimitPerTime(long limit, long timeAmount, @NotNull TimeUnit timeUnit) {
+        this(new LimitPerTimeSpec(limit, timeAmount, timeUnit, LimitPerTimeSpec.Algorithm.GCRA));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the limit is higher than the number of nanoseconds in the time amount.
+     */
+    protected GcraLimitPerTime(@NotNull LimitPerTimeSpec spec) {
+        this.spec = spec;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(spec.getTimeAmountInMillis());
+        this.emissionIntervalNanos = intervalNanos / spec.getLimit();
+        if (emissionIntervalNanos == 0) {
+            throw new IllegalArgumentException("Limit too high for the time interval: "+spec+"!");
+        }
+        this.origin = System.nanoTime();
+        this.arrivalTimes = new ConcurrentHashMap<>();
+        this.longArrivalTimes = new ConcurrentLongLongMap();
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key) {
+        return consume(key, 1);
+    }
+
+    /**
+     * Pushes the TAT by {@code permits} emission intervals at once.
+     */
+    @Override
+    public boolean consume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        if (permits > spec.getLimit()) {
+            return false;
+        }
+        if (key instanceof Long) {
+            return consumeLong((Long) key, permits);
+        }
+        long increment = permits * emissionIntervalNanos;
+        while (true) {
+            AtomicLong arrivalTime = arrivalTimes.get(key);
+            if (arrivalTime==null) {
+                arrivalTime = arrivalTimes.putIfAbsent(key, new AtomicLong(now() + increment));
+                if (arrivalTime==null) {
+                    return true;
+                }
+            }
+            while (true) {
+                long tat = arrivalTime.get();
+                if (tat == DEAD) {
+                    arrivalTimes.remove(key, arrivalTime); //help the one who expunges it, then try again.
+                    break;
+                }
+                long now = now();
+                long newTat = Math.max(tat, now) + increment;
+                if (newTat - now > intervalNanos) {
+                    return false;
+                }
+                if (arrivalTime.compareAndSet(tat, newTat)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * An absent key reads as TAT 0, which is in the past, and that's a full bucket.
+     */
+    @Override
+    public boolean consume(long key) {
+        return consumeLong(key, 1);
+    }
+
+    private boolean consumeLong(long key, long permits) {
+        long increment = permits * emissionIntervalNanos;
+        while (true) {
+            long tat = longArrivalTimes.get(key, ConcurrentLongLongMap.NONE);
+            long now = now();
+            long newTat = Math.max(tat, now) + increment;
+            if (newTat - now > intervalNanos) {
+                return false;
+            }
+            if (tat == ConcurrentLongLongMap.NONE ? longArrivalTimes.putIfAbsent(key, newTat)
+                                                  : longArrivalTimes.replace(key, tat, newTat)) {
+                return true;
+            }
+        }
+    }
+
+    @Override @Nullable
+    public LimitPerTimeSpec consumeOrSpec(@NotNull Object key) {
+        if (consume(key)) {
+            return null;
+        } else {
+            return spec;
+        }
+    }
+
+    @NotNull @Override
+    public BitSet consumeAll(@NotNull Collection<?> keys) {
+        return Util.consumeEach(this, keys);
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key) {
+        return canConsume(key, 1);
+    }
+
+    @Override
+    public boolean canConsume(long key) {
+        return canConsumeLong(key, 1);
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        if (permits > spec.getLimit()) {
+            return false;
+        }
+        if (key instanceof Long) {
+            return canConsumeLong((Long) key, permits);
+        }
+        AtomicLong arrivalTime = arrivalTimes.get(key);
+        if (arrivalTime==null) {
+            return true;
+        }
+        long tat = arrivalTime.get();
+        long now = now();
+        return tat == DEAD || Math.max(tat, now) + permits * emissionIntervalNanos - now <= intervalNanos;
+    }
+
+    private boolean canConsumeLong(long key, long permits) {
+        long now = now();
+        return Math.max(longArrivalTimes.get(key, 0), now) + permits * emissionIntervalNanos - now <= intervalNanos;
+    }
+
+    @Override @Nullable
+    public LimitPerTimeSpec canConsumeOrSpec(@NotNull Object key) {
+        if (canConsume(key)) {
+            return null;
+        } else {
+            return spec;
+        }
+    }
+
+    /**
+     * There is nothing to lock: the state only changes by consumptions, and those are atomic per key.
+     * {@link MultiLimitPerTime} already serializes its calls per key.
+     */
+    @Override
+    public void lock() {
+    }
+
+    @Override
+    public void unlock() {
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec lockedCanConsumeOrSpec(@NotNull Object key) {
+        return canConsumeOrSpec(key);
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec lockedCanConsumeOrSpec(long key) {
+        return canConsume(key) ? null : spec;
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec lockedCanConsumeOrSpec(@NotNull Object key, long permits) {
+        return canConsume(key, permits) ? null : spec;
+    }
+
+    @Override
+    public void doConsume(@NotNull Object key) {
+        if (!consume(key)) {
+            throw new IllegalStateException("Cannot consume, check with canConsume() first!");
+        }
+    }
+
+    @Override
+    public void doConsume(long key) {
+        if (!consume(key)) {
+            throw new IllegalStateException("Cannot consume, check with canConsume() first!");
+        }
+    }
+
+    @Override
+    public void doConsume(@NotNull Object key, long permits) {
+        if (!consume(key, permits)) {
+            throw new IllegalStateException("Cannot consume, check with canConsume() first!");
+        }
+    }
+
+    /**
+     * Removes the keys whose bucket is full again. Does not block consumers, except the ones of the long keys of a
+     * stripe with such keys, while it is rebuilt.
+     * @return the number of removed keys.
+     */
+    public int expungeStaleEntries() {
+        long now = now();
+        int removed = 0;
+        for (Map.Entry<Object,AtomicLong> entry : arrivalTimes.entrySet()) {
+            AtomicLong arrivalTime = entry.getValue();
+            long tat = arrivalTime.get();
+            //only if still full: a concurrent consumer either wins before, or sees DEAD after.
+            if (tat != DEAD && tat <= now && arrivalTime.compareAndSet(tat, DEAD)) {
+                arrivalTimes.remove(entry.getKey(), arrivalTime);
+                removed++;
+            }
+        }
+        removed += longArrivalTimes.removeValuesBelow(now + 1);
+        return removed;
+    }
+
+    @Override
+    public void destroy() {
+        arrivalTimes.clear();
+        longArrivalTimes.clear();
+    }
+
+    /**
+     * The time until enough tokens are regained: when the TAT is no more than one time amount ahead after adding
+     * the permits.
+     */
+    @Override
+    public long millisUntil(@NotNull Object key, long permits) {
+        long tat;
+        if (key instanceof Long) {
+            tat = longArrivalTimes.get((Long) key, 0);
+        } else {
+            AtomicLong arrivalTime = arrivalTimes.get(key);
+            tat = (arrivalTime==null) ? 0 : arrivalTime.get();
+            if (tat == DEAD) {
+                tat = 0;
+            }
+        }
+        return Util.millisUntil(origin + tat + permits * emissionIntervalNanos - intervalNanos);
+    }
+
+    @Override
+    public int getKeyCount() {
+        return arrivalTimes.size() + longArrivalTimes.size();
+    }
+
+    @NotNull @Override
+    public List<LimitPerTimeSpec> getSpec() {
+        return Collections.singletonList(spec);
+    }
+
+    /**
+     * Relative to the creation, so that the values stay far away from overflow and from {@link #DEAD}.
+     */
+    private long now() {
+        return System.nanoTime() - origin;
+    }
+
+}
@@ -0,0 +1,217 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link RefillScheduler} that runs all tasks on one daemon thread using a hashed timing wheel.
+ *
+ * <p>The wheel has a fixed number of buckets, each covering one tick. A task is put into the bucket of
+ * its deadline, plus the number of full wheel rounds to wait. Per tick only one bucket is looked at.
+ * Therefore thousands of limits cost one thread, and scheduling is O(1).</p>
+ *
+ * <p>The precision is one tick: a task runs at its deadline or up to one tick later, never earlier.</p>
+ *
+ * <p>The thread is started on the first {@link #schedule}, and it ends by itself once no task is
+ * scheduled anymore. Therefore there is no need to shut it down.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+public class HashedWheelRefillScheduler implements RefillScheduler {
+
+    private static final HashedWheelRefillScheduler DEFAULT = new HashedWheelRefillScheduler(10, TimeUnit.MILLISECONDS, 512);
+
+    /**
+     * The instance used by all limits that were not given a scheduler explicitly.
+     * Ticks every 10 milliseconds.
+     */
+    public static HashedWheelRefillScheduler getDefault() {
+        return DEFAULT;
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+
+    /**
+     * New tasks go here first, the worker moves them into the wheel. This way only the worker thread
+     * touches the wheel.
+     */
+    private final Queue<WheelTask> pending = new ConcurrentLinkedQueue<>();
+
+    private final Object lifecycleLock = new Object();
+    /**
+     * Guarded by lifecycleLock. Null when no thread is running.
+     */
+    private Thread worker;
+
+    /**
+     * Only touched by the worker thread.
+     */
+    private int scheduledCount;
+
+    /**
+     * @param tickDuration the granularity. Smaller is more precise, larger costs fewer wake-ups.
+     * @param timeUnit not smaller than milliseconds.
+     * @param ticksPerWheel number of buckets, rounded up to a power of 2.
+     *                      Tasks with a longer period than {@code tickDuration * ticksPerWheel} just wait for
+     *                      multiple rounds.
+     */
+    public HashedWheelRefillScheduler(long tickDuration, @NotNull TimeUnit timeUnit, int ticksPerWheel) {
+        Util.checkTime(tickDuration);
+        Util.checkTimeUnit(timeUnit);
+        if (ticksPerWheel < 1 || ticksPerWheel > (1 << 20)) {
+            throw new IllegalArgumentException("ticksPerWheel must be in 1-"+(1 << 20)+" but was: "+ticksPerWheel+"!");
+        }
+        this.tickNanos = timeUnit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel) size <<= 1;
+        this.wheel = new Bucket[size];
+        for (int i=0; i<size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+    }
+
+    @NotNull
+    @Override
+    public Registration schedule(@NotNull Runnable task, long initialDelay, long period, @NotNull TimeUnit timeUnit) {
+        if (initialDelay < 0) {
+            throw new IllegalArgumentException("Initial delay must be >=0 but was: "+initialDelay+"!");
+        }
+        Util.checkTime(period);
+        WheelTask wheelTask = new WheelTask(task, System.nanoTime() + timeUnit.toNanos(initialDelay), timeUnit.toNanos(period));
+        synchronized (lifecycleLock) {
+            pending.add(wheelTask);
+            if (worker == null) {
+                worker = new Thread(new Worker(), "RefillScheduler-HashedWheel");
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+        return wheelTask;
+    }
+
+
+    /**
+     * The tasks of one tick. A class of its own, generic arrays can't be created.
+     */
+    private static final class Bucket {
+        private final List<WheelTask> tasks = new ArrayList<>();
+    }
+
+    private static class WheelTask implements Registration {
+        private final Runnable task;
+        private final long periodNanos;
+        private long deadline;
+        private long remainingRounds;
+        private volatile boolean cancelled;
+
+        private WheelTask(Runnable task, long deadline, long periodNanos) {
+            this.task = task;
+            this.deadline = deadline;
+            this.periodNanos = periodNanos;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+
+    private class Worker implements Runnable {
+        private final long startTime = System.nanoTime();
+        private long tick = 0;
+
+        @Override
+        public void run() {
+            while (true) {
+                if (!waitForNextTick()) {
+                    continue;
+                }
+                transferPending();
+                expire(wheel[(int) (tick & mask)].tasks, System.nanoTime());
+                tick++;
+                if (scheduledCount == 0) {
+                    synchronized (lifecycleLock) {
+                        if (pending.isEmpty()) {
+                            worker = null;
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return false if interrupted before the tick was reached.
+         */
+        private boolean waitForNextTick() {
+            long deadline = startTime + tickNanos * (tick + 1);
+            while (true) {
+                long sleepNanos = deadline - System.nanoTime();
+                if (sleepNanos <= 0) {
+                    return true;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    //this thread is private, nobody is supposed to interrupt it. keep ticking.
+                    return false;
+                }
+            }
+        }
+
+        private void transferPending() {
+            WheelTask wheelTask;
+            while ((wheelTask = pending.poll()) != null) {
+                if (wheelTask.cancelled) {
+                    continue;
+                }
+                long calculated = Math.max(0, wheelTask.deadline - startTime) / tickNanos;
+                wheelTask.remainingRounds = (calculated - tick) / wheel.length;
+                long ticks = Math.max(calculated, tick); //never schedule in the past
+                wheel[(int) (ticks & mask)].tasks.add(wheelTask);
+                scheduledCount++;
+            }
+        }
+
+        private void expire(List<WheelTask> bucket, long now) {
+            int kept = 0;
+            for (int i=0; i<bucket.size(); i++) {
+                WheelTask wheelTask = bucket.get(i);
+                if (wheelTask.cancelled) {
+                    scheduledCount--;
+                } else if (wheelTask.remainingRounds > 0 || wheelTask.deadline > now) {
+                    wheelTask.remainingRounds--;
+                    bucket.set(kept++, wheelTask);
+                } else {
+                    scheduledCount--;
+                    run(wheelTask);
+                    if (!wheelTask.cancelled) {
+                        wheelTask.deadline += wheelTask.periodNanos;
+                        pending.add(wheelTask); //picked up with the next tick
+                    }
+                }
+            }
+            bucket.subList(kept, bucket.size()).clear();
+        }
+
+        private void run(WheelTask wheelTask) {
+            try {
+                wheelTask.task.run();
+            } catch (RuntimeException | Error e) {
+                //one failing task must not stop the refills of all others.
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+    }
+
+}
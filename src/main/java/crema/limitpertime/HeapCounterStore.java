@@ -0,0 +1,71 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The default {@link CounterStore}: a {@link HashMap} for the object keys, and a {@link LongLongHashMap}
+ * for the long keys (including the boxed ones).
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+class HeapCounterStore implements CounterStore {
+
+    private final Map<Object,Long> counters = new HashMap<>();
+    private final LongLongHashMap longCounters = new LongLongHashMap();
+    private long intervalStart = System.currentTimeMillis();
+
+    @Override
+    public long get(@NotNull Object key, long absent) {
+        if (key instanceof Long) {
+            return longCounters.get((Long) key, absent);
+        }
+        Long counter = counters.get(key);
+        return counter==null ? absent : counter;
+    }
+
+    @Override
+    public void put(@NotNull Object key, long value) {
+        if (key instanceof Long) {
+            longCounters.put((Long) key, value);
+        } else {
+            counters.put(key, value);
+        }
+    }
+
+    @Override
+    public long get(long key, long absent) {
+        return longCounters.get(key, absent);
+    }
+
+    @Override
+    public void put(long key, long value) {
+        longCounters.put(key, value);
+    }
+
+    @Override
+    public int size() {
+        return counters.size() + longCounters.size();
+    }
+
+    @Override
+    public void clear() {
+        counters.clear();
+        longCounters.clear();
+        intervalStart = System.currentTimeMillis();
+    }
+
+    @Override
+    public long getIntervalStartMillis() {
+        return intervalStart;
+    }
+
+    @Override
+    public void close() {
+        counters.clear();
+        longCounters.clear();
+    }
+
+}
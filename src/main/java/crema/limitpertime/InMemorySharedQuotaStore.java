@@ -0,0 +1,118 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The reference {@link SharedQuotaStore}: holds the quotas in this process.
+ *
+ * <p>For tests of the leasing, and for sharing one quota between several limit instances in one process.
+ * One entry per time limit and key, it is reused for the next window. Entries of keys that are not used
+ * anymore stay until {@link #expungeStaleEntries()} is called.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+public class InMemorySharedQuotaStore implements SharedQuotaStore {
+
+    private final ConcurrentMap<QuotaKey,Quota> quotas = new ConcurrentHashMap<>();
+
+    @Override
+    public long take(@NotNull LimitPerTimeSpec spec, @NotNull Object key, long window, long permits) {
+        Util.checkPermits(permits);
+        QuotaKey quotaKey = new QuotaKey(spec, key);
+        Quota quota = quotas.get(quotaKey);
+        if (quota==null) {
+            Quota fresh = new Quota();
+            quota = quotas.putIfAbsent(quotaKey, fresh);
+            if (quota==null) {
+                quota = fresh;
+            }
+        }
+        synchronized (quota) {
+            if (quota.window != window) {
+                if (quota.window > window) {
+                    return 0; //a late caller, that window is over.
+                }
+                quota.window = window;
+                quota.used = 0;
+            }
+            long taken = Math.min(permits, spec.getLimit() - quota.used);
+            quota.used += taken;
+            return taken;
+        }
+    }
+
+    @Override
+    public long available(@NotNull LimitPerTimeSpec spec, @NotNull Object key, long window) {
+        Quota quota = quotas.get(new QuotaKey(spec, key));
+        if (quota==null) {
+            return spec.getLimit();
+        }
+        synchronized (quota) {
+            if (quota.window > window) {
+                return 0;
+            }
+            return quota.window == window ? spec.getLimit() - quota.used : spec.getLimit();
+        }
+    }
+
+    /**
+     * Removes the entries whose window is over.
+     * @return the number of removed entries.
+     */
+    public int expungeStaleEntries() {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for (Map.Entry<QuotaKey,Quota> entry : quotas.entrySet()) {
+            Quota quota = entry.getValue();
+            synchronized (quota) {
+                //a concurrent take on a removed entry is lost, it was for a window that just ended.
+                if (quota.window < now / entry.getKey().spec.getTimeAmountInMillis()
+                        && quotas.remove(entry.getKey(), quota)) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return the number of entries.
+     */
+    public int size() {
+        return quotas.size();
+    }
+
+
+    private static final class Quota {
+        private long window = Long.MIN_VALUE;
+        private long used;
+    }
+
+    private static final class QuotaKey {
+        private final LimitPerTimeSpec spec;
+        private final Object key;
+
+        private QuotaKey(LimitPerTimeSpec spec, Object key) {
+            this.spec = spec;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            QuotaKey that = (QuotaKey) o;
+            return spec.equals(that.spec) && key.equals(that.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * spec.hashCode() + key.hashCode();
+        }
+    }
+
+}
@@ -0,0 +1,579 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Wraps a limit and writes each consumption to a journal on disk, so that the counts survive a crash.
+ *
+ * <p>For limits that matter for billing: with {@link Durability#SYNC} a consumption returns only once it is on disk.
+ * On creation, the journal of the last run is replayed into the limit.</p>
+ *
+ * <p>Group commit: the consumptions of all threads are collected into a batch, and one writer thread writes and
+ * syncs a batch at a time. While it syncs, the next batch fills up. A consumer therefore waits for about one or two
+ * syncs, no matter how many others are waiting, and the number of syncs per second stays the same under load.</p>
+ *
+ * <p>Recovery restores the used count of each key per time limit, the way a {@link LimitPerTimeSnapshot} is read:
+ * the journaled permits of the last time amount are added to the current interval, capped at the limit. That is
+ * conservative, a permit that was consumed in an interval that is over by now can count in the current one, but
+ * none is lost. Supported by the limits that support snapshots, and by single limits.</p>
+ *
+ * <p>The keys must be {@link String}s, {@link Long}s or {@link Integer}s. A consumption that was granted but could
+ * not be journaled throws an {@link IllegalStateException}, the permits are consumed anyway.</p>
+ *
+ * <p>Implementation detail:
+ * The journal is two files that take turns, each starting with a header (magic, creation time). The writer
+ * switches to the other file, and empties it, when the current one is older than the longest time amount: the other
+ * one only has older entries then, the journal stays bounded. A batch is written as its length, its CRC32 and the
+ * entries; an entry is the time, the permits, and the key (see {@link KeyCodec}). A batch that was cut off by a
+ * crash fails the length or the checksum, it and everything after it is dropped on recovery.
+ * </p>
+ *
+ * @see LimitsPerTime#journaled(LimitPerTime, Path)
+ * @author Alexei Arshavin, Optimaize
+ */
+public class JournaledLimitPerTime implements ExtendedLimitPerTime, Waitable {
+
+    public enum Durability {
+        /**
+         * A consumption returns once it is synced to disk. Nothing that was granted is lost.
+         */
+        SYNC,
+        /**
+         * A consumption returns right away, the writer syncs in the background. A crash loses the last batch.
+         */
+        ASYNC
+    }
+
+    private static final int MAGIC = 0x4C50544A; //LPTJ
+    private static final int HEADER_BYTES = 4 + 8;
+    private static final int FRAME_BYTES = 4 + 4;
+    private static final int ENTRY_BYTES = 8 + 8;
+    private static final int INITIAL_BATCH_BYTES = 64 * 1024;
+    private static final String[] FILES = {"journal-0.lpt", "journal-1.lpt"};
+
+    @NotNull
+    private final ExtendedLimitPerTime delegate;
+    @NotNull
+    private final Durability durability;
+    private final long segmentMillis;
+    private final FileChannel[] channels = new FileChannel[FILES.length];
+    /**
+     * The distinct time amounts of the limit, and the highest limit per time amount.
+     */
+    private final long[] timeAmounts;
+    private final long[] limits;
+    private final long restored;
+
+    //only used by the writer thread after construction:
+    private int current;
+    private long segmentStart;
+    private ByteBuffer writing = ByteBuffer.allocate(INITIAL_BATCH_BYTES);
+    private final ByteBuffer frame = ByteBuffer.allocate(FRAME_BYTES);
+    private final CRC32 crc = new CRC32();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasData = lock.newCondition();
+    private final Condition synced = lock.newCondition();
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BATCH_BYTES);
+    private long appended = 0;
+    private long durable = 0;
+    private long syncs = 0;
+    private boolean closed = false;
+    private boolean writerDone = false;
+    @Nullable
+    private IOException failure = null;
+    private final Thread writer;
+
+    /**
+     * Replays the journal in the directory, if there is one, into the limit.
+     * @param delegate with at least one time limit, that supports snapshots or has just one.
+     */
+    JournaledLimitPerTime(@NotNull LimitPerTime delegate, @NotNull Path directory, @NotNull Durability durability) throws IOException {
+        List<LimitPerTimeSpec> specs = delegate.getSpec();
+        if (specs.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to journal, the limit has no time limits!");
+        }
+        if (specs.size() > 1 && !(snapshotTarget(delegate) instanceof Snapshottable)) {
+            throw new IllegalArgumentException("Limit can't be journaled, it has several time limits and does not support snapshots: "+delegate.getClass().getSimpleName()+"!");
+        }
+        Map<Long,Long> byTimeAmount = new TreeMap<>();
+        for (LimitPerTimeSpec spec : specs) {
+            Long before = byTimeAmount.get(spec.getTimeAmountInMillis());
+            byTimeAmount.put(spec.getTimeAmountInMillis(), Math.max(spec.getLimit(), before == null ? 0 : before));
+        }
+        this.timeAmounts = new long[byTimeAmount.size()];
+        this.limits = new long[byTimeAmount.size()];
+        int t = 0;
+        for (Map.Entry<Long,Long> entry : byTimeAmount.entrySet()) {
+            timeAmounts[t] = entry.getKey();
+            limits[t] = entry.getValue();
+            t++;
+        }
+        long longest = timeAmounts[timeAmounts.length - 1];
+        this.delegate = LimitsPerTime.extended(delegate);
+        this.durability = durability;
+        this.segmentMillis = longest;
+        Files.createDirectories(directory);
+        long[] created = new long[FILES.length];
+        try {
+            for (int i=0; i<FILES.length; i++) {
+                channels[i] = FileChannel.open(directory.resolve(FILES[i]),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                created[i] = readHeader(channels[i], directory.resolve(FILES[i]));
+            }
+            long now = System.currentTimeMillis();
+            int newer = created[1] > created[0] ? 1 : 0;
+            Map<Object,long[]> used = new HashMap<>();
+            for (int i : new int[]{1 - newer, newer}) {
+                if (created[i] >= 0) {
+                    read(channels[i], now, used);
+                }
+            }
+            this.restored = restore(used, now);
+            if (created[newer] >= 0) {
+                current = newer;
+                segmentStart = created[newer];
+                channels[current].position(channels[current].size());
+            } else {
+                current = 1 - newer;
+                rotate(now);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeChannels();
+            throw e;
+        }
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "LimitPerTime-Journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key) {
+        return consume(key, 1);
+    }
+
+    @Override
+    public boolean consume(long key) {
+        return consume(Long.valueOf(key), 1);
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key, long permits) {
+        byte[] utf8 = checkKey(key);
+        if (!delegate.consume(key, permits)) {
+            return false;
+        }
+        awaitDurable(append(key, utf8, permits));
+        return true;
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec consumeOrSpec(@NotNull Object key) {
+        byte[] utf8 = checkKey(key);
+        LimitPerTimeSpec spec = delegate.consumeOrSpec(key);
+        if (spec == null) {
+            awaitDurable(append(key, utf8, 1));
+        }
+        return spec;
+    }
+
+    /**
+     * Journals the consumed keys in one go, and waits once.
+     */
+    @NotNull @Override
+    public BitSet consumeAll(@NotNull Collection<?> keys) {
+        byte[][] utf8 = new byte[keys.size()][];
+        int i = 0;
+        for (Object key : keys) {
+            utf8[i++] = checkKey(key);
+        }
+        BitSet consumed = delegate.consumeAll(keys);
+        long last = 0;
+        i = 0;
+        for (Object key : keys) {
+            if (consumed.get(i)) {
+                last = append(key, utf8[i], 1);
+            }
+            i++;
+        }
+        if (last > 0) {
+            awaitDurable(last);
+        }
+        return consumed;
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key) {
+        return delegate.canConsume(key);
+    }
+
+    @Override
+    public boolean canConsume(long key) {
+        return delegate.canConsume(key);
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key, long permits) {
+        return delegate.canConsume(key, permits);
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec canConsumeOrSpec(@NotNull Object key) {
+        return delegate.canConsumeOrSpec(key);
+    }
+
+    @Override
+    public long millisUntil(@NotNull Object key, long permits) {
+        return (delegate instanceof Waitable) ? ((Waitable) delegate).millisUntil(key, permits) : -1;
+    }
+
+    /**
+     * Writes what is pending, stops the writer thread, closes the journal and destroys the limit.
+     */
+    @Override
+    public void destroy() {
+        lock.lock();
+        try {
+            closed = true;
+            hasData.signal();
+        } finally {
+            lock.unlock();
+        }
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        closeChannels();
+        delegate.destroy();
+    }
+
+    @NotNull @Override
+    public List<LimitPerTimeSpec> getSpec() {
+        return delegate.getSpec();
+    }
+
+    /**
+     * @return the number of syncs to disk so far. Much lower than the number of consumptions under load.
+     */
+    public long getSyncCount() {
+        lock.lock();
+        try {
+            return syncs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of keys whose counts were restored from the journal on creation.
+     */
+    public long getRestoredKeyCount() {
+        return restored;
+    }
+
+
+    /**
+     * @return the UTF-8 bytes of a String key.
+     * @throws IllegalArgumentException if the key can't be journaled, before anything is consumed.
+     */
+    @Nullable
+    private static byte[] checkKey(@NotNull Object key) {
+        byte[] utf8 = KeyCodec.utf8(key);
+        if (KeyCodec.size(key, utf8) < 0) {
+            throw new IllegalArgumentException("Key can't be journaled: "+key.getClass().getName()+"!");
+        }
+        return utf8;
+    }
+
+    /**
+     * @return the sequence number of the entry.
+     */
+    private long append(@NotNull Object key, @Nullable byte[] utf8, long permits) {
+        int size = ENTRY_BYTES + KeyCodec.size(key, utf8);
+        lock.lock();
+        try {
+            checkWriter();
+            if (pending.remaining() < size) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + size));
+                pending.flip();
+                larger.put(pending);
+                pending = larger;
+            }
+            pending.putLong(System.currentTimeMillis()).putLong(permits);
+            KeyCodec.put(pending, key, utf8);
+            hasData.signal();
+            return ++appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void awaitDurable(long sequence) {
+        if (durability == Durability.ASYNC) {
+            return;
+        }
+        boolean interrupted = false;
+        lock.lock();
+        try {
+            while (durable < sequence) {
+                checkWriter();
+                try {
+                    synced.await();
+                } catch (InterruptedException e) {
+                    interrupted = true; //the permits are consumed already, finish the job.
+                }
+            }
+        } finally {
+            lock.unlock();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Must hold the lock.
+     */
+    private void checkWriter() {
+        if (failure != null) {
+            throw new IllegalStateException("Journal failed!", failure);
+        }
+        if (writerDone) {
+            throw new IllegalStateException("Journal is closed!");
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            ByteBuffer batch;
+            long sequence;
+            lock.lock();
+            try {
+                while (pending.position() == 0 && !closed) {
+                    hasData.awaitUninterruptibly();
+                }
+                if (pending.position() == 0) {
+                    writerDone = true;
+                    synced.signalAll();
+                    return;
+                }
+                batch = pending;
+                pending = writing;
+                writing = batch;
+                sequence = appended;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                batch.flip();
+                write(batch);
+                batch.clear();
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    failure = e;
+                    writerDone = true;
+                    synced.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            lock.lock();
+            try {
+                durable = sequence;
+                syncs++;
+                synced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes one batch with its length and checksum, and syncs.
+     */
+    private void write(@NotNull ByteBuffer batch) throws IOException {
+        long now = System.currentTimeMillis();
+        if (now - segmentStart >= segmentMillis) {
+            rotate(now);
+        }
+        crc.reset();
+        crc.update(batch.array(), batch.arrayOffset() + batch.position(), batch.remaining());
+        frame.clear();
+        frame.putInt(batch.remaining()).putInt((int) crc.getValue());
+        frame.flip();
+        FileChannel channel = channels[current];
+        ByteBuffer[] buffers = {frame, batch};
+        while (batch.hasRemaining()) {
+            channel.write(buffers);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Empties the other file and continues there.
+     */
+    private void rotate(long now) throws IOException {
+        int next = 1 - current;
+        FileChannel channel = channels[next];
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putLong(now);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.position(HEADER_BYTES);
+        channel.force(false);
+        current = next;
+        segmentStart = now;
+    }
+
+    /**
+     * @return the creation time of the file, or -1 if it is empty.
+     */
+    private static long readHeader(@NotNull FileChannel channel, @NotNull Path path) throws IOException {
+        if (channel.size() < HEADER_BYTES) {
+            return -1;
+        }
+        ByteBuffer header = readAt(channel, 0, HEADER_BYTES);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a journal: "+path+"!");
+        }
+        return header.getLong();
+    }
+
+    /**
+     * Sums up the permits of the entries in the file per key and time amount, for the entries younger than it,
+     * and cuts off a batch that is incomplete.
+     * @param used the sums per key, in the order of the {@link #timeAmounts}.
+     */
+    private void read(@NotNull FileChannel channel, long now, @NotNull Map<Object,long[]> used) throws IOException {
+        long size = channel.size();
+        long position = HEADER_BYTES;
+        while (position + FRAME_BYTES <= size) {
+            ByteBuffer frameHeader = readAt(channel, position, FRAME_BYTES);
+            int length = frameHeader.getInt();
+            int checksum = frameHeader.getInt();
+            if (length <= 0 || position + FRAME_BYTES + length > size) {
+                break;
+            }
+            ByteBuffer batch = readAt(channel, position + FRAME_BYTES, length);
+            CRC32 crc = new CRC32();
+            crc.update(batch.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            while (batch.hasRemaining()) {
+                long time = batch.getLong();
+                long permits = batch.getLong();
+                Object key = KeyCodec.get(batch);
+                if (now - time >= segmentMillis) {
+                    continue;
+                }
+                long[] sums = used.get(key);
+                if (sums == null) {
+                    sums = new long[timeAmounts.length];
+                    used.put(key, sums);
+                }
+                for (int i=0; i<timeAmounts.length; i++) {
+                    if (now - time < timeAmounts[i]) {
+                        sums[i] += permits;
+                    }
+                }
+            }
+            position += FRAME_BYTES + length;
+        }
+        channel.truncate(position);
+    }
+
+    /**
+     * Adds the used counts to the limit: per time limit, not as consumptions, since those are all or nothing and a
+     * full short time limit would reject what the longer ones must count.
+     * @return the number of keys restored.
+     */
+    private long restore(@NotNull Map<Object,long[]> used, long now) {
+        ExtendedLimitPerTime target = snapshotTarget(delegate);
+        long[] rows = new long[timeAmounts.length * 4];
+        for (Map.Entry<Object,long[]> entry : used.entrySet()) {
+            long[] sums = entry.getValue();
+            if (target instanceof Snapshottable) {
+                int n = 0;
+                for (int i=0; i<timeAmounts.length; i++) {
+                    if (sums[i] > 0) {
+                        rows[n*4] = limits[i];
+                        rows[n*4 + 1] = timeAmounts[i];
+                        rows[n*4 + 2] = limits[i] - Math.min(sums[i], limits[i]);
+                        rows[n*4 + 3] = now + timeAmounts[i];
+                        n++;
+                    }
+                }
+                ((Snapshottable) target).readSnapshot(entry.getKey(), rows, n);
+            } else {
+                //a single time limit: one consumption of all, capped, can't be rejected on a new limit.
+                target.consume(entry.getKey(), Math.min(sums[0], limits[0]));
+            }
+        }
+        return used.size();
+    }
+
+    @NotNull
+    private static ExtendedLimitPerTime snapshotTarget(@NotNull LimitPerTime limit) {
+        return (limit instanceof MeteredLimitPerTime) ? ((MeteredLimitPerTime) limit).getDelegate() : LimitsPerTime.extended(limit);
+    }
+
+    @NotNull
+    private static ByteBuffer readAt(@NotNull FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Journal is cut off!");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void closeChannels() {
+        for (FileChannel channel : channels) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    //nothing left to lose, the batches were synced.
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary form of the keys in a {@link LimitPerTimeSnapshot} and a {@link JournaledLimitPerTime}:
+ * a type byte, then the long, the int, or the UTF-8 length and bytes of a String. Other keys are not supported.
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+final class KeyCodec {
+
+    private static final byte LONG = 1;
+    private static final byte INT = 2;
+    private static final byte STRING = 3;
+
+    private KeyCodec() {
+    }
+
+    /**
+     * @return the UTF-8 bytes of a String key, null for the others.
+     */
+    @Nullable
+    static byte[] utf8(@NotNull Object key) {
+        return (key instanceof String) ? ((String) key).getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * @param utf8 from {@link #utf8}.
+     * @return the bytes it takes, or -1 if the key is not supported.
+     */
+    static int size(@NotNull Object key, @Nullable byte[] utf8) {
+        if (key instanceof Long) {
+            return 1 + 8;
+        } else if (key instanceof Integer) {
+            return 1 + 4;
+        } else if (utf8 != null) {
+            return 1 + 4 + utf8.length;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * @param key supported, see {@link #size}.
+     */
+    static void put(@NotNull ByteBuffer buffer, @NotNull Object key, @Nullable byte[] utf8) {
+        if (key instanceof Long) {
+            buffer.put(LONG).putLong((Long) key);
+        } else if (key instanceof Integer) {
+            buffer.put(INT).putInt((Integer) key);
+        } else {
+            buffer.put(STRING).putInt(utf8.length).put(utf8);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException on an unknown type.
+     */
+    @NotNull
+    static Object get(@NotNull ByteBuffer buffer) {
+        byte type = buffer.get();
+        switch (type) {
+            case LONG:
+                return buffer.getLong();
+            case INT:
+                return buffer.getInt();
+            case STRING:
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            default:
+                throw new IllegalArgumentException("Unknown key type: "+type+"!");
+        }
+    }
+
+}
@@ -0,0 +1,15 @@
+package crema.limitpertime;
+
+/**
+ * A limit that can tell how many keys it currently remembers, for the {@link LimitPerTimeMetrics}.
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+interface KeyCounted {
+
+    /**
+     * @return the number of keys in memory. Can include keys that are stale but not removed yet.
+     */
+    int getKeyCount();
+
+}
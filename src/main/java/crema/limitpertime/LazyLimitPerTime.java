@@ -0,0 +1,262 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Impl with just one limit that needs no timer at all.
+ *
+ * <p>Each counter remembers the window (epoch) it was last used in. The epoch is the number of whole time
+ * intervals passed since this object was created. A counter of an older epoch counts as unused, and is
+ * reset in place by the next consumption. Therefore there is no refill, no clearing of the map, and no
+ * latency spike at the end of a time interval.</p>
+ *
+ * <p>Implementation detail:
+ * The epoch and the used count are packed into one {@link AtomicLong} per key as
+ * {@code epoch * (limit+1) + used}, and updated with compare-and-set, same as in {@link ConcurrentLimitPerTime}.
+ * Because of that the limit can't be arbitrarily large for short time intervals, see the constructor.
+ * Long keys, also the boxed ones, keep the same packed value in a {@link StripedLongLongMap} without boxing.
+ * </p>
+ *
+ * <p>Keys that are not used anymore stay in the map until {@link #expungeStaleEntries()} is called.
+ * Memory wise it's therefore like a limit with an endless time interval unless that's done once in a while.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+class LazyLimitPerTime implements ExtendedLimitPerTime, KeyCounted, Waitable {
+
+    /**
+     * The number of time intervals that must fit into a long in the packed form.
+     */
+    private static final long MIN_LIFETIME_MILLIS = TimeUnit.DAYS.toMillis(100 * 365);
+
+    /**
+     * Marks a counter that was removed from the map.
+     */
+    private static final long DEAD = -1;
+
+    @NotNull
+    private final LimitPerTimeSpec spec;
+    private final long base;
+    private final long intervalNanos;
+    private final long origin;
+    private final ConcurrentMap<Object,AtomicLong> counters;
+    private final StripedLongLongMap longCounters;
+
+    protected LazyLimitPerTime(long limit, long timeAmount, @NotNull TimeUnit timeUnit) {
+        this(new LimitPerTimeSpec(limit, timeAmount, timeUnit));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the limit is so high for the time interval that the packed counter
+     *         would overflow within 100 years. Example: 1 millisecond allows a limit up to about 2.9 million.
+     */
+    protected LazyLimitPerTime(@NotNull LimitPerTimeSpec spec) {
+        this.spec = spec;
+        this.base = spec.getLimit() + 1;
+        long maxEpochs = MIN_LIFETIME_MILLIS / spec.getTimeAmountInMillis() + 1;
+        if (base > Long.MAX_VALUE / maxEpochs) {
+            throw new IllegalArgumentException("Limit too high for the time interval: "+spec+"!");
+        }
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(spec.getTimeAmountInMillis());
+        this.origin = System.nanoTime();
+        this.counters = new ConcurrentHashMap<>();
+        this.longCounters = new StripedLongLongMap();
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key) {
+        return consume(key, 1);
+    }
+
+    @Override
+    public boolean consume(long key) {
+        return consumeLong(key, 1);
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        if (permits > spec.getLimit()) {
+            return false;
+        }
+        if (key instanceof Long) {
+            return consumeLong((Long) key, permits);
+        }
+        long epoch = currentEpoch();
+        long fresh = epoch * base;
+        while (true) {
+            AtomicLong counter = counters.get(key);
+            if (counter==null) {
+                counter = counters.putIfAbsent(key, new AtomicLong(fresh + permits));
+                if (counter==null) {
+                    return true;
+                }
+            }
+            while (true) {
+                long state = counter.get();
+                if (state == DEAD) {
+                    counters.remove(key, counter); //help the one who expunges it, then try again.
+                    break;
+                }
+                long stateEpoch = state / base;
+                if (stateEpoch > epoch) {
+                    //another thread has seen a newer time interval already.
+                    epoch = currentEpoch();
+                    fresh = epoch * base;
+                    continue;
+                }
+                long used = (stateEpoch == epoch) ? state % base : 0;
+                if (used + permits > spec.getLimit()) {
+                    return false;
+                }
+                if (counter.compareAndSet(state, fresh + used + permits)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    @Override @Nullable
+    public LimitPerTimeSpec consumeOrSpec(@NotNull Object key) {
+        if (consume(key)) {
+            return null;
+        } else {
+            return spec;
+        }
+    }
+
+    @NotNull @Override
+    public BitSet consumeAll(@NotNull Collection<?> keys) {
+        return Util.consumeEach(this, keys);
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key) {
+        return canConsume(key, 1);
+    }
+
+    @Override
+    public boolean canConsume(long key) {
+        return canConsumeLong(key, 1);
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        if (permits > spec.getLimit()) {
+            return false;
+        }
+        if (key instanceof Long) {
+            return canConsumeLong((Long) key, permits);
+        }
+        AtomicLong counter = counters.get(key);
+        long state = (counter==null) ? DEAD : counter.get();
+        long used = (state == DEAD || state / base != currentEpoch()) ? 0 : state % base;
+        return used + permits <= spec.getLimit();
+    }
+
+    @Override @Nullable
+    public LimitPerTimeSpec canConsumeOrSpec(@NotNull Object key) {
+        if (canConsume(key)) {
+            return null;
+        } else {
+            return spec;
+        }
+    }
+
+    /**
+     * Removes the keys that were not used in the current time interval.
+     *
+     * <p>Does not block consumers, they may work on the same keys concurrently.
+     * It's up to the user to call this once in a while when the keys are many and short lived.</p>
+     *
+     * @return the number of removed keys.
+     */
+    public int expungeStaleEntries() {
+        long epoch = currentEpoch();
+        int removed = 0;
+        for (Iterator<Map.Entry<Object,AtomicLong>> it = counters.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Object,AtomicLong> entry = it.next();
+            AtomicLong counter = entry.getValue();
+            long state = counter.get();
+            //only if still stale: a concurrent consumer either wins before, or sees DEAD after.
+            if (state != DEAD && state / base < epoch && counter.compareAndSet(state, DEAD)) {
+                counters.remove(entry.getKey(), counter);
+                removed++;
+            }
+        }
+        removed += longCounters.removeValuesBelow(epoch * base);
+        return removed;
+    }
+
+    @Override
+    public void destroy() {
+        counters.clear();
+        longCounters.clear();
+    }
+
+    /**
+     * The time until the next interval starts, if the key can't consume now.
+     */
+    @Override
+    public long millisUntil(@NotNull Object key, long permits) {
+        if (canConsume(key, permits)) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        return Util.millisUntil(now + intervalNanos - (now - origin) % intervalNanos);
+    }
+
+    @Override
+    public int getKeyCount() {
+        return counters.size() + longCounters.size();
+    }
+
+    @NotNull @Override
+    public List<LimitPerTimeSpec> getSpec() {
+        return Collections.singletonList(spec);
+    }
+
+    /**
+     * An absent key reads as state 0, which is "nothing used in epoch 0", and that's what absent means.
+     */
+    private boolean consumeLong(long key, long permits) {
+        LongLongHashMap stripe = longCounters.stripe(key);
+        synchronized (stripe) {
+            long epoch = currentEpoch();
+            long state = stripe.get(key, 0);
+            long used = (state / base == epoch) ? state % base : 0;
+            if (used + permits > spec.getLimit()) {
+                return false;
+            }
+            stripe.put(key, epoch * base + used + permits);
+            return true;
+        }
+    }
+
+    private boolean canConsumeLong(long key, long permits) {
+        LongLongHashMap stripe = longCounters.stripe(key);
+        synchronized (stripe) {
+            long state = stripe.get(key, 0);
+            long used = (state / base == currentEpoch()) ? state % base : 0;
+            return used + permits <= spec.getLimit();
+        }
+    }
+
+    private long currentEpoch() {
+        return (System.nanoTime() - origin) / intervalNanos;
+    }
+
+}
@@ -0,0 +1,325 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Impl with just one fixed window limit whose quota is shared by a cluster of nodes through a {@link SharedQuotaStore}.
+ *
+ * <p>Each node leases chunks of a key's quota from the store and serves consumptions locally until the lease is used
+ * up, most calls therefore don't go to the store. Once the store says the quota is exhausted, the node rejects the key
+ * locally until the window is over.</p>
+ *
+ * <p>The limit is never exceeded over the cluster. The price of leasing is that leased permits which a node does not
+ * use are lost for the others: with {@code n} nodes, up to {@code n * (leaseSize - 1)} permits of a window can stay
+ * unused. A smaller lease size wastes less, a larger one makes fewer calls to the store.</p>
+ *
+ * <p>Implementation detail:
+ * One lease per key in a {@link ConcurrentHashMap}: the window, the permits left, and whether the store is exhausted.
+ * Calls for the same key synchronize on it, and while a lease is topped up the key waits for the store.
+ * The windows follow the wall clock, see {@link SharedQuotaStore}. Leases of past windows are removed at the end
+ * of each window by the {@link RefillScheduler}.
+ * In a {@link MultiLimitPerTime}, {@link #lockedCanConsumeOrSpec} already tops up the lease and remembers it for
+ * the thread, the following {@link #doConsume} takes from that lease and cannot fail: not even when the window is
+ * over in between, or the lease was removed meanwhile. The permits were taken from the store in the old window.
+ * </p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+class LeasingLimitPerTime implements LockableLimit, Refillable, KeyCounted, Waitable {
+
+    @NotNull
+    private final LimitPerTimeSpec spec;
+    @NotNull
+    private final SharedQuotaStore store;
+    private final long leaseSize;
+    private final long intervalMillis;
+    private final ConcurrentMap<Object,Lease> leases;
+    /**
+     * The lease that {@link #lockedCanConsumeOrSpec} topped up last, for {@link #doConsume}.
+     */
+    private final ThreadLocal<Lease> checked = new ThreadLocal<>();
+    private final RefillScheduler.Registration expungeRegistration;
+
+    /**
+     * @param leaseSize the permits to take from the store at once, at most the limit.
+     */
+    LeasingLimitPerTime(@NotNull LimitPerTimeSpec spec, @NotNull SharedQuotaStore store, long leaseSize, @NotNull RefillScheduler scheduler) {
+        if (spec.getAlgorithm() != LimitPerTimeSpec.Algorithm.FIXED_WINDOW) {
+            throw new IllegalArgumentException("Only fixed windows can be shared: "+spec+"!");
+        }
+        if (leaseSize < 1) {
+            throw new IllegalArgumentException("Lease size must be >=1 but was: "+leaseSize+"!");
+        }
+        this.spec = spec;
+        this.store = store;
+        this.leaseSize = Math.min(leaseSize, spec.getLimit());
+        this.intervalMillis = spec.getTimeAmountInMillis();
+        this.leases = new ConcurrentHashMap<>();
+        this.expungeRegistration = WeakRefillTask.schedule(scheduler, this, intervalMillis);
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key) {
+        return consume(key, 1);
+    }
+
+    @Override
+    public boolean consume(long key) {
+        return consume(Long.valueOf(key), 1);
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        if (permits > spec.getLimit()) {
+            return false;
+        }
+        Lease lease = lease(key);
+        synchronized (lease) {
+            if (!topUp(lease, key, permits)) {
+                return false;
+            }
+            lease.remaining -= permits;
+            return true;
+        }
+    }
+
+    @Override @Nullable
+    public LimitPerTimeSpec consumeOrSpec(@NotNull Object key) {
+        if (consume(key)) {
+            return null;
+        } else {
+            return spec;
+        }
+    }
+
+    @NotNull @Override
+    public BitSet consumeAll(@NotNull Collection<?> keys) {
+        return Util.consumeEach(this, keys);
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key) {
+        return canConsume(key, 1);
+    }
+
+    @Override
+    public boolean canConsume(long key) {
+        return canConsume(Long.valueOf(key), 1);
+    }
+
+    /**
+     * Does not lease, but asks the store if the local lease is not enough.
+     */
+    @Override
+    public boolean canConsume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        if (permits > spec.getLimit()) {
+            return false;
+        }
+        long window = currentWindow();
+        Lease lease = leases.get(key);
+        long remaining = 0;
+        if (lease != null) {
+            synchronized (lease) {
+                if (lease.window == window) {
+                    if (lease.remaining >= permits) {
+                        return true;
+                    }
+                    if (lease.exhausted) {
+                        return false;
+                    }
+                    remaining = lease.remaining;
+                }
+            }
+        }
+        return remaining + store.available(spec, key, window) >= permits;
+    }
+
+    @Override @Nullable
+    public LimitPerTimeSpec canConsumeOrSpec(@NotNull Object key) {
+        if (canConsume(key)) {
+            return null;
+        } else {
+            return spec;
+        }
+    }
+
+    /**
+     * There is nothing to lock: the leases are atomic per key.
+     * {@link MultiLimitPerTime} already serializes its calls per key.
+     */
+    @Override
+    public void lock() {
+    }
+
+    @Override
+    public void unlock() {
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec lockedCanConsumeOrSpec(@NotNull Object key) {
+        return lockedCanConsumeOrSpec(key, 1);
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec lockedCanConsumeOrSpec(long key) {
+        return lockedCanConsumeOrSpec(Long.valueOf(key), 1);
+    }
+
+    /**
+     * Tops up the lease, see class header.
+     */
+    @Nullable @Override
+    public LimitPerTimeSpec lockedCanConsumeOrSpec(@NotNull Object key, long permits) {
+        if (permits > spec.getLimit()) {
+            return spec;
+        }
+        Lease lease = lease(key);
+        synchronized (lease) {
+            if (!topUp(lease, key, permits)) {
+                return spec;
+            }
+        }
+        checked.set(lease);
+        return null;
+    }
+
+    @Override
+    public void doConsume(@NotNull Object key) {
+        doConsume(key, 1);
+    }
+
+    @Override
+    public void doConsume(long key) {
+        doConsume(Long.valueOf(key), 1);
+    }
+
+    @Override
+    public void doConsume(@NotNull Object key, long permits) {
+        Lease lease = checked.get();
+        checked.set(null);
+        if (lease == null || !lease.key.equals(key)) {
+            lease = lease(key);
+            synchronized (lease) {
+                if (!topUp(lease, key, permits)) {
+                    throw new IllegalStateException("Cannot consume, check with canConsume() first!");
+                }
+            }
+        }
+        synchronized (lease) {
+            //topped up by the check, and the key is locked since: the window is not checked again, see class header.
+            lease.remaining -= permits;
+        }
+    }
+
+    /**
+     * The time until the next window, if the key can't consume now.
+     */
+    @Override
+    public long millisUntil(@NotNull Object key, long permits) {
+        if (canConsume(key, permits)) {
+            return 0;
+        }
+        return intervalMillis - System.currentTimeMillis() % intervalMillis;
+    }
+
+    /**
+     * Removes the leases of past windows. Their unused permits are lost anyway.
+     */
+    @Override
+    public void refill() {
+        long window = currentWindow();
+        for (Map.Entry<Object,Lease> entry : leases.entrySet()) {
+            Lease lease = entry.getValue();
+            synchronized (lease) {
+                //a consumer that still holds a removed lease can at worst lease for nothing, never too much.
+                if (lease.window < window) {
+                    leases.remove(entry.getKey(), lease);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        expungeRegistration.cancel();
+        leases.clear();
+    }
+
+    @Override
+    public int getKeyCount() {
+        return leases.size();
+    }
+
+    @NotNull @Override
+    public List<LimitPerTimeSpec> getSpec() {
+        return Collections.singletonList(spec);
+    }
+
+
+    @NotNull
+    private Lease lease(@NotNull Object key) {
+        Lease lease = leases.get(key);
+        if (lease==null) {
+            Lease fresh = new Lease(key);
+            lease = leases.putIfAbsent(key, fresh);
+            if (lease==null) {
+                lease = fresh;
+            }
+        }
+        return lease;
+    }
+
+    /**
+     * Must hold the lock on the lease.
+     * @return true if the lease has the permits now.
+     */
+    private boolean topUp(@NotNull Lease lease, @NotNull Object key, long permits) {
+        long window = currentWindow();
+        if (lease.window != window) {
+            lease.window = window;
+            lease.remaining = 0;
+            lease.exhausted = false;
+        }
+        if (lease.remaining >= permits) {
+            return true;
+        }
+        if (lease.exhausted) {
+            return false;
+        }
+        long wanted = Math.max(permits - lease.remaining, leaseSize);
+        long taken = store.take(spec, key, window, wanted);
+        lease.remaining += taken;
+        if (taken < wanted) {
+            lease.exhausted = true;
+        }
+        return lease.remaining >= permits;
+    }
+
+    private long currentWindow() {
+        return System.currentTimeMillis() / intervalMillis;
+    }
+
+
+    private static final class Lease {
+        private final Object key;
+        private long window = Long.MIN_VALUE;
+        private long remaining;
+        private boolean exhausted;
+
+        private Lease(@NotNull Object key) {
+            this.key = key;
+        }
+    }
+
+}
@@ -31,6 +31,9 @@ import java.util.List;
  * <p>The ones that consumed within the current time interval are automatically cleared
  * at the end of the interval.</p>
  *
+ * <p>Long keys, permits and batches are in the {@link ExtendedLimitPerTime} that all the limits of
+ * {@link LimitsPerTime} implement. Implement just this one in your own limits.</p>
+ *
  * @author Alexei Arshavin, Optimaize
  */
 public interface LimitPerTime {
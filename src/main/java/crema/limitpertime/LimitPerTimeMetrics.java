@@ -0,0 +1,231 @@
+package crema.limitpertime;
+
+import com.google.common.collect.ImmutableMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what a {@link MeteredLimitPerTime} does: accepted and rejected consumptions, the rejections per
+ * time limit, the number of keys in memory, and the time the refills took.
+ *
+ * <p>The counters are striped, recording costs one uncontended atomic add. Reading sums them up, it's meant to
+ * be polled, through the getters or through JMX after {@link #registerMBean}.</p>
+ *
+ * <p>The rejections per spec count those where the spec that hit the limit is known: all rejections of a
+ * limit with one time limit, and those of {@code consume(key)} and {@code consumeOrSpec(key)} of the others.
+ * The refill times are only known for limits built with {@link LimitsPerTime.Builder#buildMetered()}.</p>
+ *
+ * <p>The most rejected keys are only tracked on request, see {@link #trackRejectedKeys(int)}.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+public class LimitPerTimeMetrics implements LimitPerTimeMetricsMXBean {
+
+    private final StripedCounter accepted = new StripedCounter();
+    private final StripedCounter rejected = new StripedCounter();
+    private final Map<LimitPerTimeSpec,StripedCounter> rejectedBySpec;
+    @Nullable
+    private final LimitPerTimeSpec onlySpec;
+    private final AtomicLong refillCount = new AtomicLong();
+    private final AtomicLong refillNanosTotal = new AtomicLong();
+    private final AtomicLong refillNanosMax = new AtomicLong();
+    @Nullable
+    private volatile KeyCounted keyCounted;
+    @Nullable
+    private volatile TopRejectedKeys topRejectedKeys;
+
+    LimitPerTimeMetrics(@NotNull List<LimitPerTimeSpec> specs) {
+        ImmutableMap.Builder<LimitPerTimeSpec,StripedCounter> builder = ImmutableMap.builder();
+        for (LimitPerTimeSpec spec : specs) {
+            builder.put(spec, new StripedCounter());
+        }
+        this.rejectedBySpec = builder.build();
+        this.onlySpec = specs.size()==1 ? specs.get(0) : null;
+    }
+
+    void setKeyCounted(@Nullable KeyCounted keyCounted) {
+        this.keyCounted = keyCounted;
+    }
+
+    void accepted() {
+        accepted.increment();
+    }
+
+    void accepted(long times) {
+        accepted.add(times);
+    }
+
+    /**
+     * @param spec the one that hit the limit, null if not known.
+     */
+    void rejected(@NotNull Object key, @Nullable LimitPerTimeSpec spec) {
+        rejected.increment();
+        TopRejectedKeys top = topRejectedKeys;
+        if (top != null) {
+            top.rejected(key);
+        }
+        if (spec == null) {
+            spec = onlySpec;
+        }
+        if (spec != null) {
+            StripedCounter counter = rejectedBySpec.get(spec);
+            if (counter != null) {
+                counter.increment();
+            }
+        }
+    }
+
+    void refilled(long nanos) {
+        refillCount.incrementAndGet();
+        refillNanosTotal.addAndGet(nanos);
+        while (true) {
+            long max = refillNanosMax.get();
+            if (nanos <= max || refillNanosMax.compareAndSet(max, nanos)) {
+                return;
+            }
+        }
+    }
+
+
+    @Override
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return 0 for a spec that is not part of the limit.
+     */
+    public long getRejected(@NotNull LimitPerTimeSpec spec) {
+        StripedCounter counter = rejectedBySpec.get(spec);
+        return counter==null ? 0 : counter.sum();
+    }
+
+    /**
+     * @return all specs of the limit, in their order.
+     */
+    @NotNull
+    public Map<LimitPerTimeSpec,Long> getRejectedBySpec() {
+        Map<LimitPerTimeSpec,Long> map = new LinkedHashMap<>();
+        for (Map.Entry<LimitPerTimeSpec,StripedCounter> entry : rejectedBySpec.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().sum());
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String,Long> getRejectedBySpecName() {
+        Map<String,Long> map = new LinkedHashMap<>();
+        for (Map.Entry<LimitPerTimeSpec,StripedCounter> entry : rejectedBySpec.entrySet()) {
+            map.put(entry.getKey().toString(), entry.getValue().sum());
+        }
+        return map;
+    }
+
+    /**
+     * @return -1 if the limit can't tell.
+     */
+    @Override
+    public int getKeyCount() {
+        KeyCounted k = keyCounted;
+        return k==null ? -1 : k.getKeyCount();
+    }
+
+    /**
+     * Starts to track the most rejected keys, see {@link TopRejectedKeys}. Can be turned on while running,
+     * for example during an incident. Replaces the tracked keys if it's on already.
+     * @param capacity the number of keys to keep, for example 100.
+     * @return the tracker, also available with {@link #getTopRejectedKeys()}.
+     */
+    @NotNull
+    public TopRejectedKeys trackRejectedKeys(int capacity) {
+        TopRejectedKeys top = new TopRejectedKeys(capacity);
+        topRejectedKeys = top;
+        return top;
+    }
+
+    public void stopTrackingRejectedKeys() {
+        topRejectedKeys = null;
+    }
+
+    /**
+     * @return null if not {@link #trackRejectedKeys tracking}.
+     */
+    @Nullable
+    public TopRejectedKeys getTopRejectedKeys() {
+        return topRejectedKeys;
+    }
+
+    @Override
+    public Map<String,Long> getTopRejectedKeyCounts() {
+        Map<String,Long> map = new LinkedHashMap<>();
+        TopRejectedKeys top = topRejectedKeys;
+        if (top != null) {
+            for (TopRejectedKeys.Entry entry : top.getTop(top.getCapacity())) {
+                map.put(String.valueOf(entry.getKey()), entry.getCount());
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public long getRefillCount() {
+        return refillCount.get();
+    }
+
+    @Override
+    public long getRefillNanosTotal() {
+        return refillNanosTotal.get();
+    }
+
+    @Override
+    public long getRefillNanosMax() {
+        return refillNanosMax.get();
+    }
+
+    /**
+     * Publishes these metrics in the platform MBean server.
+     * @param name for example {@code "crema.limitpertime:type=LimitPerTime,name=api"}
+     * @throws IllegalArgumentException if the name is malformed or already taken.
+     */
+    public void registerMBean(@NotNull String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName(name));
+        } catch (InstanceAlreadyExistsException | MBeanRegistrationException | NotCompliantMBeanException | MalformedObjectNameException e) {
+            throw new IllegalArgumentException("Cannot register MBean: "+name+"!", e);
+        }
+    }
+
+    /**
+     * Removes it from the platform MBean server. Does nothing if it was not registered with that name.
+     */
+    public void unregisterMBean(@NotNull String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(new ObjectName(name));
+        } catch (InstanceNotFoundException ignore) {
+            //not registered, nothing to do.
+        } catch (MBeanRegistrationException | MalformedObjectNameException e) {
+            throw new IllegalArgumentException("Cannot unregister MBean: "+name+"!", e);
+        }
+    }
+
+}
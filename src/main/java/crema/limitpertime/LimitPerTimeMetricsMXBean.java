@@ -0,0 +1,35 @@
+package crema.limitpertime;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the {@link LimitPerTimeMetrics}.
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+public interface LimitPerTimeMetricsMXBean {
+
+    long getAccepted();
+
+    long getRejected();
+
+    /**
+     * @return the rejections by the {@link LimitPerTimeSpec#toString() spec} that hit the limit.
+     */
+    Map<String,Long> getRejectedBySpecName();
+
+    int getKeyCount();
+
+    /**
+     * @return the most rejected keys with their estimated counts, highest first. Empty if not tracking.
+     * @see LimitPerTimeMetrics#trackRejectedKeys(int)
+     */
+    Map<String,Long> getTopRejectedKeyCounts();
+
+    long getRefillCount();
+
+    long getRefillNanosTotal();
+
+    long getRefillNanosMax();
+
+}
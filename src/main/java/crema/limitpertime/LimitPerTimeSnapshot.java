@@ -0,0 +1,189 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Hands the counts of a limit to another instance, for example from the old to the new process in a rolling deploy.
+ *
+ * <p>{@link #write} streams the counts of all keys to a channel, {@link #read} adds them to a limit of the new
+ * instance. Neither holds a lock for more than one key at a time, except for a batch of long keys that share a
+ * lock, consumers go on meanwhile. Keys that are used during the dump may or may not be in it, and the consumptions
+ * after it are not.</p>
+ *
+ * <p>Per key and time limit the snapshot has the limit, the time amount, the permits remaining, and when the
+ * interval ends on the wall clock. When read, the used permits are added to the time limit with the same time
+ * amount, in its current interval, capped at its limit; intervals that ended in between are dropped. Adding means
+ * that a key that was used on both instances is not let through twice.</p>
+ *
+ * <p>Supported by the limits of fixed windows only, see {@link LimitsPerTime#multi(java.util.List)},
+ * {@link LimitsPerTime#reconfigurable(java.util.List)} and {@link TieredLimitPerTime}. The keys must be
+ * {@link String}s, {@link Long}s or {@link Integer}s, other keys are skipped.</p>
+ *
+ * <p>Format: a header (magic, version), then chunks of entries, each with its entry count and byte length,
+ * and a 0 entry count at the end. An entry is the key (see {@link KeyCodec}), the number of time limits as a byte,
+ * and 4 longs per time limit. All big-endian.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+public final class LimitPerTimeSnapshot {
+
+    private static final int MAGIC = 0x4C505453; //LPTS
+    private static final byte VERSION = 1;
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    private LimitPerTimeSnapshot() {
+    }
+
+    /**
+     * Writes the counts of the limit to the channel, chunk by chunk. Does not close the channel.
+     * @return the number of keys written.
+     * @throws IllegalArgumentException if the limit does not support snapshots.
+     */
+    public static long write(@NotNull LimitPerTime limit, @NotNull WritableByteChannel channel) throws IOException {
+        Snapshottable source = snapshottable(limit);
+        Writer writer = new Writer(channel);
+        long written = source.writeSnapshot(writer);
+        writer.finish();
+        return written;
+    }
+
+    /**
+     * Adds the counts of a snapshot to the limit, chunk by chunk. Does not close the channel.
+     * @return the number of keys read.
+     * @throws IllegalArgumentException if the limit does not support snapshots, or the data is not a snapshot.
+     * @throws EOFException if the snapshot is cut off. The keys up to there are added.
+     */
+    public static long read(@NotNull LimitPerTime limit, @NotNull ReadableByteChannel channel) throws IOException {
+        Snapshottable target = snapshottable(limit);
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+        buffer.limit(5);
+        readFully(channel, buffer);
+        if (buffer.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a snapshot!");
+        }
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported snapshot version: "+version+"!");
+        }
+        long read = 0;
+        long[] rows = new long[4 * 255];
+        while (true) {
+            buffer.clear().limit(8);
+            readFully(channel, buffer);
+            int entries = buffer.getInt();
+            int bytes = buffer.getInt();
+            if (entries == 0) {
+                return read;
+            }
+            if (bytes > buffer.capacity()) {
+                buffer = ByteBuffer.allocate(bytes);
+            }
+            buffer.clear().limit(bytes);
+            readFully(channel, buffer);
+            for (int i=0; i<entries; i++) {
+                Object key = KeyCodec.get(buffer);
+                int n = buffer.get() & 0xFF;
+                for (int j=0; j<n*4; j++) {
+                    rows[j] = buffer.getLong();
+                }
+                target.readSnapshot(key, rows, n);
+                read++;
+            }
+        }
+    }
+
+
+    @NotNull
+    private static Snapshottable snapshottable(@NotNull LimitPerTime limit) {
+        if (limit instanceof MeteredLimitPerTime) {
+            limit = ((MeteredLimitPerTime) limit).getDelegate();
+        }
+        if (!(limit instanceof Snapshottable)) {
+            throw new IllegalArgumentException("Limit does not support snapshots: "+limit.getClass().getSimpleName()+"!");
+        }
+        return (Snapshottable) limit;
+    }
+
+    private static void readFully(@NotNull ReadableByteChannel channel, @NotNull ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Snapshot is cut off!");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(@NotNull WritableByteChannel channel, @NotNull ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+
+    /**
+     * Collects entries into a chunk, and writes the chunk to the channel when it is full.
+     */
+    static final class Writer {
+        private final WritableByteChannel channel;
+        private ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+        private final ByteBuffer header = ByteBuffer.allocate(8);
+        private int entries = 0;
+
+        private Writer(@NotNull WritableByteChannel channel) throws IOException {
+            this.channel = channel;
+            header.putInt(MAGIC).put(VERSION);
+            writeFully(channel, header);
+        }
+
+        /**
+         * @param rows see {@link Snapshottable#readSnapshot}.
+         * @return false if the key is of a type that is not supported, it was skipped.
+         */
+        boolean entry(@NotNull Object key, @NotNull long[] rows, int n) throws IOException {
+            byte[] utf8 = KeyCodec.utf8(key);
+            int keyBytes = KeyCodec.size(key, utf8);
+            if (keyBytes < 0) {
+                return false;
+            }
+            int size = keyBytes + 1 + n * 4 * 8;
+            if (chunk.remaining() < size) {
+                flush();
+                if (chunk.capacity() < size) {
+                    chunk = ByteBuffer.allocate(size);
+                }
+            }
+            KeyCodec.put(chunk, key, utf8);
+            chunk.put((byte) n);
+            for (int j=0; j<n*4; j++) {
+                chunk.putLong(rows[j]);
+            }
+            entries++;
+            return true;
+        }
+
+        private void flush() throws IOException {
+            if (entries == 0) {
+                return;
+            }
+            header.putInt(entries).putInt(chunk.position());
+            writeFully(channel, header);
+            writeFully(channel, chunk);
+            entries = 0;
+        }
+
+        private void finish() throws IOException {
+            flush();
+            header.putInt(0).putInt(0);
+            writeFully(channel, header);
+        }
+    }
+
+}
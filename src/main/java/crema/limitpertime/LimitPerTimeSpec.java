@@ -8,23 +8,57 @@ import java.util.concurrent.TimeUnit;
  * Encapsulates the immutable definition of a limit-per-time constraint.
  *
  * <p>Equals/hashCode are defined on a per per value in milliseconds basis.
- * Therefore "5 in 1 day" is the same as "5 in 24 hours" etc.</p>
+ * Therefore "5 in 1 day" is the same as "5 in 24 hours" etc.
+ * The {@link Algorithm} is part of it.</p>
  *
  * @author Alexei Arshavin, Optimaize
  */
 public class LimitPerTimeSpec implements Comparable<LimitPerTimeSpec> {
 
+    /**
+     * How the limit is enforced over time.
+     */
+    public enum Algorithm {
+        /**
+         * The counters are reset at the end of each time interval.
+         * Simple and cheap, but permits up to twice the limit across the end of an interval.
+         */
+        FIXED_WINDOW,
+        /**
+         * Weighs the count of the previous interval by how much of it still overlaps the last time amount,
+         * and adds the count of the current interval. Smooth, no burst at the end of an interval.
+         */
+        SLIDING_WINDOW,
+        /**
+         * The generic cell rate algorithm, a token bucket of {@code limit} tokens where one token comes back every
+         * {@code timeAmount / limit}. Permits a burst of the full limit, then spreads consumptions evenly.
+         */
+        GCRA
+    }
+
     private final long limit;
     private final long timeAmount;
     @NotNull
     private final TimeUnit timeUnit;
+    @NotNull
+    private final Algorithm algorithm;
 
     /**
+     * Uses the {@link Algorithm#FIXED_WINDOW}.
      * @param limit > 0
      * @param timeAmount > 0
      * @param timeUnit not smaller than milliseconds.
      */
     public LimitPerTimeSpec(long limit, long timeAmount, @NotNull TimeUnit timeUnit) {
+        this(limit, timeAmount, timeUnit, Algorithm.FIXED_WINDOW);
+    }
+
+    /**
+     * @param limit > 0
+     * @param timeAmount > 0
+     * @param timeUnit not smaller than milliseconds.
+     */
+    public LimitPerTimeSpec(long limit, long timeAmount, @NotNull TimeUnit timeUnit, @NotNull Algorithm algorithm) {
         Util.checkLimit(limit);
         Util.checkTime(timeAmount);
         Util.checkTimeUnit(timeUnit);
@@ -32,6 +66,7 @@ public class LimitPerTimeSpec implements Comparable<LimitPerTimeSpec> {
         this.limit = limit;
         this.timeAmount = timeAmount;
         this.timeUnit = timeUnit;
+        this.algorithm = algorithm;
     }
 
     public long getLimit() {
@@ -51,12 +86,18 @@ public class LimitPerTimeSpec implements Comparable<LimitPerTimeSpec> {
         return timeUnit;
     }
 
+    @NotNull
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
     @Override
     public String toString() {
         return "LimitPerTimeSpec{" +
                 "limit=" + limit +
                 ", timeAmount=" + timeAmount +
                 ", timeUnit=" + timeUnit +
+                ", algorithm=" + algorithm +
                 '}';
     }
 
@@ -73,6 +114,7 @@ public class LimitPerTimeSpec implements Comparable<LimitPerTimeSpec> {
 
         if (limit != that.limit) return false;
         if (getTimeAmountInMillis() != that.getTimeAmountInMillis()) return false;
+        if (algorithm != that.algorithm) return false;
 
         return true;
     }
@@ -84,12 +126,13 @@ public class LimitPerTimeSpec implements Comparable<LimitPerTimeSpec> {
         long ms = getTimeAmountInMillis();
         int result = (int) (limit ^ (limit >>> 32));
         result = 31 * result + (int) (ms ^ (ms >>> 32));
+        result = 31 * result + algorithm.hashCode();
         return result;
     }
 
     /**
      * The one with the smaller time (in milliseconds) comes first.
-     * In case of same time, the {@code limit} decides (smaller comes first).
+     * In case of same time, the {@code limit} decides (smaller comes first), then the {@link Algorithm}.
      * If equal then this method returns 0 for equal.
      */
     @Override
@@ -100,6 +143,9 @@ public class LimitPerTimeSpec implements Comparable<LimitPerTimeSpec> {
         compare = Long.compare(this.limit, o.limit);
         if (compare!=0) return compare;
 
+        compare = this.algorithm.compareTo(o.algorithm);
+        if (compare!=0) return compare;
+
         return 0;
     }
 }
@@ -1,35 +1,74 @@
 package crema.limitpertime;
 
-import com.google.common.base.Splitter;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Pattern;
 
 /**
  * Reads a {@link LimitPerTime} specification in String form.
  *
+ * <p>The results are interned: parsing a string that was parsed before is one hash lookup and returns the same
+ * list again, without allocating. Up to {@value #MAX_CACHED} distinct strings are kept, beyond that they are
+ * parsed each time.</p>
+ *
  * @author Alexei Arshavin, Optimaize
  */
 public class LimitPerTimeSpecParser {
 
-    private static final Splitter SEMI_SPLITTER = Splitter.on(';').trimResults().omitEmptyStrings();
-    private static final Splitter IN_SPLITTER = Splitter.on(Pattern.compile("in", Pattern.CASE_INSENSITIVE)).trimResults().omitEmptyStrings().limit(2); //limit 2 because mINutes contains that string
+    private static final int MAX_CACHED = 1024;
+
+    private static final String[] UNIT_NAMES;
+    private static final TimeUnit[] UNITS;
+    static {
+        List<String> names = new ArrayList<>();
+        List<TimeUnit> units = new ArrayList<>();
+        addUnit(names, units, TimeUnit.MILLISECONDS, "MS", "MILLISECOND");
+        addUnit(names, units, TimeUnit.SECONDS, "S", "SECOND");
+        addUnit(names, units, TimeUnit.MINUTES, "M", "MINUTE");
+        addUnit(names, units, TimeUnit.HOURS, "H", "HOUR");
+        addUnit(names, units, TimeUnit.DAYS, "D", "DAY");
+        for (TimeUnit unit : TimeUnit.values()) {
+            if (!units.contains(unit)) { //the smaller ones, rejected by the spec with a meaningful text.
+                addUnit(names, units, unit);
+            }
+        }
+        UNIT_NAMES = names.toArray(new String[names.size()]);
+        UNITS = units.toArray(new TimeUnit[units.size()]);
+    }
+
+    private static final String[] ALGORITHM_NAMES = {"FIXED", "SLIDING", "GCRA"};
+    private static final LimitPerTimeSpec.Algorithm[] ALGORITHMS = {
+            LimitPerTimeSpec.Algorithm.FIXED_WINDOW,
+            LimitPerTimeSpec.Algorithm.SLIDING_WINDOW,
+            LimitPerTimeSpec.Algorithm.GCRA,
+    };
 
     private static final LimitPerTimeSpecParser INSTANCE = new LimitPerTimeSpecParser();
     public static LimitPerTimeSpecParser getInstance() {
         return INSTANCE;
     }
+
+    private final ConcurrentMap<String,List<LimitPerTimeSpec>> parsed = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,List<LimitPerTimeSpec>> validated = new ConcurrentHashMap<>();
+
     private LimitPerTimeSpecParser() {
     }
 
     /**
      * Example syntax: "10 in 5 MINUTES; 100 in 1 HOUR; 1000 in 1day"
      *
+     * <p>Each part may end with a keyword for the {@link LimitPerTimeSpec.Algorithm}, example: "10 in 5 MINUTES sliding".
+     * <pre>
+     *   fixed   = {@link LimitPerTimeSpec.Algorithm#FIXED_WINDOW} (the default)
+     *   sliding = {@link LimitPerTimeSpec.Algorithm#SLIDING_WINDOW}
+     *   gcra    = {@link LimitPerTimeSpec.Algorithm#GCRA}
+     * </pre></p>
+     *
      * <p><pre>Time units are the ones from {@link TimeUnit}, plus these shortcuts are allowed:
      *   ms = milliseconds
      *   s  = seconds
@@ -45,76 +84,180 @@ public class LimitPerTimeSpecParser {
      * <p>Does not perform logical validation, see {@link #parseSortValidate(String)}.</p>
      *
      * @param s empty is permitted by definition.
-     * @return possibly an empty limit if the string contains no definition.
+     * @return possibly an empty limit if the string contains no definition. Unmodifiable, and the same instance
+     *         for equal strings.
      * @throws IllegalArgumentException on illegal syntax.
      */
     @NotNull
     public List<LimitPerTimeSpec> parse(@NotNull String s) {
-        List<String> strings = SEMI_SPLITTER.splitToList(s);
-        if (strings.isEmpty()) {
-            return Collections.emptyList();
-        } else {
-            List<LimitPerTimeSpec> ret = new ArrayList<>();
-            for (String s1 : strings) {
-                List<String> parts = IN_SPLITTER.splitToList(s1);
-                if (parts.size() != 2) {
-                    throw new IllegalArgumentException("Invalid part: >>>"+s1+"<<<!");
-                }
-                long limit = Long.parseLong(parts.get(0), 10);
-
-                String part2 = parts.get(1);
-                int i = 0;
-                for (; i<part2.length(); i++) {
-                    if (!Character.isDigit(part2.charAt(i))) {
-                        break;
-                    }
-                }
-                int timeAmount = Integer.parseInt(part2.substring(0, i), 10);
-                TimeUnit timeUnit = parseTimeUnit(part2.substring(i).trim().toUpperCase(Locale.ENGLISH));
-
-                ret.add(new LimitPerTimeSpec(limit, timeAmount, timeUnit));
-            }
-
-            return ret;
+        List<LimitPerTimeSpec> ret = parsed.get(s);
+        if (ret == null) {
+            ret = intern(parsed, s, doParse(s));
         }
+        return ret;
     }
 
     /**
      * Calls {@link #parse(String)} followed by {@link LimitPerTimeSpecs#sortAndValidate}.
+     * @return unmodifiable, and the same instance for equal strings.
      */
     @NotNull
     public List<LimitPerTimeSpec> parseSortValidate(@NotNull String s) {
-        return LimitPerTimeSpecs.sortAndValidate( parse(s) );
+        List<LimitPerTimeSpec> ret = validated.get(s);
+        if (ret == null) {
+            ret = intern(validated, s, LimitPerTimeSpecs.sortAndValidate( parse(s) ));
+        }
+        return ret;
     }
 
 
+    @NotNull
+    private static List<LimitPerTimeSpec> intern(@NotNull ConcurrentMap<String,List<LimitPerTimeSpec>> cache, @NotNull String s, @NotNull List<LimitPerTimeSpec> list) {
+        List<LimitPerTimeSpec> ret = list.isEmpty() ? Collections.<LimitPerTimeSpec>emptyList() : Collections.unmodifiableList(list);
+        if (cache.size() < MAX_CACHED) {
+            List<LimitPerTimeSpec> existing = cache.putIfAbsent(s, ret);
+            if (existing != null) {
+                return existing;
+            }
+        }
+        return ret;
+    }
+
     /**
-     * @throws IllegalArgumentException
+     * One pass over the string, part by part:
+     * {@code limit "in" timeAmount unit [algorithm]}, separated by ';', with optional whitespace in between.
      */
-    private TimeUnit parseTimeUnit(String upper) {
-        switch (upper) {
-            case "MS":
-            case "MILLISECOND":
-            case "MILLISECONDS":
-                return TimeUnit.SECONDS;
-            case "S":
-            case "SECOND":
-            case "SECONDS":
-                return TimeUnit.SECONDS;
-            case "M":
-            case "MINUTE":
-            case "MINUTES":
-                return TimeUnit.MINUTES;
-            case "H":
-            case "HOUR":
-            case "HOURS":
-                return TimeUnit.HOURS;
-            case "D":
-            case "DAY":
-            case "DAYS":
-                return TimeUnit.DAYS;
-            default:
-                return TimeUnit.valueOf(upper);
+    @NotNull
+    private List<LimitPerTimeSpec> doParse(@NotNull String s) {
+        List<LimitPerTimeSpec> ret = new ArrayList<>();
+        Reader r = new Reader(s);
+        while (true) {
+            r.skipWhitespace();
+            if (r.atEnd()) {
+                return ret;
+            }
+            if (r.peek() == ';') { //empty part
+                r.pos++;
+                continue;
+            }
+            int partStart = r.pos;
+            long limit = r.number(partStart);
+            r.skipWhitespace();
+            if (!r.word("IN")) {
+                throw r.invalid(partStart);
+            }
+            r.skipWhitespace();
+            long timeAmount = r.number(partStart);
+            r.skipWhitespace();
+            TimeUnit timeUnit = UNITS[r.keyword(partStart, UNIT_NAMES, "time unit")];
+            r.skipWhitespace();
+            LimitPerTimeSpec.Algorithm algorithm = LimitPerTimeSpec.Algorithm.FIXED_WINDOW;
+            if (!r.atEnd() && Character.isLetter(r.peek())) {
+                algorithm = ALGORITHMS[r.keyword(partStart, ALGORITHM_NAMES, "algorithm")];
+                r.skipWhitespace();
+            }
+            if (!r.atEnd()) {
+                if (r.peek() != ';') {
+                    throw r.invalid(partStart);
+                }
+                r.pos++;
+            }
+            ret.add(new LimitPerTimeSpec(limit, timeAmount, timeUnit, algorithm));
+        }
+    }
+
+    private static void addUnit(List<String> names, List<TimeUnit> units, TimeUnit unit, String... aliases) {
+        names.add(unit.name());
+        units.add(unit);
+        for (String alias : aliases) {
+            names.add(alias);
+            units.add(unit);
+        }
+    }
+
+
+    /**
+     * A position in the string being parsed.
+     */
+    private static final class Reader {
+        private final String s;
+        private int pos = 0;
+
+        private Reader(String s) {
+            this.s = s;
+        }
+
+        private boolean atEnd() {
+            return pos == s.length();
+        }
+
+        private char peek() {
+            return s.charAt(pos);
+        }
+
+        private void skipWhitespace() {
+            while (!atEnd() && Character.isWhitespace(peek())) {
+                pos++;
+            }
+        }
+
+        /**
+         * Reads a non-negative decimal number.
+         */
+        private long number(int partStart) {
+            int start = pos;
+            long ret = 0;
+            while (!atEnd() && peek() >= '0' && peek() <= '9') {
+                int digit = peek() - '0';
+                if (ret > (Long.MAX_VALUE - digit) / 10) {
+                    throw invalid(partStart);
+                }
+                ret = ret * 10 + digit;
+                pos++;
+            }
+            if (pos == start) {
+                throw invalid(partStart);
+            }
+            return ret;
+        }
+
+        /**
+         * Reads the letters up to the next non-letter.
+         * @return the index of the name that equals them, ignoring case.
+         */
+        private int keyword(int partStart, String[] names, String what) {
+            int start = pos;
+            while (!atEnd() && Character.isLetter(peek())) {
+                pos++;
+            }
+            if (pos == start) {
+                throw invalid(partStart);
+            }
+            int length = pos - start;
+            for (int i=0; i<names.length; i++) {
+                if (names[i].length() == length && s.regionMatches(true, start, names[i], 0, length)) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("Unknown "+what+": >>>"+s.substring(start, pos)+"<<<!");
+        }
+
+        /**
+         * Reads the given word, ignoring case, if it is next.
+         * Not necessarily followed by whitespace, "5in1h" is fine.
+         */
+        private boolean word(String upper) {
+            if (!s.regionMatches(true, pos, upper, 0, upper.length())) {
+                return false;
+            }
+            pos += upper.length();
+            return true;
+        }
+
+        @NotNull
+        private IllegalArgumentException invalid(int partStart) {
+            int end = s.indexOf(';', partStart);
+            return new IllegalArgumentException("Invalid part: >>>"+s.substring(partStart, end < 0 ? s.length() : end).trim()+"<<<!");
         }
     }
 
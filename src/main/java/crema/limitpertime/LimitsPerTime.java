@@ -1,9 +1,14 @@
 package crema.limitpertime;
 
+import com.google.common.base.Function;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -16,26 +21,82 @@ public class LimitsPerTime {
     /**
      * Parses the definition with the {@link LimitPerTimeSpecParser}.
      */
-    public static LimitPerTime forString(@NotNull String s) {
-        List<LimitPerTimeSpec> parse = LimitPerTimeSpecParser.getInstance().parse(s);
-        return multi(parse);
+    public static ExtendedLimitPerTime forString(@NotNull String s) {
+        return forString(s, HashedWheelRefillScheduler.getDefault());
+    }
+    /**
+     * Same as {@link #forString(String)}, but the refills run on the given scheduler.
+     * The parsed and validated spec is cached per string, only the limit is new.
+     */
+    public static ExtendedLimitPerTime forString(@NotNull String s, @NotNull RefillScheduler scheduler) {
+        return sorted(LimitPerTimeSpecParser.getInstance().parseSortValidate(s), scheduler);
     }
 
     /**
      * Creates a single limit where everything passes.
      */
-    public static LimitPerTime none() {
+    public static ExtendedLimitPerTime none() {
         return NullLimitPerTime.getInstance();
     }
 
     /**
      * Creates a single limit.
+     *
+     * <p>Uses the lock-free {@link ConcurrentLimitPerTime} for the {@link LimitPerTimeSpec.Algorithm#FIXED_WINDOW},
+     * consumptions on different keys don't contend.</p>
+     *
      * @param timeUnit not smaller than milliseconds.
      */
-    public static LimitPerTime single(long limit, long time, TimeUnit timeUnit) {
+    public static ExtendedLimitPerTime single(long limit, long time, TimeUnit timeUnit) {
         return single(new LimitPerTimeSpec(limit, time, timeUnit));
     }
-    public static LimitPerTime single(@NotNull LimitPerTimeSpec spec) {
+    public static ExtendedLimitPerTime single(@NotNull LimitPerTimeSpec spec) {
+        return single(spec, HashedWheelRefillScheduler.getDefault());
+    }
+    public static ExtendedLimitPerTime single(@NotNull LimitPerTimeSpec spec, @NotNull RefillScheduler scheduler) {
+        switch (spec.getAlgorithm()) {
+            case FIXED_WINDOW:
+                return new ConcurrentLimitPerTime(spec, scheduler);
+            case SLIDING_WINDOW:
+                return new SlidingWindowLimitPerTime(spec);
+            case GCRA:
+                return new GcraLimitPerTime(spec);
+            default:
+                throw new UnsupportedOperationException("Unsupported algorithm: "+spec.getAlgorithm());
+        }
+    }
+
+    /**
+     * Creates a single limit that needs no timer: counters of a past time interval are reset lazily
+     * on their next use, instead of clearing all of them at once at the end of the interval.
+     * @see LazyLimitPerTime for the memory implications.
+     */
+    public static ExtendedLimitPerTime lazy(long limit, long time, TimeUnit timeUnit) {
+        return lazy(new LimitPerTimeSpec(limit, time, timeUnit));
+    }
+    public static ExtendedLimitPerTime lazy(@NotNull LimitPerTimeSpec spec) {
+        return new LazyLimitPerTime(spec);
+    }
+
+    /**
+     * Creates a single fixed window limit that counts approximately in a count-min sketch of fixed size,
+     * for unbounded key spaces. It never lets a key exceed the limit, but can reject a key a bit early.
+     * @param width counters per row, a power of 2, for example 65536.
+     * @param depth number of rows, for example 4.
+     * @see CountMinLimitPerTime for the memory and the error bound.
+     */
+    public static ExtendedLimitPerTime countMin(@NotNull LimitPerTimeSpec spec, int width, int depth) {
+        return countMin(spec, width, depth, HashedWheelRefillScheduler.getDefault());
+    }
+    public static ExtendedLimitPerTime countMin(@NotNull LimitPerTimeSpec spec, int width, int depth, @NotNull RefillScheduler scheduler) {
+        return new CountMinLimitPerTime(spec, width, depth, scheduler);
+    }
+
+    /**
+     * Creates a single limit that synchronizes all access on one monitor.
+     * @see #single(LimitPerTimeSpec) the better choice under concurrent access.
+     */
+    public static ExtendedLimitPerTime singleSynchronized(@NotNull LimitPerTimeSpec spec) {
         return new SimpleLimitPerTime(spec);
     }
 
@@ -43,15 +104,107 @@ public class LimitsPerTime {
     /**
      * Parses the definition with the {@link LimitPerTimeSpecParser}.
      */
-    public static LimitPerTime multi(@NotNull List<LimitPerTimeSpec> spec) {
+    public static ExtendedLimitPerTime multi(@NotNull List<LimitPerTimeSpec> spec) {
+        return multi(spec, HashedWheelRefillScheduler.getDefault());
+    }
+    public static ExtendedLimitPerTime multi(@NotNull List<LimitPerTimeSpec> spec, @NotNull RefillScheduler scheduler) {
+        return sorted(LimitPerTimeSpecs.sortAndValidate(spec), scheduler);
+    }
+    private static ExtendedLimitPerTime sorted(@NotNull List<LimitPerTimeSpec> sorted, @NotNull RefillScheduler scheduler) {
+        if (sorted.size()==1) {
+            return single(sorted.get(0), scheduler);
+        }
+        if (allFixedWindows(sorted)) {
+            return new FusedMultiLimitPerTime(sorted, scheduler);
+        }
+        return multi(sorted, MultiLimitPerTime.create().scheduler(scheduler));
+    }
+    private static ExtendedLimitPerTime multi(@NotNull List<LimitPerTimeSpec> spec, @NotNull MultiLimitPerTime.Builder builder) {
         List<LimitPerTimeSpec> sorted = LimitPerTimeSpecs.sortAndValidate(spec);
-        MultiLimitPerTime.Builder builder = MultiLimitPerTime.create();
         for (LimitPerTimeSpec data : sorted) {
             builder.add(data);
         }
         return builder.build();
     }
 
+    /**
+     * Creates a limit of fixed windows whose time limits can be changed later without losing the counts,
+     * see {@link ReconfigurableLimitPerTime#updateSpec}.
+     * @throws IllegalArgumentException if a time limit is not a fixed window.
+     */
+    public static ReconfigurableLimitPerTime reconfigurable(@NotNull List<LimitPerTimeSpec> spec) {
+        return reconfigurable(spec, HashedWheelRefillScheduler.getDefault());
+    }
+    public static ReconfigurableLimitPerTime reconfigurable(@NotNull List<LimitPerTimeSpec> spec, @NotNull RefillScheduler scheduler) {
+        return new FusedMultiLimitPerTime(LimitPerTimeSpecs.sortAndValidate(spec), scheduler);
+    }
+
+    private static boolean allFixedWindows(@NotNull List<LimitPerTimeSpec> spec) {
+        for (LimitPerTimeSpec data : spec) {
+            if (data.getAlgorithm() != LimitPerTimeSpec.Algorithm.FIXED_WINDOW) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the limit itself if it is an {@link ExtendedLimitPerTime}, else wraps it into one: long keys are
+     * boxed, batches consume key by key, and more than 1 permit throws {@link UnsupportedOperationException}.
+     * The wrappers below do this with the limit they get.
+     */
+    public static ExtendedLimitPerTime extended(@NotNull LimitPerTime limit) {
+        if (limit instanceof ExtendedLimitPerTime) {
+            return (ExtendedLimitPerTime) limit;
+        }
+        return new AdaptedLimitPerTime(limit);
+    }
+
+    /**
+     * Wraps the limit to count its consumptions, see {@link LimitPerTimeMetrics}.
+     * The refill times are not known this way, use {@link Builder#buildMetered()} for those.
+     */
+    public static MeteredLimitPerTime metered(@NotNull LimitPerTime limit) {
+        return new MeteredLimitPerTime(limit, new LimitPerTimeMetrics(limit.getSpec()));
+    }
+
+    /**
+     * Wraps the limit to wait for permits instead of rejecting, see {@link Throttle}.
+     * The retries run on one timer thread shared by all throttles.
+     */
+    public static Throttle throttle(@NotNull LimitPerTime limit) {
+        return new Throttle(limit, Throttle.getDefaultTimer());
+    }
+    /**
+     * Same as {@link #throttle(LimitPerTime)}, but the retries and timeouts run on the given executor.
+     */
+    public static Throttle throttle(@NotNull LimitPerTime limit, @NotNull ScheduledExecutorService timer) {
+        return new Throttle(limit, timer);
+    }
+
+    /**
+     * Wraps the limit to write its consumptions to a journal in the directory, and replays the journal that is there
+     * into it. Each consumption returns once it is synced, see {@link JournaledLimitPerTime}.
+     * @throws IllegalArgumentException if the limit has several time limits and does not support snapshots.
+     * @throws IOException if the journal can't be opened or read.
+     */
+    public static JournaledLimitPerTime journaled(@NotNull LimitPerTime limit, @NotNull Path directory) throws IOException {
+        return journaled(limit, directory, JournaledLimitPerTime.Durability.SYNC);
+    }
+    public static JournaledLimitPerTime journaled(@NotNull LimitPerTime limit, @NotNull Path directory,
+                                                  @NotNull JournaledLimitPerTime.Durability durability) throws IOException {
+        return new JournaledLimitPerTime(limit, directory, durability);
+    }
+
+    /**
+     * Creates one limit with a set of fixed windows per tier, for example per plan. The resolver maps a key to
+     * the name of its tier, its answers are cached. All tiers share one table and one refill task.
+     * @see TieredLimitPerTime
+     */
+    public static TieredLimitPerTime.Builder tiered(@NotNull Function<Object,String> resolver) {
+        return new TieredLimitPerTime.Builder(resolver);
+    }
+
     /**
      * Creates a limit with 1 to n limits in it.
      * If just one then the end result is the same as the {@link #single}.
@@ -63,9 +216,23 @@ public class LimitsPerTime {
 
     public static class Builder {
         private final List<LimitPerTimeSpec> list = new ArrayList<>();
+        private RefillScheduler scheduler = HashedWheelRefillScheduler.getDefault();
+        @Nullable
+        private CounterStore.Factory counterStores = null;
+        @Nullable
+        private SharedQuotaStore sharedQuota = null;
+        private long leaseSize;
 
         private Builder() {}
 
+        /**
+         * Optional, by default the {@link HashedWheelRefillScheduler#getDefault() shared one} is used.
+         */
+        public Builder scheduler(@NotNull RefillScheduler scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
         /**
          * @param timeUnit not smaller than milliseconds.
          */
@@ -74,15 +241,67 @@ public class LimitsPerTime {
             return this;
         }
 
-        public LimitPerTime build() {
-            if (list.size()==1) {
-                return new SimpleLimitPerTime(list.get(0));
-            } else {
-                if (list.isEmpty()) {
-                    throw new IllegalStateException("Builder is empty, at least one limit is required!");
+        public Builder add(@NotNull LimitPerTimeSpec spec) {
+            list.add(spec);
+            return this;
+        }
+
+        /**
+         * Optional, by default the counters are kept on the heap.
+         * If set, the fixed windows are counted in stores made by the factory, for example
+         * {@link CounterStores#offHeap}.
+         */
+        public Builder counterStores(@NotNull CounterStore.Factory counterStores) {
+            this.counterStores = counterStores;
+            return this;
+        }
+
+        /**
+         * Optional, makes the fixed windows cluster-wide: the nodes share the quota in the store, and each one leases
+         * {@code leaseSize} permits of a key at a time to serve them locally. See {@link SharedQuotaStore}.
+         * Can't be combined with {@link #counterStores}, and other algorithms than fixed windows can't be shared.
+         * @param leaseSize for example 1% of the limit. Up to {@code nodes * (leaseSize - 1)} permits of a window
+         *                  can stay unused, see {@link LeasingLimitPerTime}.
+         */
+        public Builder sharedQuota(@NotNull SharedQuotaStore sharedQuota, long leaseSize) {
+            this.sharedQuota = sharedQuota;
+            this.leaseSize = leaseSize;
+            return this;
+        }
+
+        public ExtendedLimitPerTime build() {
+            return build(scheduler);
+        }
+
+        /**
+         * Same as {@link #build()}, and counts what the limit does, including how long its refills take.
+         * Get the counters with {@link MeteredLimitPerTime#getMetrics()}.
+         */
+        public MeteredLimitPerTime buildMetered() {
+            LimitPerTimeMetrics metrics = new LimitPerTimeMetrics(LimitPerTimeSpecs.sortAndValidate(list));
+            return new MeteredLimitPerTime(build(new MeteringRefillScheduler(scheduler, metrics)), metrics);
+        }
+
+        private ExtendedLimitPerTime build(@NotNull RefillScheduler scheduler) {
+            if (list.isEmpty()) {
+                throw new IllegalStateException("Builder is empty, at least one limit is required!");
+            }
+            if (sharedQuota != null) {
+                if (counterStores != null) {
+                    throw new IllegalStateException("Either counter stores or a shared quota, not both!");
+                }
+                if (list.size()==1) {
+                    return new LeasingLimitPerTime(list.get(0), sharedQuota, leaseSize, scheduler);
                 }
-                return multi(list);
+                return multi(list, MultiLimitPerTime.create().scheduler(scheduler).sharedQuota(sharedQuota, leaseSize));
+            }
+            if (counterStores == null) {
+                return multi(list, scheduler);
+            }
+            if (list.size()==1 && list.get(0).getAlgorithm()==LimitPerTimeSpec.Algorithm.FIXED_WINDOW) {
+                return new SimpleLimitPerTime(list.get(0), scheduler, counterStores);
             }
+            return multi(list, MultiLimitPerTime.create().scheduler(scheduler).counterStores(counterStores));
         }
 
         public int size() {
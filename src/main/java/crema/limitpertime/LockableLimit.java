@@ -0,0 +1,63 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A single limit that the {@link MultiLimitPerTime} can check and consume in two steps.
+ *
+ * <p>The caller acquires the {@link #lock()}, checks with {@link #lockedCanConsumeOrSpec}, and only if all limits
+ * passed it calls {@link #doConsume}. Then it {@link #unlock()}s.</p>
+ *
+ * <p>The caller also serializes all calls for the same key. Implementations that are atomic per key can
+ * therefore leave the lock empty, and calls for different keys run in parallel.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+interface LockableLimit extends ExtendedLimitPerTime {
+
+    /**
+     * Freezes the state so that it does not change between {@link #lockedCanConsumeOrSpec} and {@link #doConsume}.
+     */
+    void lock();
+
+    /**
+     * Must be called after {@link #lock()}.
+     */
+    void unlock();
+
+    /**
+     * Like {@link #canConsumeOrSpec}, but must be called while holding the {@link #lock()}.
+     */
+    @Nullable
+    LimitPerTimeSpec lockedCanConsumeOrSpec(@NotNull Object key);
+
+    /**
+     * Same as {@link #lockedCanConsumeOrSpec(Object)} for a numeric key, without boxing it.
+     */
+    @Nullable
+    LimitPerTimeSpec lockedCanConsumeOrSpec(long key);
+
+    /**
+     * Same as {@link #lockedCanConsumeOrSpec(Object)} for more than one permit.
+     */
+    @Nullable
+    LimitPerTimeSpec lockedCanConsumeOrSpec(@NotNull Object key, long permits);
+
+    /**
+     * Must be called while holding the {@link #lock()}, after {@link #lockedCanConsumeOrSpec} returned null.
+     * @throws IllegalStateException if it cannot be consumed.
+     */
+    void doConsume(@NotNull Object key);
+
+    /**
+     * Same as {@link #doConsume(Object)} for a numeric key, without boxing it.
+     */
+    void doConsume(long key);
+
+    /**
+     * Same as {@link #doConsume(Object)} for more than one permit.
+     */
+    void doConsume(@NotNull Object key, long permits);
+
+}
@@ -13,42 +13,72 @@ import java.util.concurrent.locks.ReentrantLock;
  * <p>This allows the external to also acquire the lock. This is used by the {@link MultiLimitPerTime} class
  * to work on multiple limits in an atomic way.</p>
  *
+ * <p>The refill never blocks the shared {@link RefillScheduler} thread: if the lock is taken at that moment,
+ * the refill is left pending, and performed by the next one who acquires the lock, before it reads
+ * any counter.</p>
+ *
+ * <p>The counters are kept in a {@link CounterStore}, on the heap by default.</p>
+ *
  * @author Alexei Arshavin, Optimaize
  */
-class LockableLimitPerTime implements LimitPerTime {
+class LockableLimitPerTime implements LockableLimit, Refillable, KeyCounted, Waitable {
+
+    private static final long ABSENT = -1;
 
     @NotNull
     private final LimitPerTimeSpec spec;
-    private final Map<Object,Long> counters;
+    private final CounterStore counters;
     private final ReentrantLock lock;
-    private final Timer timer;
+    private final RefillScheduler.Registration refillRegistration;
+    /**
+     * Set by the scheduler when it could not get the lock.
+     */
+    private volatile boolean refillPending;
+    /**
+     * When the next refill is due, in {@link System#nanoTime()} terms. Only written by the scheduler.
+     */
+    private volatile long refillDueNanos;
 
     public LockableLimitPerTime(long limit, long timeAmount, @NotNull TimeUnit timeUnit) {
         this(new LimitPerTimeSpec(limit, timeAmount, timeUnit));
     }
     public LockableLimitPerTime(@NotNull LimitPerTimeSpec spec) {
+        this(spec, HashedWheelRefillScheduler.getDefault());
+    }
+    public LockableLimitPerTime(@NotNull LimitPerTimeSpec spec, @NotNull RefillScheduler scheduler) {
+        this(spec, scheduler, CounterStores.heap());
+    }
+    public LockableLimitPerTime(@NotNull LimitPerTimeSpec spec, @NotNull RefillScheduler scheduler, @NotNull CounterStore.Factory counterStores) {
         this.spec = spec;
-        this.counters = new HashMap<>();
+        this.counters = counterStores.create(spec);
+        long initialDelay = CounterStores.continueInterval(counters, spec.getTimeAmountInMillis());
         this.lock = new ReentrantLock();
-
-        this.timer = new Timer("Timer-LockableLimitPerTime", true);
-        long millis = spec.getTimeAmountInMillis();
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                refill();
-            }
-        }, millis, millis);
+        this.refillDueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(initialDelay);
+        this.refillRegistration = WeakRefillTask.schedule(scheduler, this, initialDelay, spec.getTimeAmountInMillis());
     }
 
-    /**
-     */
     @Override
     public boolean consume(@NotNull Object key) {
-        lock.lock();
+        return consume(key, 1);
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        lock();
+        try {
+            return lockedConsume(key, permits);
+        } finally{
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean consume(long key) {
+        lock();
         try {
-            Long counter = counters.get(key);
-            if (counter==null) {
+            long counter = counters.get(key, ABSENT);
+            if (counter==ABSENT) {
                 counters.put(key, spec.getLimit() - 1);
                 return true;
             } else {
@@ -73,6 +103,27 @@ class LockableLimitPerTime implements LimitPerTime {
         }
     }
 
+    /**
+     * Takes the lock once for all keys.
+     */
+    @NotNull @Override
+    public BitSet consumeAll(@NotNull Collection<?> keys) {
+        BitSet consumed = new BitSet(keys.size());
+        lock();
+        try {
+            int i = 0;
+            for (Object key : keys) {
+                if (lockedConsume(key, 1)) {
+                    consumed.set(i);
+                }
+                i++;
+            }
+        } finally{
+            lock.unlock();
+        }
+        return consumed;
+    }
+
     /**
      * Call this to see, before calling {@link #doConsume}.
      * You must have acquired the {@link #lock()} before!
@@ -81,17 +132,35 @@ class LockableLimitPerTime implements LimitPerTime {
      * @throws IllegalStateException if not {@link #lock locked}.
      */
     public boolean lockedCanConsume(Object key) {
+        return lockedCanConsume(key, 1);
+    }
+
+    /**
+     * Same as {@link #lockedCanConsume(Object)} for more than one permit.
+     */
+    public boolean lockedCanConsume(Object key, long permits) {
+        if (!lock.isHeldByCurrentThread()) {
+            throw new IllegalStateException("Lock must be acquired by current thread!");
+        }
+        return remaining(counters.get(key, ABSENT)) >= permits;
+    }
+
+    /**
+     * Same as {@link #lockedCanConsume(Object)} for a numeric key.
+     */
+    public boolean lockedCanConsume(long key) {
         if (!lock.isHeldByCurrentThread()) {
             throw new IllegalStateException("Lock must be acquired by current thread!");
         }
-        return canConsume(key);
+        long counter = counters.get(key, ABSENT);
+        return counter==ABSENT || counter >= 1;
     }
 
     /**
      * Uses {@link #lockedCanConsume} so look there, and then returns like {@link #canConsumeOrSpec}.
      */
-    @Nullable
-    public LimitPerTimeSpec lockedCanConsumeOrSpec(Object key) {
+    @Nullable @Override
+    public LimitPerTimeSpec lockedCanConsumeOrSpec(@NotNull Object key) {
         if (lockedCanConsume(key)) {
             return null;
         } else {
@@ -99,13 +168,47 @@ class LockableLimitPerTime implements LimitPerTime {
         }
     }
 
+    @Nullable @Override
+    public LimitPerTimeSpec lockedCanConsumeOrSpec(long key) {
+        if (lockedCanConsume(key)) {
+            return null;
+        } else {
+            return spec;
+        }
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec lockedCanConsumeOrSpec(@NotNull Object key, long permits) {
+        if (lockedCanConsume(key, permits)) {
+            return null;
+        } else {
+            return spec;
+        }
+    }
+
     @Override
     public boolean canConsume(@NotNull Object key) {
-        Long counter = counters.get(key);
-        if (counter==null) {
-            return true;
-        } else {
-            return counter >= 1;
+        return canConsume(key, 1);
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        lock();
+        try {
+            return lockedCanConsume(key, permits);
+        } finally{
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean canConsume(long key) {
+        lock();
+        try {
+            return lockedCanConsume(key);
+        } finally{
+            lock.unlock();
         }
     }
 
@@ -123,12 +226,28 @@ class LockableLimitPerTime implements LimitPerTime {
      * @param key Same as for {@link #consume}
      * @throws IllegalStateException if not {@link #lock locked} or not {@link #lockedCanConsume}.
      */
-    public void doConsume(Object key) {
+    @Override
+    public void doConsume(@NotNull Object key) {
+        doConsume(key, 1);
+    }
+
+    @Override
+    public void doConsume(@NotNull Object key, long permits) {
+        if (!lock.isHeldByCurrentThread()) {
+            throw new IllegalStateException("Lock must be acquired by current thread!");
+        }
+        if (!lockedConsume(key, permits)) {
+            throw new IllegalStateException("Cannot consume, check with canConsume() first!");
+        }
+    }
+
+    @Override
+    public void doConsume(long key) {
         if (!lock.isHeldByCurrentThread()) {
             throw new IllegalStateException("Lock must be acquired by current thread!");
         }
-        Long counter = counters.get(key);
-        if (counter==null) {
+        long counter = counters.get(key, ABSENT);
+        if (counter==ABSENT) {
             counters.put(key, spec.getLimit() - 1);
         } else {
             if (counter >= 1) {
@@ -142,15 +261,41 @@ class LockableLimitPerTime implements LimitPerTime {
     /**
      * Gives you a frozen consistent state.
      * Wile you hold the lock, no one else can {@link #consume}, {@link #lockedCanConsume} or {@link #doConsume}.
-     * Also, the limit is not reset (the Timer is locked out also).
+     * Also, the limit is not reset (the refill is deferred until then).
      */
+    @Override
     public void lock() {
         lock.lock();
+        if (refillPending && lock.getHoldCount()==1) {
+            refillPending = false;
+            counters.clear();
+        }
+    }
+
+    /**
+     * Must hold the lock.
+     */
+    private boolean lockedConsume(@NotNull Object key, long permits) {
+        long remaining = remaining(counters.get(key, ABSENT));
+        if (remaining >= permits) {
+            counters.put(key, remaining - permits);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * An absent key has nothing used yet.
+     */
+    private long remaining(long counter) {
+        return counter==ABSENT ? spec.getLimit() : counter;
     }
 
     /**
      * You must call this when you're done after you had acquired the {@link #lock}.
      */
+    @Override
     public void unlock() {
         lock.unlock();
     }
@@ -159,8 +304,31 @@ class LockableLimitPerTime implements LimitPerTime {
      */
     @Override
     public void destroy() {
-        timer.cancel();
-        counters.clear();
+        refillRegistration.cancel();
+        lock.lock();
+        try {
+            counters.close();
+        } finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The time until the next refill, if the key can't consume now.
+     */
+    @Override
+    public long millisUntil(@NotNull Object key, long permits) {
+        return canConsume(key, permits) ? 0 : Util.millisUntil(refillDueNanos);
+    }
+
+    @Override
+    public int getKeyCount() {
+        lock();
+        try {
+            return counters.size();
+        } finally {
+            lock.unlock();
+        }
     }
 
     @NotNull @Override
@@ -169,19 +337,21 @@ class LockableLimitPerTime implements LimitPerTime {
     }
 
     /**
-     * Overwriting to ensure that destroy() is executed. Otherwise the Timer thread lives on.
+     * Does not wait for the lock, see class header.
      */
-    protected void finalize() throws Throwable {
-        super.finalize();
-        destroy();
-    }
-
-    private void refill() {
-        lock.lock();
-        try {
-            counters.clear();
-        } finally{
-            lock.unlock();
+    @Override
+    public void refill() {
+        refillDueNanos += TimeUnit.MILLISECONDS.toNanos(spec.getTimeAmountInMillis());
+        refillPending = true;
+        if (lock.tryLock()) {
+            try {
+                if (refillPending) {
+                    refillPending = false;
+                    counters.clear();
+                }
+            } finally{
+                lock.unlock();
+            }
         }
     }
 
@@ -0,0 +1,201 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * A map from primitive long to {@code long[]}, using open addressing with linear probing.
+ *
+ * <p>The sibling of the {@link LongLongHashMap} for values that don't fit into one long, like the records of the
+ * {@link FusedRecords}. The keys are not boxed, and there are no entry objects: only the values are objects.
+ * A slot without a value is free, so the key 0 needs no special treatment.</p>
+ *
+ * <p>Not thread safe, the owner must synchronize.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+final class LongArrayHashMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private long[][] values;
+    private int mask;
+    private int size;
+    private int removals;
+
+    /**
+     * Sees the entries one by one, see {@link #visit}.
+     */
+    interface Visitor {
+        /**
+         * @return true to remove the entry.
+         */
+        boolean visit(long key, @NotNull long[] value);
+    }
+
+    LongArrayHashMap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * @return the value, or null if the key is not in the map.
+     */
+    @Nullable
+    long[] get(long key) {
+        int slot = slot(key);
+        while (true) {
+            long[] value = values[slot];
+            if (value == null || keys[slot] == key) {
+                return value;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    void put(long key, @NotNull long[] value) {
+        int slot = slot(key);
+        while (true) {
+            if (values[slot] == null) {
+                keys[slot] = key;
+                values[slot] = value;
+                if (++size * 2 > mask + 1) {
+                    rehash((mask + 1) << 1);
+                }
+                return;
+            }
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Calls the visitor with each entry, and removes the ones it says so. The visitor must not modify the map.
+     * @return the number of removed entries.
+     */
+    int visit(@NotNull Visitor visitor) {
+        int before = size;
+        visit(visitor, 0, Integer.MAX_VALUE);
+        return before - size;
+    }
+
+    /**
+     * Same as {@link #visit(Visitor)} for a part of the table: from the slot {@code from} on, until {@code max}
+     * entries were visited. For the owner to release its lock in between.
+     *
+     * <p>Continuing from the returned slot visits each entry once, if the table did not grow and nothing was removed
+     * in between, see {@link #capacity()} and {@link #removals()}. Otherwise an entry may be visited twice, or
+     * moved before the slot and missed. Entries put in between may or may not be visited. Also within one call, a
+     * removal can move an entry from the start of the table to its end, which is then visited twice.</p>
+     *
+     * @return the slot to continue from, or the capacity if the end of the table is reached.
+     */
+    int visit(@NotNull Visitor visitor, int from, int max) {
+        int slot = from;
+        int visited = 0;
+        while (slot < values.length && visited < max) {
+            if (values[slot] != null) {
+                visited++;
+                if (visitor.visit(keys[slot], values[slot])) {
+                    shiftBack(slot);
+                    size--;
+                    removals++;
+                    continue; //a following entry may have moved into this slot.
+                }
+            }
+            slot++;
+        }
+        return slot;
+    }
+
+    /**
+     * Removes all entries, but keeps the table at its current capacity.
+     */
+    void clear() {
+        Arrays.fill(values, null);
+        removals += size;
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of slots, it only changes when the table grows.
+     */
+    int capacity() {
+        return values.length;
+    }
+
+    /**
+     * @return the number of entries removed so far. A removal can move entries of a sliced {@link #visit} from
+     *         behind its slot to before it, the owner can start over then.
+     */
+    int removals() {
+        return removals;
+    }
+
+
+    private int slot(long key) {
+        return (int) LongLongHashMap.mix(key) & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity][];
+        mask = capacity - 1;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        long[][] oldValues = values;
+        allocate(newCapacity);
+        for (int i=0; i<oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                insertNew(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    /**
+     * For a key that is known not to be in the table yet, without counting or growing.
+     */
+    private void insertNew(long key, @NotNull long[] value) {
+        int slot = slot(key);
+        while (values[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+    }
+
+    /**
+     * Backward shift deletion: moves following entries of the same probe sequence into the gap,
+     * so that no tombstones are needed.
+     */
+    private void shiftBack(int gap) {
+        int slot = gap;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (values[slot] == null) {
+                break;
+            }
+            int home = slot(keys[slot]);
+            //move it if its home is not cyclically within (gap, slot]
+            boolean move = (gap <= slot) ? (home <= gap || home > slot) : (home <= gap && home > slot);
+            if (move) {
+                keys[gap] = keys[slot];
+                values[gap] = values[slot];
+                gap = slot;
+            }
+        }
+        values[gap] = null;
+    }
+
+}
@@ -0,0 +1,233 @@
+package crema.limitpertime;
+
+import java.util.Arrays;
+
+/**
+ * A map from primitive long to primitive long, using open addressing with linear probing.
+ *
+ * <p>Keys and values are stored interleaved in one long[], a lookup is usually one cache line.
+ * There are no entry objects and no boxing, only growing the table allocates.
+ * Key 0 marks a free slot, the real key 0 is kept aside in a field.</p>
+ *
+ * <p>Not thread safe, the owner must synchronize.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+class LongLongHashMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * key at 2*i, value at 2*i+1
+     */
+    private long[] table;
+    private int mask;
+    private int size;
+
+    private boolean hasZeroKey;
+    private long zeroValue;
+
+    LongLongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize the table is sized to hold that many keys without growing.
+     */
+    LongLongHashMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2L && capacity < (1 << 29)) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * @return the value, or {@code absent} if the key is not in the map.
+     */
+    long get(long key, long absent) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : absent;
+        }
+        int slot = slot(key);
+        while (true) {
+            long k = table[slot << 1];
+            if (k == key) {
+                return table[(slot << 1) + 1];
+            }
+            if (k == 0) {
+                return absent;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    void put(long key, long value) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroValue = value;
+            return;
+        }
+        int slot = slot(key);
+        while (true) {
+            long k = table[slot << 1];
+            if (k == key) {
+                table[(slot << 1) + 1] = value;
+                return;
+            }
+            if (k == 0) {
+                table[slot << 1] = key;
+                table[(slot << 1) + 1] = value;
+                if (++size * 2 > mask + 1) {
+                    rehash((mask + 1) << 1);
+                }
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * @return true if the key was in the map.
+     */
+    boolean remove(long key) {
+        if (key == 0) {
+            if (hasZeroKey) {
+                hasZeroKey = false;
+                size--;
+                return true;
+            }
+            return false;
+        }
+        int slot = slot(key);
+        while (true) {
+            long k = table[slot << 1];
+            if (k == 0) {
+                return false;
+            }
+            if (k == key) {
+                shiftBack(slot);
+                size--;
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Removes all entries whose value is smaller than the {@code threshold}.
+     * Rebuilds the table in place, O(capacity).
+     * @return the number of removed entries.
+     */
+    int removeValuesBelow(long threshold) {
+        int removed = 0;
+        if (hasZeroKey && zeroValue < threshold) {
+            hasZeroKey = false;
+            size--;
+            removed++;
+        }
+        long[] old = table;
+        allocate(mask + 1);
+        int kept = hasZeroKey ? 1 : 0;
+        for (int i = 0; i < old.length; i += 2) {
+            long k = old[i];
+            if (k != 0) {
+                if (old[i + 1] < threshold) {
+                    removed++;
+                } else {
+                    insertNew(k, old[i + 1]);
+                    kept++;
+                }
+            }
+        }
+        size = kept;
+        return removed;
+    }
+
+    /**
+     * Removes all entries, but keeps the table at its current capacity.
+     */
+    void clear() {
+        Arrays.fill(table, 0);
+        size = 0;
+        hasZeroKey = false;
+    }
+
+    int size() {
+        return size;
+    }
+
+
+    /**
+     * Spreads the bits, the low ones are used as the slot.
+     * The murmur3 finalizer.
+     */
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private int slot(long key) {
+        return (int) mix(key) & mask;
+    }
+
+    private void allocate(int capacity) {
+        table = new long[capacity << 1];
+        mask = capacity - 1;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] old = table;
+        allocate(newCapacity);
+        for (int i = 0; i < old.length; i += 2) {
+            if (old[i] != 0) {
+                insertNew(old[i], old[i + 1]);
+            }
+        }
+    }
+
+    /**
+     * For a key that is known not to be in the table yet, without counting or growing.
+     */
+    private void insertNew(long key, long value) {
+        int slot = slot(key);
+        while (table[slot << 1] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot << 1] = key;
+        table[(slot << 1) + 1] = value;
+    }
+
+    /**
+     * Backward shift deletion: moves following entries of the same probe sequence into the gap,
+     * so that no tombstones are needed.
+     */
+    private void shiftBack(int gap) {
+        int slot = gap;
+        while (true) {
+            slot = (slot + 1) & mask;
+            long k = table[slot << 1];
+            if (k == 0) {
+                break;
+            }
+            int home = slot(k);
+            //move it if its home is not cyclically within (gap, slot]
+            boolean move = (gap <= slot) ? (home <= gap || home > slot) : (home <= gap && home > slot);
+            if (move) {
+                table[gap << 1] = k;
+                table[(gap << 1) + 1] = table[(slot << 1) + 1];
+                gap = slot;
+            }
+        }
+        table[gap << 1] = 0;
+        table[(gap << 1) + 1] = 0;
+    }
+
+}
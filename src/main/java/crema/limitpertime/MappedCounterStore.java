@@ -0,0 +1,266 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+/**
+ * A {@link CounterStore} in a memory-mapped file, the counters survive a restart of the process.
+ *
+ * <p>The layout is the one of the {@link OffHeapCounterStore}, preceded by a header:
+ * <pre>
+ *   header: [ magic | capacity | generation | interval start millis | interval millis | size | has zero | zero value
+ *             | overflowing | overflow value ]
+ *   slots:  [ 64 bit key hash | 64 bit value | 64 bit generation ] * capacity
+ * </pre>
+ * All state is in the file itself, nothing is kept in fields. Therefore a new process attaches to it instantly,
+ * there is no replay and no deserialization. The operating system writes the pages back, also if the process
+ * dies. Only a crash of the machine can lose the last updates, {@link #close()} forces them to the disk.</p>
+ *
+ * <p>The capacity is fixed when the file is created. Once it is 3/4 full the store fails closed like the
+ * {@link CounterStores.Overflow#FAIL_CLOSED bounded} one: the keys that don't fit share one overflow counter until
+ * the end of the time interval, together they get the limit of one key. The overflow counter is in the header, it
+ * survives a restart too. The file is created sparse where the file system supports it.</p>
+ *
+ * <p>The file is locked while in use, a second process (or a second store in the same process) cannot open it.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+class MappedCounterStore implements CounterStore {
+
+    private static final long MAGIC = 0x4352454d41435452L; //"CREMACTR"
+    private static final int CAPACITY = 8;
+    private static final int GENERATION = 16;
+    private static final int INTERVAL_START = 24;
+    private static final int INTERVAL = 32;
+    private static final int SIZE = 40;
+    private static final int HAS_ZERO_HASH = 48;
+    private static final int ZERO_VALUE = 56;
+    private static final int OVERFLOWING = 64;
+    private static final int OVERFLOW_VALUE = 72;
+    private static final int HEADER_SIZE = 80;
+
+    private static final int SLOT_SIZE = 24;
+    private static final int VALUE_OFFSET = 8;
+    private static final int GENERATION_OFFSET = 16;
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileLock fileLock;
+    private final MappedByteBuffer buffer;
+    private final int mask;
+    private final int maxSize;
+
+    private MappedCounterStore(File file, RandomAccessFile raf, FileLock fileLock, MappedByteBuffer buffer) {
+        this.file = file;
+        this.raf = raf;
+        this.fileLock = fileLock;
+        this.buffer = buffer;
+        int capacity = (int) buffer.getLong(CAPACITY);
+        this.mask = capacity - 1;
+        this.maxSize = capacity / 4 * 3;
+    }
+
+    /**
+     * Attaches to the file, or creates it.
+     * If the file was written for a different interval then its counters are dropped.
+     * @param expectedKeys for a new file, sized to hold that many.
+     * @throws IllegalArgumentException if the file is not a counter store, or cannot be opened.
+     * @throws IllegalStateException if the file is in use.
+     */
+    @NotNull
+    static MappedCounterStore open(@NotNull File file, int expectedKeys, long intervalMillis) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            FileLock fileLock = channel.tryLock();
+            if (fileLock == null) {
+                throw new IllegalStateException("Counter store is in use by another process: "+file+"!");
+            }
+            boolean isNew = channel.size() == 0;
+            int capacity;
+            if (isNew) {
+                capacity = MIN_CAPACITY;
+                while (capacity < expectedKeys / 3L * 4 + 1 && capacity < MAX_CAPACITY) {
+                    capacity <<= 1;
+                }
+            } else {
+                if (channel.size() < HEADER_SIZE) {
+                    throw new IllegalArgumentException("Not a counter store: "+file+"!");
+                }
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                header.order(ByteOrder.LITTLE_ENDIAN);
+                capacity = (int) header.getLong(CAPACITY);
+                if (header.getLong(0) != MAGIC || Integer.bitCount(capacity) != 1
+                        || channel.size() != HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+                    throw new IllegalArgumentException("Not a counter store: "+file+"!");
+                }
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (isNew) {
+                buffer.putLong(CAPACITY, capacity);
+                buffer.putLong(GENERATION, 1);
+                buffer.putLong(INTERVAL_START, System.currentTimeMillis());
+                buffer.putLong(INTERVAL, intervalMillis);
+                buffer.putLong(0, MAGIC); //last, marks the header complete.
+            }
+            MappedCounterStore store = new MappedCounterStore(file, raf, fileLock, buffer);
+            if (buffer.getLong(INTERVAL) != intervalMillis) {
+                buffer.putLong(INTERVAL, intervalMillis);
+                store.clear();
+            }
+            return store;
+        } catch (IOException e) {
+            closeQuietly(raf);
+            throw new IllegalArgumentException("Cannot open counter store: "+file+"!", e);
+        } catch (RuntimeException e) {
+            closeQuietly(raf);
+            throw e;
+        }
+    }
+
+    @Override
+    public long get(@NotNull Object key, long absent) {
+        return getByHash(CounterStores.hash(key), absent);
+    }
+
+    @Override
+    public void put(@NotNull Object key, long value) {
+        putByHash(CounterStores.hash(key), value);
+    }
+
+    @Override
+    public long get(long key, long absent) {
+        return getByHash(CounterStores.hash(key), absent);
+    }
+
+    @Override
+    public void put(long key, long value) {
+        putByHash(CounterStores.hash(key), value);
+    }
+
+    @Override
+    public int size() {
+        return (int) buffer.getLong(SIZE);
+    }
+
+    /**
+     * O(1), see {@link OffHeapCounterStore#clear()}.
+     */
+    @Override
+    public void clear() {
+        buffer.putLong(SIZE, 0);
+        buffer.putLong(HAS_ZERO_HASH, 0);
+        buffer.putLong(OVERFLOWING, 0);
+        buffer.putLong(INTERVAL_START, System.currentTimeMillis());
+        buffer.putLong(GENERATION, buffer.getLong(GENERATION) + 1);
+    }
+
+    @Override
+    public long getIntervalStartMillis() {
+        return buffer.getLong(INTERVAL_START);
+    }
+
+    /**
+     * Writes the changes to the disk and releases the file. The mapping itself is released by the garbage collector.
+     */
+    @Override
+    public void close() {
+        if (!raf.getChannel().isOpen()) {
+            return;
+        }
+        buffer.force();
+        try {
+            fileLock.release();
+        } catch (IOException ignore) {
+            //closing the file releases it anyway.
+        }
+        closeQuietly(raf);
+    }
+
+    /**
+     * @return true if a key did not fit in this time interval, and shares the overflow counter.
+     */
+    boolean isOverflowing() {
+        return buffer.getLong(OVERFLOWING) != 0;
+    }
+
+    @NotNull
+    File getFile() {
+        return file;
+    }
+
+
+    private long getByHash(long hash, long absent) {
+        if (hash == 0) {
+            return buffer.getLong(HAS_ZERO_HASH) != 0 ? buffer.getLong(ZERO_VALUE) : absent;
+        }
+        long generation = buffer.getLong(GENERATION);
+        int slot = (int) hash & mask;
+        while (true) {
+            int pos = HEADER_SIZE + slot * SLOT_SIZE;
+            if (buffer.getLong(pos + GENERATION_OFFSET) != generation) {
+                return isOverflowing() ? buffer.getLong(OVERFLOW_VALUE) : absent;
+            }
+            if (buffer.getLong(pos) == hash) {
+                return buffer.getLong(pos + VALUE_OFFSET);
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void putByHash(long hash, long value) {
+        if (hash == 0) {
+            buffer.putLong(ZERO_VALUE, value);
+            if (buffer.getLong(HAS_ZERO_HASH) == 0) {
+                buffer.putLong(HAS_ZERO_HASH, 1);
+                buffer.putLong(SIZE, buffer.getLong(SIZE) + 1);
+            }
+            return;
+        }
+        long generation = buffer.getLong(GENERATION);
+        int slot = (int) hash & mask;
+        while (true) {
+            int pos = HEADER_SIZE + slot * SLOT_SIZE;
+            if (buffer.getLong(pos + GENERATION_OFFSET) != generation) {
+                long size = buffer.getLong(SIZE);
+                if (size >= maxSize) {
+                    buffer.putLong(OVERFLOW_VALUE, value);
+                    buffer.putLong(OVERFLOWING, 1);
+                    return;
+                }
+                buffer.putLong(pos, hash);
+                buffer.putLong(pos + VALUE_OFFSET, value);
+                buffer.putLong(pos + GENERATION_OFFSET, generation);
+                buffer.putLong(SIZE, size + 1);
+                return;
+            }
+            if (buffer.getLong(pos) == hash) {
+                buffer.putLong(pos + VALUE_OFFSET, value);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ignore) {
+                //nothing to do.
+            }
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Wraps a limit and counts what it does in {@link LimitPerTimeMetrics}.
+ *
+ * <p>Instrumentation is opt-in: a limit that is not wrapped pays nothing.</p>
+ *
+ * <p>Only the methods that return a boolean don't tell which time limit rejected. On a rejection, and only then,
+ * {@link LimitPerTime#canConsumeOrSpec} is asked for it, and the key is boxed for that if it's a long. A rejection
+ * of more than 1 permit where 1 would still fit is not attributed to a time limit.</p>
+ *
+ * @see LimitsPerTime#metered(LimitPerTime)
+ * @see LimitsPerTime.Builder#buildMetered()
+ * @author Alexei Arshavin, Optimaize
+ */
+public class MeteredLimitPerTime implements ExtendedLimitPerTime, Waitable {
+
+    @NotNull
+    private final ExtendedLimitPerTime delegate;
+    @NotNull
+    private final LimitPerTimeMetrics metrics;
+
+    MeteredLimitPerTime(@NotNull LimitPerTime delegate, @NotNull LimitPerTimeMetrics metrics) {
+        this.delegate = LimitsPerTime.extended(delegate);
+        this.metrics = metrics;
+        if (delegate instanceof KeyCounted) {
+            metrics.setKeyCounted((KeyCounted) delegate);
+        }
+    }
+
+    @NotNull
+    public LimitPerTimeMetrics getMetrics() {
+        return metrics;
+    }
+
+    @NotNull
+    ExtendedLimitPerTime getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key) {
+        return consumeOrSpec(key) == null;
+    }
+
+    @Override
+    public boolean consume(long key) {
+        if (delegate.consume(key)) {
+            metrics.accepted();
+            return true;
+        } else {
+            rejected(Long.valueOf(key));
+            return false;
+        }
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key, long permits) {
+        if (delegate.consume(key, permits)) {
+            metrics.accepted();
+            return true;
+        } else {
+            rejected(key);
+            return false;
+        }
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec consumeOrSpec(@NotNull Object key) {
+        LimitPerTimeSpec spec = delegate.consumeOrSpec(key);
+        if (spec == null) {
+            metrics.accepted();
+        } else {
+            metrics.rejected(key, spec);
+        }
+        return spec;
+    }
+
+    @NotNull @Override
+    public BitSet consumeAll(@NotNull Collection<?> keys) {
+        BitSet consumed = delegate.consumeAll(keys);
+        metrics.accepted(consumed.cardinality());
+        int i = 0;
+        for (Object key : keys) {
+            if (!consumed.get(i++)) {
+                rejected(key);
+            }
+        }
+        return consumed;
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key) {
+        return delegate.canConsume(key);
+    }
+
+    @Override
+    public boolean canConsume(long key) {
+        return delegate.canConsume(key);
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key, long permits) {
+        return delegate.canConsume(key, permits);
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec canConsumeOrSpec(@NotNull Object key) {
+        return delegate.canConsumeOrSpec(key);
+    }
+
+    @Override
+    public long millisUntil(@NotNull Object key, long permits) {
+        return (delegate instanceof Waitable) ? ((Waitable) delegate).millisUntil(key, permits) : -1;
+    }
+
+    @Override
+    public void destroy() {
+        delegate.destroy();
+    }
+
+    @NotNull @Override
+    public List<LimitPerTimeSpec> getSpec() {
+        return delegate.getSpec();
+    }
+
+
+    /**
+     * For the rejections where the spec is not known.
+     */
+    private void rejected(@NotNull Object key) {
+        metrics.rejected(key, delegate.canConsumeOrSpec(key));
+    }
+
+}
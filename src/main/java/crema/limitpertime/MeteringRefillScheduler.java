@@ -0,0 +1,40 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes the tasks on to another scheduler, and reports how long each run took to the {@link LimitPerTimeMetrics}.
+ *
+ * <p>One instance per metered limit, it only sees the refills of that limit.
+ * For the limits that refill under their lock, that's how long the lock was held.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+class MeteringRefillScheduler implements RefillScheduler {
+
+    private final RefillScheduler delegate;
+    private final LimitPerTimeMetrics metrics;
+
+    MeteringRefillScheduler(@NotNull RefillScheduler delegate, @NotNull LimitPerTimeMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @NotNull @Override
+    public Registration schedule(@NotNull final Runnable task, long initialDelay, long period, @NotNull TimeUnit timeUnit) {
+        return delegate.schedule(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    task.run();
+                } finally {
+                    metrics.refilled(System.nanoTime() - start);
+                }
+            }
+        }, initialDelay, period, timeUnit);
+    }
+
+}
@@ -5,6 +5,8 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -14,31 +16,107 @@ import java.util.concurrent.TimeUnit;
  * <p>Can contain for example one limit per minute, one per hour and one per day, and only if
  * none is exhausted, then {@link #consume} works.</p>
  *
+ * <p>Implementation detail:
+ * All time limits of one key are checked and consumed atomically while holding the stripe of that key,
+ * one of 64 monitors. Different keys mostly fall into different stripes and run in parallel.
+ * By default the fixed windows are {@link ConcurrentLimitPerTime}s, which need no lock of their own.
+ * With a {@link Builder#counterStores custom counter store} they are {@link LockableLimitPerTime}s, and
+ * their locks serialize all keys again.</p>
+ *
  * @author Alexei Arshavin, Optimaize
  */
-class MultiLimitPerTime implements LimitPerTime {
+class MultiLimitPerTime implements ExtendedLimitPerTime, KeyCounted, Waitable {
+
+    /**
+     * Power of 2.
+     */
+    private static final int STRIPES = 64;
 
-    private final List<LockableLimitPerTime> timeLimits;
+    private final List<LockableLimit> timeLimits;
+    private final Object[] stripes;
 
-    private MultiLimitPerTime(@NotNull List<LockableLimitPerTime> timeLimits) {
+    private MultiLimitPerTime(@NotNull List<LockableLimit> timeLimits) {
         this.timeLimits = ImmutableList.copyOf(timeLimits);
+        this.stripes = new Object[STRIPES];
+        for (int i=0; i<STRIPES; i++) {
+            stripes[i] = new Object();
+        }
     }
 
     static Builder create() {
         return new Builder();
     }
     static class Builder {
-        private final List<LockableLimitPerTime> timeLimits = new ArrayList<>();
+        private final List<LimitPerTimeSpec> specs = new ArrayList<>();
+        private RefillScheduler scheduler = HashedWheelRefillScheduler.getDefault();
+        @Nullable
+        private CounterStore.Factory counterStores = null;
+        @Nullable
+        private SharedQuotaStore sharedQuota = null;
+        private long leaseSize;
         public Builder add(long limit, long timeAmount, @NotNull TimeUnit timeUnit) {
             return add(new LimitPerTimeSpec(limit, timeAmount, timeUnit));
         }
         public Builder add(@NotNull LimitPerTimeSpec spec) {
-            timeLimits.add(new LockableLimitPerTime(spec));
+            specs.add(spec);
+            return this;
+        }
+        /**
+         * Optional, by default the {@link HashedWheelRefillScheduler#getDefault() shared one} is used.
+         */
+        public Builder scheduler(@NotNull RefillScheduler scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+        /**
+         * Optional, by default the fixed windows count lock-free on the heap.
+         * With a store the calls of all keys are serialized per time limit, see the class header.
+         */
+        public Builder counterStores(@NotNull CounterStore.Factory counterStores) {
+            this.counterStores = counterStores;
+            return this;
+        }
+        /**
+         * Optional, shares the quota of the fixed windows with other nodes, see {@link LeasingLimitPerTime}.
+         * Other algorithms can't be shared.
+         */
+        public Builder sharedQuota(@NotNull SharedQuotaStore sharedQuota, long leaseSize) {
+            this.sharedQuota = sharedQuota;
+            this.leaseSize = leaseSize;
             return this;
         }
         public MultiLimitPerTime build() {
+            List<LockableLimit> timeLimits = new ArrayList<>();
+            for (LimitPerTimeSpec spec : specs) {
+                timeLimits.add(createLimit(spec));
+            }
             return new MultiLimitPerTime(timeLimits);
         }
+        private LockableLimit createLimit(LimitPerTimeSpec spec) {
+            switch (spec.getAlgorithm()) {
+                case FIXED_WINDOW:
+                    if (sharedQuota != null) {
+                        return new LeasingLimitPerTime(spec, sharedQuota, leaseSize, scheduler);
+                    }
+                    if (counterStores == null) {
+                        return new ConcurrentLimitPerTime(spec, scheduler);
+                    }
+                    return new LockableLimitPerTime(spec, scheduler, counterStores);
+                case SLIDING_WINDOW:
+                    checkNotShared(spec);
+                    return new SlidingWindowLimitPerTime(spec);
+                case GCRA:
+                    checkNotShared(spec);
+                    return new GcraLimitPerTime(spec);
+                default:
+                    throw new UnsupportedOperationException("Unsupported algorithm: "+spec.getAlgorithm());
+            }
+        }
+        private void checkNotShared(LimitPerTimeSpec spec) {
+            if (sharedQuota != null) {
+                throw new IllegalArgumentException("Only fixed windows can be shared: "+spec+"!");
+            }
+        }
     }
 
 
@@ -48,39 +126,110 @@ class MultiLimitPerTime implements LimitPerTime {
         return consumeOrSpec(key) == null;
     }
 
+    @Override
+    public boolean consume(long key) {
+        return consumeOrSpec(key) == null;
+    }
+
     /**
-     * Impl note: method is and must be synchronized.
+     * All or nothing over all time limits.
      */
+    @Override
+    public boolean consume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        lockAll();
+        try {
+            synchronized (stripe(key)) {
+                for (LockableLimit timeLimit : timeLimits) {
+                    if (timeLimit.lockedCanConsumeOrSpec(key, permits) != null) {
+                        return false;
+                    }
+                }
+                for (LockableLimit timeLimit : timeLimits) {
+                    timeLimit.doConsume(key, permits);
+                }
+                return true;
+            }
+        } finally {
+            unlockAll();
+        }
+    }
+
     @Nullable
     @Override
-    public synchronized LimitPerTimeSpec consumeOrSpec(@NotNull Object key) {
-        //acquire locks for all:
-        for (LockableLimitPerTime timeLimit : timeLimits) {
-            timeLimit.lock();
+    public LimitPerTimeSpec consumeOrSpec(@NotNull Object key) {
+        lockAll();
+        try {
+            return lockedConsumeOrSpec(key);
+        } finally {
+            unlockAll();
         }
+    }
 
-        LimitPerTimeSpec firstLimitReached = null;
-        checkAll:
-        do {
+    /**
+     * Takes the locks of the time limits once for all keys.
+     */
+    @NotNull @Override
+    public BitSet consumeAll(@NotNull Collection<?> keys) {
+        BitSet consumed = new BitSet(keys.size());
+        lockAll();
+        try {
+            int i = 0;
+            for (Object key : keys) {
+                if (lockedConsumeOrSpec(key) == null) {
+                    consumed.set(i);
+                }
+                i++;
+            }
+        } finally {
+            unlockAll();
+        }
+        return consumed;
+    }
+
+    /**
+     * Must hold the locks of the time limits.
+     */
+    @Nullable
+    private LimitPerTimeSpec lockedConsumeOrSpec(@NotNull Object key) {
+        synchronized (stripe(key)) {
             //check all: (we need this extra loop, otherwise we'd consume some until one says no.)
-            for (LockableLimitPerTime timeLimit : timeLimits) {
-                firstLimitReached = timeLimit.lockedCanConsumeOrSpec(key);
-                if (firstLimitReached != null) {
-                    break checkAll;
+            for (LockableLimit timeLimit : timeLimits) {
+                LimitPerTimeSpec limitReached = timeLimit.lockedCanConsumeOrSpec(key);
+                if (limitReached != null) {
+                    return limitReached;
                 }
             }
             //ok, all accepted, let's do it:
-            for (LockableLimitPerTime timeLimit : timeLimits) {
-                timeLimit.consume(key); //ignore result because we have checked it already and locked the objects. could assert but nah.
+            for (LockableLimit timeLimit : timeLimits) {
+                timeLimit.doConsume(key); //we have checked it already and locked the key.
             }
-        } while (false);
-
-        //release locks:
-        for (LockableLimitPerTime timeLimit : timeLimits) {
-            timeLimit.unlock();
+            return null;
         }
+    }
 
-        return firstLimitReached;
+    /**
+     * Same as {@link #consumeOrSpec(Object)} for a numeric key, without boxing it.
+     */
+    @Nullable
+    public LimitPerTimeSpec consumeOrSpec(long key) {
+        lockAll();
+        try {
+            synchronized (stripe(key)) {
+                for (LockableLimit timeLimit : timeLimits) {
+                    LimitPerTimeSpec limitReached = timeLimit.lockedCanConsumeOrSpec(key);
+                    if (limitReached != null) {
+                        return limitReached;
+                    }
+                }
+                for (LockableLimit timeLimit : timeLimits) {
+                    timeLimit.doConsume(key);
+                }
+                return null;
+            }
+        } finally {
+            unlockAll();
+        }
     }
 
     @Override
@@ -88,50 +237,148 @@ class MultiLimitPerTime implements LimitPerTime {
         return canConsumeOrSpec(key) == null;
     }
 
-    /**
-     * Impl note: method is and must be synchronized.
-     */
-    @Nullable @Override
-    public synchronized LimitPerTimeSpec canConsumeOrSpec(@NotNull Object key) {
-        //acquire locks for all:
-        for (LockableLimitPerTime timeLimit : timeLimits) {
-            timeLimit.lock();
-        }
+    @Override
+    public boolean canConsume(long key) {
+        return canConsumeOrSpec(key) == null;
+    }
 
-        LimitPerTimeSpec firstLimitReached = null;
-        checkAll:
-        do {
-            //check all:
-            for (LockableLimitPerTime timeLimit : timeLimits) {
-                firstLimitReached = timeLimit.lockedCanConsumeOrSpec(key);
-                if (firstLimitReached != null) {
-                    break checkAll;
+    @Override
+    public boolean canConsume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        lockAll();
+        try {
+            synchronized (stripe(key)) {
+                for (LockableLimit timeLimit : timeLimits) {
+                    if (timeLimit.lockedCanConsumeOrSpec(key, permits) != null) {
+                        return false;
+                    }
                 }
+                return true;
             }
-        } while (false);
+        } finally {
+            unlockAll();
+        }
+    }
 
-        //release locks:
-        for (LockableLimitPerTime timeLimit : timeLimits) {
-            timeLimit.unlock();
+    @Nullable @Override
+    public LimitPerTimeSpec canConsumeOrSpec(@NotNull Object key) {
+        lockAll();
+        try {
+            synchronized (stripe(key)) {
+                for (LockableLimit timeLimit : timeLimits) {
+                    LimitPerTimeSpec limitReached = timeLimit.lockedCanConsumeOrSpec(key);
+                    if (limitReached != null) {
+                        return limitReached;
+                    }
+                }
+                return null;
+            }
+        } finally {
+            unlockAll();
         }
+    }
 
-        return firstLimitReached;
+    /**
+     * Same as {@link #canConsumeOrSpec(Object)} for a numeric key, without boxing it.
+     */
+    @Nullable
+    public LimitPerTimeSpec canConsumeOrSpec(long key) {
+        lockAll();
+        try {
+            synchronized (stripe(key)) {
+                for (LockableLimit timeLimit : timeLimits) {
+                    LimitPerTimeSpec limitReached = timeLimit.lockedCanConsumeOrSpec(key);
+                    if (limitReached != null) {
+                        return limitReached;
+                    }
+                }
+                return null;
+            }
+        } finally {
+            unlockAll();
+        }
     }
 
     @Override
     public void destroy() {
-        for (LockableLimitPerTime timeLimit : timeLimits) {
+        for (LockableLimit timeLimit : timeLimits) {
             timeLimit.destroy();
         }
     }
 
+    /**
+     * The longest wait of any of the time limits.
+     */
+    @Override
+    public long millisUntil(@NotNull Object key, long permits) {
+        long max = 0;
+        for (LockableLimit timeLimit : timeLimits) {
+            if (!(timeLimit instanceof Waitable)) {
+                return -1;
+            }
+            long millis = ((Waitable) timeLimit).millisUntil(key, permits);
+            if (millis < 0) {
+                return -1;
+            }
+            max = Math.max(max, millis);
+        }
+        return max;
+    }
+
+    /**
+     * The most keys of any of the time limits, each key is in all of them until its window is over.
+     * @return -1 if a time limit can't tell.
+     */
+    @Override
+    public int getKeyCount() {
+        int max = 0;
+        for (LockableLimit timeLimit : timeLimits) {
+            if (!(timeLimit instanceof KeyCounted)) {
+                return -1;
+            }
+            max = Math.max(max, ((KeyCounted) timeLimit).getKeyCount());
+        }
+        return max;
+    }
+
     @NotNull @Override
     public List<LimitPerTimeSpec> getSpec() {
         List<LimitPerTimeSpec> ret = new ArrayList<>();
-        for (LockableLimitPerTime timeLimit : timeLimits) {
+        for (LockableLimit timeLimit : timeLimits) {
             ret.addAll(timeLimit.getSpec());
         }
         return ret;
     }
 
+    /**
+     * The monitor that serializes all calls for the key. A boxed Long uses the one of the primitive value,
+     * they share the counters.
+     */
+    private Object stripe(@NotNull Object key) {
+        if (key instanceof Long) {
+            return stripe(((Long) key).longValue());
+        }
+        return stripes[(int) LongLongHashMap.mix(key.hashCode()) & (STRIPES - 1)];
+    }
+
+    private Object stripe(long key) {
+        return stripes[(int) LongLongHashMap.mix(key) & (STRIPES - 1)];
+    }
+
+    /**
+     * The locks of the time limits are always taken before the stripe, otherwise two calls could deadlock.
+     * They are empty except for the time limits that use a {@link CounterStore}.
+     */
+    private void lockAll() {
+        for (LockableLimit timeLimit : timeLimits) {
+            timeLimit.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (LockableLimit timeLimit : timeLimits) {
+            timeLimit.unlock();
+        }
+    }
+
 }
@@ -3,6 +3,8 @@ package crema.limitpertime;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
@@ -11,7 +13,7 @@ import java.util.List;
  *
  * @author Alexei Arshavin, Optimaize
  */
-class NullLimitPerTime implements LimitPerTime {
+class NullLimitPerTime implements ExtendedLimitPerTime, KeyCounted, Waitable {
 
     private static final NullLimitPerTime INSTANCE = new NullLimitPerTime();
     public static NullLimitPerTime getInstance() {
@@ -25,17 +27,47 @@ class NullLimitPerTime implements LimitPerTime {
         return true;
     }
 
+    @Override
+    public boolean consume(long key) {
+        return true;
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        return true;
+    }
+
     @Nullable
     @Override
     public LimitPerTimeSpec consumeOrSpec(@NotNull Object key) {
         return null;
     }
 
+    @NotNull
+    @Override
+    public BitSet consumeAll(@NotNull Collection<?> keys) {
+        BitSet consumed = new BitSet(keys.size());
+        consumed.set(0, keys.size());
+        return consumed;
+    }
+
     @Override
     public boolean canConsume(@NotNull Object key) {
         return true;
     }
 
+    @Override
+    public boolean canConsume(long key) {
+        return true;
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        return true;
+    }
+
     @Nullable
     @Override
     public LimitPerTimeSpec canConsumeOrSpec(@NotNull Object key) {
@@ -46,6 +78,16 @@ class NullLimitPerTime implements LimitPerTime {
     public void destroy() {
     }
 
+    @Override
+    public long millisUntil(@NotNull Object key, long permits) {
+        return 0;
+    }
+
+    @Override
+    public int getKeyCount() {
+        return 0;
+    }
+
     @NotNull
     @Override
     public List<LimitPerTimeSpec> getSpec() {
@@ -0,0 +1,225 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A {@link CounterStore} that keeps the counters in direct memory, outside of the Java heap.
+ *
+ * <p>The table uses open addressing with linear probing over fixed size slots of 24 bytes:
+ * <pre>
+ *   [ 64 bit key hash | 64 bit value | 64 bit generation ]
+ * </pre>
+ * The key itself is not stored, only its {@link CounterStores#hash 64 bit hash}. Therefore the heap footprint
+ * is constant no matter how many keys there are. For long keys the hash is unique. For other keys two of them
+ * could share a counter if their hashes collide, see {@link CounterStores#hash}.</p>
+ *
+ * <p>{@link #clear()} is O(1): it increments the generation, and a slot of an older generation counts as free.
+ * A lookup can stop there because within one generation nothing is ever removed.</p>
+ *
+ * <p>The table grows by doubling when 3/4 full, up to 2^26 slots (1.5GB). Once that is 3/4 full too, the store
+ * fails closed like the {@link CounterStores.Overflow#FAIL_CLOSED bounded} one: the keys that don't fit share one
+ * overflow counter until the end of the time interval, together they get the limit of one key. Nothing is written
+ * to the table then, so it never gets fuller than 3/4 and a lookup always finds a free slot to stop at.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+class OffHeapCounterStore implements CounterStore {
+
+    private static final int SLOT_SIZE = 24;
+    private static final int VALUE_OFFSET = 8;
+    private static final int GENERATION_OFFSET = 16;
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    private final int maxCapacity;
+    private ByteBuffer buffer;
+    private int mask;
+    private int size;
+    /**
+     * Starts at 1 so that the zeroed memory of a new buffer is free.
+     */
+    private long generation = 1;
+    private long intervalStart = System.currentTimeMillis();
+
+    /**
+     * The hash 0 marks nothing here, but it's the hash of the long key 0, so it's kept aside.
+     */
+    private boolean hasZeroHash;
+    private long zeroValue;
+
+    /**
+     * True once a key did not fit in this time interval, see class header.
+     */
+    private boolean overflowing;
+    private boolean hasOverflowValue;
+    private long overflowValue;
+
+    /**
+     * @param expectedKeys the table is sized to hold that many keys without growing.
+     */
+    OffHeapCounterStore(int expectedKeys) {
+        this(expectedKeys, MAX_CAPACITY);
+    }
+
+    /**
+     * @param maxCapacity the most slots, a power of 2.
+     */
+    OffHeapCounterStore(int expectedKeys, int maxCapacity) {
+        this.maxCapacity = maxCapacity;
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedKeys / 3L * 4 + 1 && capacity < maxCapacity) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    @Override
+    public long get(@NotNull Object key, long absent) {
+        return getByHash(CounterStores.hash(key), absent);
+    }
+
+    @Override
+    public void put(@NotNull Object key, long value) {
+        putByHash(CounterStores.hash(key), value);
+    }
+
+    @Override
+    public long get(long key, long absent) {
+        return getByHash(CounterStores.hash(key), absent);
+    }
+
+    @Override
+    public void put(long key, long value) {
+        putByHash(CounterStores.hash(key), value);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        generation++;
+        size = 0;
+        hasZeroHash = false;
+        overflowing = false;
+        hasOverflowValue = false;
+        intervalStart = System.currentTimeMillis();
+    }
+
+    @Override
+    public long getIntervalStartMillis() {
+        return intervalStart;
+    }
+
+    /**
+     * @return true if a key did not fit in this time interval, and shares the overflow counter.
+     */
+    boolean isOverflowing() {
+        return overflowing;
+    }
+
+    /**
+     * The direct memory is freed when the store is garbage collected.
+     */
+    @Override
+    public void close() {
+        clear();
+    }
+
+    /**
+     * @return the number of bytes of direct memory in use.
+     */
+    long getCapacityInBytes() {
+        return buffer.capacity();
+    }
+
+
+    private long getByHash(long hash, long absent) {
+        if (hash == 0) {
+            return hasZeroHash ? zeroValue : absent;
+        }
+        int slot = (int) hash & mask;
+        while (true) {
+            int pos = slot * SLOT_SIZE;
+            if (buffer.getLong(pos + GENERATION_OFFSET) != generation) {
+                return (overflowing && hasOverflowValue) ? overflowValue : absent;
+            }
+            if (buffer.getLong(pos) == hash) {
+                return buffer.getLong(pos + VALUE_OFFSET);
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void putByHash(long hash, long value) {
+        if (hash == 0) {
+            if (!hasZeroHash) {
+                hasZeroHash = true;
+                size++;
+            }
+            zeroValue = value;
+            return;
+        }
+        int slot = (int) hash & mask;
+        while (true) {
+            int pos = slot * SLOT_SIZE;
+            if (buffer.getLong(pos + GENERATION_OFFSET) != generation) {
+                break;
+            }
+            if (buffer.getLong(pos) == hash) {
+                buffer.putLong(pos + VALUE_OFFSET, value);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        //a new key: checked before anything is written.
+        if ((size + 1) * 4L > (mask + 1) * 3L) {
+            if (mask + 1 >= maxCapacity) {
+                overflowing = true;
+                hasOverflowValue = true;
+                overflowValue = value;
+                return;
+            }
+            grow();
+            putByHash(hash, value);
+            return;
+        }
+        write(slot * SLOT_SIZE, hash, value);
+        size++;
+    }
+
+    private void write(int pos, long hash, long value) {
+        buffer.putLong(pos, hash);
+        buffer.putLong(pos + VALUE_OFFSET, value);
+        buffer.putLong(pos + GENERATION_OFFSET, generation);
+    }
+
+    private void allocate(int capacity) {
+        buffer = ByteBuffer.allocateDirect(capacity * SLOT_SIZE).order(ByteOrder.nativeOrder());
+        mask = capacity - 1;
+    }
+
+    private void grow() {
+        int capacity = mask + 1;
+        ByteBuffer old = buffer;
+        long oldGeneration = generation;
+        allocate(capacity << 1);
+        generation = 1;
+        for (int pos = 0; pos < old.capacity(); pos += SLOT_SIZE) {
+            if (old.getLong(pos + GENERATION_OFFSET) == oldGeneration) {
+                long hash = old.getLong(pos);
+                int slot = (int) hash & mask;
+                while (buffer.getLong(slot * SLOT_SIZE + GENERATION_OFFSET) == generation) {
+                    slot = (slot + 1) & mask;
+                }
+                write(slot * SLOT_SIZE, hash, old.getLong(pos + VALUE_OFFSET));
+            }
+        }
+    }
+
+}
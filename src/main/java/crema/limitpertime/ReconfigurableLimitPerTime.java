@@ -0,0 +1,30 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * A {@link LimitPerTime} whose time limits can be changed while it is in use.
+ *
+ * <p>Destroying a limit and creating a new one loses all counters, the keys would all get their full limits
+ * at once. Here the keys keep what they consumed.</p>
+ *
+ * @see LimitsPerTime#reconfigurable(List)
+ * @author Alexei Arshavin, Optimaize
+ */
+public interface ReconfigurableLimitPerTime extends ExtendedLimitPerTime {
+
+    /**
+     * Replaces the time limits, atomically. The consumers are not blocked.
+     *
+     * <p>The counts of the keys are carried over: a time limit with the same time amount as an old one keeps
+     * the key's count of the current interval. A new time amount starts with the same share of its limit used
+     * up as in the old time limit with the closest time amount.</p>
+     *
+     * @param spec will be {@link LimitPerTimeSpecs#sortAndValidate sorted and validated}.
+     * @throws IllegalArgumentException if the spec is invalid, or not supported by the implementation.
+     */
+    void updateSpec(@NotNull List<LimitPerTimeSpec> spec);
+
+}
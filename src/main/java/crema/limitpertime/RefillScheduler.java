@@ -0,0 +1,40 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the periodic refills of the {@link LimitPerTime} instances.
+ *
+ * <p>One scheduler is meant to be shared by many limits, so that the number of threads does not grow
+ * with the number of limit instances. See {@link HashedWheelRefillScheduler#getDefault()}.</p>
+ *
+ * <p>The tasks are run on the scheduler's own thread(s). They must be short and must not block,
+ * otherwise they delay the tasks of all other limits.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+public interface RefillScheduler {
+
+    /**
+     * Runs the task periodically at a fixed rate, the first time after {@code initialDelay}.
+     * @param initialDelay >= 0
+     * @param period > 0
+     * @return for cancelling the task.
+     */
+    @NotNull
+    Registration schedule(@NotNull Runnable task, long initialDelay, long period, @NotNull TimeUnit timeUnit);
+
+    /**
+     * Handle to a scheduled task.
+     */
+    interface Registration {
+        /**
+         * Stops the task. It won't run anymore after this method returns, unless it's running right now.
+         * Calling it more than once has no effect.
+         */
+        void cancel();
+    }
+
+}
@@ -0,0 +1,16 @@
+package crema.limitpertime;
+
+/**
+ * A limit that gets its counters reset periodically by a {@link RefillScheduler}.
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+interface Refillable {
+
+    /**
+     * Resets the counters at the end of a time interval.
+     * Called by the scheduler thread, therefore must not block for long.
+     */
+    void refill();
+
+}
@@ -0,0 +1,37 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Holds the quotas of fixed windows for a cluster of nodes, so that a limit applies to all of them together.
+ *
+ * <p>The nodes don't ask it for every consumption: each one leases a chunk of a key's quota and serves from that
+ * locally, see {@link LimitsPerTime.Builder#sharedQuota}. The store only needs one atomic operation, taking up to
+ * n permits, which maps to an increment in a database or a key-value server.</p>
+ *
+ * <p>The windows are numbered by the wall clock, {@code System.currentTimeMillis() / time amount in millis},
+ * therefore all nodes agree on them as long as their clocks are in sync. The key's {@code toString()} must be the
+ * same on all nodes, implementations that are not in-process identify it by that.</p>
+ *
+ * <p>Implementations must be thread safe. A store that is unreachable should throw, the exception is passed on
+ * to the caller of {@code consume()}.</p>
+ *
+ * @see InMemorySharedQuotaStore for tests, and for many limits in one process.
+ * @author Alexei Arshavin, Optimaize
+ */
+public interface SharedQuotaStore {
+
+    /**
+     * Takes as many of the requested permits as are left in the window, atomically.
+     * @param window the number of the window, see the class header. Older windows are not asked for anymore.
+     * @param permits >= 1
+     * @return the number taken, from 0 to {@code permits}.
+     */
+    long take(@NotNull LimitPerTimeSpec spec, @NotNull Object key, long window, long permits);
+
+    /**
+     * @return the number of permits that are left in the window, without taking any.
+     */
+    long available(@NotNull LimitPerTimeSpec spec, @NotNull Object key, long window);
+
+}
@@ -10,52 +10,74 @@ import java.util.concurrent.TimeUnit;
  * Simple impl with just one limit, using Java synchronization.
  *
  * <p>Implementation detail:
- * Using a Timer with TimerTask.
+ * The counters are reset by a shared {@link RefillScheduler}.
  * All access is synchronized. That may not be the most performing, but does the job in a simple and safe way.
+ * The counters are kept in a {@link CounterStore}, on the heap by default.
  * </p>
  *
  * @author Alexei Arshavin, Optimaize
  */
-class SimpleLimitPerTime implements LimitPerTime {
+class SimpleLimitPerTime implements ExtendedLimitPerTime, Refillable, KeyCounted, Waitable {
+
+    private static final long ABSENT = -1;
 
     @NotNull
     private final LimitPerTimeSpec spec;
-    private final Map<Object,Long> counters;
-    private final Timer timer;
+    private final CounterStore counters;
+    private final RefillScheduler.Registration refillRegistration;
+    /**
+     * When the next refill is due, in {@link System#nanoTime()} terms.
+     */
+    private long refillDueNanos;
 
     protected SimpleLimitPerTime(long limit, long timeAmount, @NotNull TimeUnit timeUnit) {
         this(new LimitPerTimeSpec(limit, timeAmount, timeUnit));
     }
 
+    protected SimpleLimitPerTime(@NotNull LimitPerTimeSpec spec) {
+        this(spec, HashedWheelRefillScheduler.getDefault());
+    }
+
+    protected SimpleLimitPerTime(@NotNull LimitPerTimeSpec spec, @NotNull RefillScheduler scheduler) {
+        this(spec, scheduler, CounterStores.heap());
+    }
+
     /**
+     * @param counterStores creates the store for the counters, for example {@link CounterStores#offHeap}.
      */
-    protected SimpleLimitPerTime(@NotNull LimitPerTimeSpec spec) {
+    protected SimpleLimitPerTime(@NotNull LimitPerTimeSpec spec, @NotNull RefillScheduler scheduler, @NotNull CounterStore.Factory counterStores) {
         this.spec = spec;
-        this.counters = new HashMap<>();
-
-        this.timer = new Timer("Timer-SimpleLimitPerTime", true);
-        long millis = spec.getTimeAmountInMillis();
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                refill();
-            }
-        }, millis, millis);
+        this.counters = counterStores.create(spec);
+        long initialDelay = CounterStores.continueInterval(counters, spec.getTimeAmountInMillis());
+        this.refillDueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(initialDelay);
+        this.refillRegistration = WeakRefillTask.schedule(scheduler, this, initialDelay, spec.getTimeAmountInMillis());
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key) {
+        return consume(key, 1);
     }
 
     @Override
-    public synchronized boolean consume(@NotNull Object key) {
-        Long counter = counters.get(key);
-        if (counter==null) {
-            counters.put(key, spec.getLimit() - 1);
+    public synchronized boolean consume(long key) {
+        long remaining = remaining(counters.get(key, ABSENT));
+        if (remaining >= 1) {
+            counters.put(key, remaining - 1);
             return true;
         } else {
-            if (counter >= 1) {
-                counters.put(key, counter - 1);
-                return true;
-            } else {
-                return false;
-            }
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized boolean consume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        long remaining = remaining(counters.get(key, ABSENT));
+        if (remaining >= permits) {
+            counters.put(key, remaining - permits);
+            return true;
+        } else {
+            return false;
         }
     }
 
@@ -68,14 +90,36 @@ class SimpleLimitPerTime implements LimitPerTime {
         }
     }
 
+    /**
+     * Synchronizes once for all keys.
+     */
+    @NotNull @Override
+    public synchronized BitSet consumeAll(@NotNull Collection<?> keys) {
+        BitSet consumed = new BitSet(keys.size());
+        int i = 0;
+        for (Object key : keys) {
+            if (consume(key)) {
+                consumed.set(i);
+            }
+            i++;
+        }
+        return consumed;
+    }
+
     @Override
     public boolean canConsume(@NotNull Object key) {
-        Long counter = counters.get(key);
-        if (counter==null) {
-            return true;
-        } else {
-            return counter >= 1;
-        }
+        return canConsume(key, 1);
+    }
+
+    @Override
+    public synchronized boolean canConsume(long key) {
+        return remaining(counters.get(key, ABSENT)) >= 1;
+    }
+
+    @Override
+    public synchronized boolean canConsume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        return remaining(counters.get(key, ABSENT)) >= permits;
     }
 
     @Override @Nullable
@@ -88,9 +132,22 @@ class SimpleLimitPerTime implements LimitPerTime {
     }
 
     @Override
-    public void destroy() {
-        timer.cancel();
-        counters.clear();
+    public synchronized void destroy() {
+        refillRegistration.cancel();
+        counters.close();
+    }
+
+    /**
+     * The time until the next refill, if the key can't consume now.
+     */
+    @Override
+    public synchronized long millisUntil(@NotNull Object key, long permits) {
+        return canConsume(key, permits) ? 0 : Util.millisUntil(refillDueNanos);
+    }
+
+    @Override
+    public synchronized int getKeyCount() {
+        return counters.size();
     }
 
     @NotNull @Override
@@ -98,16 +155,17 @@ class SimpleLimitPerTime implements LimitPerTime {
         return Collections.singletonList(spec);
     }
 
-    /**
-     * Overwriting to ensure that destroy() is executed. Otherwise the Timer thread lives on.
-     */
-    protected void finalize() throws Throwable {
-        super.finalize();
-        destroy();
+    @Override
+    public synchronized void refill() {
+        refillDueNanos += TimeUnit.MILLISECONDS.toNanos(spec.getTimeAmountInMillis());
+        counters.clear();
     }
 
-    private synchronized void refill() {
-        counters.clear();
+    /**
+     * An absent key has nothing used yet.
+     */
+    private long remaining(long counter) {
+        return counter==ABSENT ? spec.getLimit() : counter;
     }
 
 }
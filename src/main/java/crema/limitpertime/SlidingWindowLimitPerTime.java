@@ -0,0 +1,293 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Impl with just one limit using the {@link LimitPerTimeSpec.Algorithm#SLIDING_WINDOW sliding window} algorithm.
+ *
+ * <p>Per key it keeps the count of the previous and of the current time interval. A consumption is permitted if
+ * <pre>previous * (part of the previous interval still within the last time amount) + current + 1 <= limit</pre>
+ * This approximates a sliding time range without remembering each consumption, and does not let a client
+ * consume twice the limit across the end of an interval.</p>
+ *
+ * <p>Implementation detail:
+ * Like {@link LazyLimitPerTime} it needs no timer, the counts of a key are shifted on its next use once an
+ * interval is over. The memory per key is one small object with 3 longs, that is only created on the first
+ * use of a key. Consumptions on the same key synchronize on that object, different keys don't contend.
+ * Long keys are boxed, the per key state does not fit into a single long.
+ * </p>
+ *
+ * <p>Keys that are not used anymore stay in the map until {@link #expungeStaleEntries()} is called.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+class SlidingWindowLimitPerTime implements LockableLimit, KeyCounted, Waitable {
+
+    @NotNull
+    private final LimitPerTimeSpec spec;
+    private final long intervalNanos;
+    private final long origin;
+    private final ConcurrentMap<Object,Window> windows;
+
+    protected SlidingWindowLimitPerTime(long limit, long timeAmount, @NotNull TimeUnit timeUnit) {
+        this(new LimitPerTimeSpec(limit, timeAmount, timeUnit, LimitPerTimeSpec.Algorithm.SLIDING_WINDOW));
+    }
+
+    protected SlidingWindowLimitPerTime(@NotNull LimitPerTimeSpec spec) {
+        this.spec = spec;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(spec.getTimeAmountInMillis());
+        this.origin = System.nanoTime();
+        this.windows = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key) {
+        return consume(key, 1);
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        if (permits > spec.getLimit()) {
+            return false;
+        }
+        while (true) {
+            Window window = windows.get(key);
+            if (window==null) {
+                window = windows.putIfAbsent(key, new Window(currentEpoch(), permits));
+                if (window==null) {
+                    return true;
+                }
+            }
+            synchronized (window) {
+                if (window.dead) {
+                    windows.remove(key, window); //help the one who expunges it, then try again.
+                    continue;
+                }
+                if (!canConsume(window, permits)) {
+                    return false;
+                }
+                window.current += permits;
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public boolean consume(long key) {
+        return consume(Long.valueOf(key));
+    }
+
+    @Override @Nullable
+    public LimitPerTimeSpec consumeOrSpec(@NotNull Object key) {
+        if (consume(key)) {
+            return null;
+        } else {
+            return spec;
+        }
+    }
+
+    @NotNull @Override
+    public BitSet consumeAll(@NotNull Collection<?> keys) {
+        return Util.consumeEach(this, keys);
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key) {
+        return canConsume(key, 1);
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        if (permits > spec.getLimit()) {
+            return false;
+        }
+        Window window = windows.get(key);
+        if (window==null) {
+            return true;
+        }
+        synchronized (window) {
+            return window.dead || canConsume(window, permits);
+        }
+    }
+
+    @Override
+    public boolean canConsume(long key) {
+        return canConsume(Long.valueOf(key));
+    }
+
+    @Override @Nullable
+    public LimitPerTimeSpec canConsumeOrSpec(@NotNull Object key) {
+        if (canConsume(key)) {
+            return null;
+        } else {
+            return spec;
+        }
+    }
+
+    /**
+     * There is nothing to lock: the state only changes by consumptions, and those are serialized per key.
+     * {@link MultiLimitPerTime} already serializes its calls per key.
+     */
+    @Override
+    public void lock() {
+    }
+
+    @Override
+    public void unlock() {
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec lockedCanConsumeOrSpec(@NotNull Object key) {
+        return canConsumeOrSpec(key);
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec lockedCanConsumeOrSpec(long key) {
+        return canConsumeOrSpec(Long.valueOf(key));
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec lockedCanConsumeOrSpec(@NotNull Object key, long permits) {
+        return canConsume(key, permits) ? null : spec;
+    }
+
+    @Override
+    public void doConsume(@NotNull Object key) {
+        if (!consume(key)) {
+            throw new IllegalStateException("Cannot consume, check with canConsume() first!");
+        }
+    }
+
+    @Override
+    public void doConsume(long key) {
+        doConsume(Long.valueOf(key));
+    }
+
+    @Override
+    public void doConsume(@NotNull Object key, long permits) {
+        if (!consume(key, permits)) {
+            throw new IllegalStateException("Cannot consume, check with canConsume() first!");
+        }
+    }
+
+    /**
+     * Removes the keys that were not used in the current nor the previous time interval.
+     * Does not block consumers of other keys.
+     * @return the number of removed keys.
+     */
+    public int expungeStaleEntries() {
+        long epoch = currentEpoch();
+        int removed = 0;
+        for (Map.Entry<Object,Window> entry : windows.entrySet()) {
+            Window window = entry.getValue();
+            synchronized (window) {
+                if (!window.dead && window.epoch < epoch - 1) {
+                    window.dead = true;
+                    windows.remove(entry.getKey(), window);
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public void destroy() {
+        windows.clear();
+    }
+
+    /**
+     * The time until the weighted count of the previous interval has dropped enough. If the current interval alone
+     * is too much, that is in the next interval, where the current count becomes the previous one.
+     */
+    @Override
+    public long millisUntil(@NotNull Object key, long permits) {
+        Window window = windows.get(key);
+        if (window==null) {
+            return 0;
+        }
+        long waitNanos;
+        synchronized (window) {
+            if (window.dead) {
+                return 0;
+            }
+            long elapsed = System.nanoTime() - origin;
+            window.shift(elapsed / intervalNanos);
+            long intoInterval = elapsed % intervalNanos;
+            if (window.current + permits > spec.getLimit()) {
+                waitNanos = intervalNanos - intoInterval + nanosIntoInterval(window.current, spec.getLimit() - permits);
+            } else {
+                waitNanos = Math.max(0, nanosIntoInterval(window.previous, spec.getLimit() - window.current - permits) - intoInterval);
+            }
+        }
+        return Util.millisUntil(System.nanoTime() + waitNanos);
+    }
+
+    @Override
+    public int getKeyCount() {
+        return windows.size();
+    }
+
+    @NotNull @Override
+    public List<LimitPerTimeSpec> getSpec() {
+        return Collections.singletonList(spec);
+    }
+
+    /**
+     * Must hold the lock on the window.
+     */
+    private boolean canConsume(Window window, long permits) {
+        long elapsed = System.nanoTime() - origin;
+        window.shift(elapsed / intervalNanos);
+        double previousWeight = 1d - (double) (elapsed % intervalNanos) / intervalNanos;
+        return window.previous * previousWeight + window.current + permits <= spec.getLimit();
+    }
+
+    /**
+     * @return the time into an interval from which on {@code previous * weight <= room}.
+     */
+    private long nanosIntoInterval(long previous, long room) {
+        if (previous <= room) {
+            return 0;
+        }
+        return (long) Math.ceil((double) intervalNanos * (previous - room) / previous);
+    }
+
+    private long currentEpoch() {
+        return (System.nanoTime() - origin) / intervalNanos;
+    }
+
+
+    private static final class Window {
+        private long epoch;
+        private long previous;
+        private long current;
+        private boolean dead;
+
+        private Window(long epoch, long current) {
+            this.epoch = epoch;
+            this.current = current;
+        }
+
+        private void shift(long now) {
+            if (now > epoch) {
+                previous = (now == epoch + 1) ? current : 0;
+                current = 0;
+                epoch = now;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,25 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * A limit whose counts can be handed to another instance, see {@link LimitPerTimeSnapshot}.
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+interface Snapshottable {
+
+    /**
+     * @return the number of keys written.
+     */
+    long writeSnapshot(@NotNull LimitPerTimeSnapshot.Writer out) throws IOException;
+
+    /**
+     * Adds the counts of one key.
+     * @param rows {@code n} times: limit, time amount in millis, remaining, end of the interval in wall clock millis.
+     */
+    void readSnapshot(@NotNull Object key, @NotNull long[] rows, int n);
+
+}
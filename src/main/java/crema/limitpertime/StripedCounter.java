@@ -0,0 +1,54 @@
+package crema.limitpertime;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can increment without contending on one memory location.
+ *
+ * <p>Each thread adds to one of a few cells picked by its id, the cells are a cache line apart.
+ * Reading sums all cells, it's meant to be polled rarely.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+class StripedCounter {
+
+    /**
+     * Longs per cache line, so that two cells never share one.
+     */
+    private static final int PADDING = 8;
+    private static final int CELLS = cells();
+
+    private final AtomicLongArray cells = new AtomicLongArray(CELLS * PADDING);
+
+    void increment() {
+        add(1);
+    }
+
+    void add(long amount) {
+        cells.getAndAdd(cell(), amount);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < CELLS; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    private static int cell() {
+        return (int) (Thread.currentThread().getId() & (CELLS - 1)) * PADDING;
+    }
+
+    /**
+     * A power of 2 of about twice the number of processors.
+     */
+    private static int cells() {
+        int cells = 1;
+        while (cells < Runtime.getRuntime().availableProcessors() * 2 && cells < 64) {
+            cells <<= 1;
+        }
+        return cells;
+    }
+
+}
@@ -0,0 +1,92 @@
+package crema.limitpertime;
+
+/**
+ * Splits the long keys over a fixed number of {@link LongLongHashMap}s, each guarded by its own monitor.
+ *
+ * <p>This is for the implementations that don't use a global lock: a long key only contends with the
+ * keys of the same stripe, and only for the few nanoseconds of a table lookup.</p>
+ *
+ * <p>Usage:
+ * <pre><code>
+ * LongLongHashMap stripe = map.stripe(key);
+ * synchronized (stripe) {
+ *     long value = stripe.get(key, absent);
+ *     ...
+ *     stripe.put(key, newValue);
+ * }
+ * </code></pre></p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+class StripedLongLongMap {
+
+    private static final int DEFAULT_STRIPES = 64;
+
+    private final LongLongHashMap[] stripes;
+    private final int shift;
+
+    StripedLongLongMap() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param numStripes a power of 2.
+     */
+    StripedLongLongMap(int numStripes) {
+        if (numStripes < 1 || Integer.bitCount(numStripes) != 1) {
+            throw new IllegalArgumentException("Number of stripes must be a power of 2 but was: "+numStripes+"!");
+        }
+        this.stripes = new LongLongHashMap[numStripes];
+        for (int i=0; i<numStripes; i++) {
+            stripes[i] = new LongLongHashMap();
+        }
+        this.shift = 64 - Integer.numberOfTrailingZeros(numStripes);
+    }
+
+    /**
+     * The stripe is the monitor to synchronize on while accessing it.
+     * Uses the high bits of the hash, the table inside uses the low ones.
+     */
+    LongLongHashMap stripe(long key) {
+        if (stripes.length == 1) {
+            return stripes[0];
+        }
+        return stripes[(int) (LongLongHashMap.mix(key) >>> shift)];
+    }
+
+    /**
+     * Removes all entries whose value is smaller than the {@code threshold}, one stripe at a time.
+     * @return the number of removed entries.
+     */
+    int removeValuesBelow(long threshold) {
+        int removed = 0;
+        for (LongLongHashMap stripe : stripes) {
+            synchronized (stripe) {
+                removed += stripe.removeValuesBelow(threshold);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Sums the sizes of the stripes, one at a time. Not a snapshot under concurrent updates.
+     */
+    int size() {
+        int size = 0;
+        for (LongLongHashMap stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    void clear() {
+        for (LongLongHashMap stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+}
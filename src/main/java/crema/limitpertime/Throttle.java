@@ -0,0 +1,401 @@
+package crema.limitpertime;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Waits for permits instead of rejecting: turns a {@link LimitPerTime} into a throttle.
+ *
+ * <p>{@link #acquireAsync} returns a future that completes once the key got its permits. Until then the request
+ * waits in a queue of its key, no thread is blocked. The waiters of a key are served first come, first served.</p>
+ *
+ * <p>The queue of a key is retried exactly when the limit says permits will be available again: after the refill
+ * for the fixed windows, and when enough of the time amount has passed for the lazy ones, the sliding windows and
+ * GCRA. All throttles share one timer thread by default, it only runs these retries.</p>
+ *
+ * <p>Consumptions on the limit that don't go through the throttle are fine, the waiters then just get their
+ * permits later.</p>
+ *
+ * <p>For plain threads, {@link #tryAcquire} blocks until the permits are granted, woken the same way.</p>
+ *
+ * <p>A request that is cancelled or times out at the moment its permits are being granted waits for the grant.
+ * If it got the permits it is not cancelled anymore: {@code cancel()} returns false, and {@link #tryAcquire}
+ * returns true. If it did not, it is cancelled. No permits are consumed for a request that gave up.</p>
+ *
+ * <p>Implementation detail:
+ * One queue per waiting key in a {@link ConcurrentHashMap}, removed as soon as it is empty. A queue has at most
+ * one retry scheduled at any time.
+ * Each request has a state: waiting, granting while its permits are consumed, and then done or back to waiting.
+ * Cancelled from waiting only. The grant claims a request by compare-and-set before it consumes, a cancel or
+ * timeout that comes meanwhile waits on the monitor of the request, which the grant holds.
+ * </p>
+ *
+ * @see LimitsPerTime#throttle(LimitPerTime)
+ * @author Alexei Arshavin, Optimaize
+ */
+public class Throttle {
+
+    /**
+     * The retry interval for limits that can't tell when they have permits again.
+     */
+    private static final long POLL_MILLIS = 10;
+
+    private static final ScheduledExecutorService DEFAULT_TIMER = createDefaultTimer();
+
+    @NotNull
+    private final ExtendedLimitPerTime limit;
+    @NotNull
+    private final ScheduledExecutorService timer;
+    private final long maxPermits;
+    private final ConcurrentMap<Object,KeyQueue> queues = new ConcurrentHashMap<>();
+
+    Throttle(@NotNull LimitPerTime limit, @NotNull ScheduledExecutorService timer) {
+        this.limit = LimitsPerTime.extended(limit);
+        this.timer = timer;
+        long max = Long.MAX_VALUE;
+        for (LimitPerTimeSpec spec : limit.getSpec()) {
+            max = Math.min(max, spec.getLimit());
+        }
+        this.maxPermits = max;
+    }
+
+    /**
+     * The timer thread shared by the throttles that don't bring their own.
+     */
+    @NotNull
+    static ScheduledExecutorService getDefaultTimer() {
+        return DEFAULT_TIMER;
+    }
+
+    /**
+     * Same as {@link #acquireAsync(Object, long)} with 1 permit.
+     */
+    @NotNull
+    public ListenableFuture<Void> acquireAsync(@NotNull Object key) {
+        return acquireAsync(key, 1);
+    }
+
+    /**
+     * @return completes when the key got the permits. Completes right away if it can have them now, and no
+     *         other request of the same key is waiting. Cancel it to give up waiting.
+     *         Fails with an {@link IllegalArgumentException} if the permits are more than the limit.
+     */
+    @NotNull
+    public ListenableFuture<Void> acquireAsync(@NotNull Object key, long permits) {
+        return enqueue(key, permits, -1);
+    }
+
+    /**
+     * Same as {@link #acquireAsync(Object, long)}, but gives up after the timeout.
+     * @return fails with a {@link TimeoutException} if the permits were not granted within the timeout.
+     */
+    @NotNull
+    public ListenableFuture<Void> acquireAsync(@NotNull Object key, long permits, long timeout, @NotNull TimeUnit timeUnit) {
+        return enqueue(key, permits, timeUnit.toNanos(timeout));
+    }
+
+    /**
+     * Same as {@link #tryAcquire(Object, long, long, TimeUnit)} with 1 permit.
+     */
+    public boolean tryAcquire(@NotNull Object key, long timeout, @NotNull TimeUnit timeUnit) throws InterruptedException {
+        return tryAcquire(key, 1, timeout, timeUnit);
+    }
+
+    /**
+     * Blocks the calling thread until the key got the permits, or the timeout is over.
+     *
+     * <p>The thread waits in the queue of the key like the {@link #acquireAsync async} requests. It is woken
+     * when its turn comes at the moment the limit has permits again, there is no polling.</p>
+     *
+     * @return false if the permits were not granted within the timeout.
+     * @throws IllegalArgumentException if the permits are more than the limit.
+     * @throws InterruptedException if interrupted while waiting, the request is withdrawn.
+     */
+    public boolean tryAcquire(@NotNull Object key, long permits, long timeout, @NotNull TimeUnit timeUnit) throws InterruptedException {
+        ListenableFuture<Void> future = acquireAsync(key, permits);
+        try {
+            future.get(timeout, timeUnit);
+            return true;
+        } catch (TimeoutException e) {
+            //granted just now if it can't be cancelled anymore.
+            return !future.cancel(false) && isGranted(future);
+        } catch (InterruptedException e) {
+            if (future.cancel(false) || !isGranted(future)) {
+                throw e;
+            }
+            Thread.currentThread().interrupt();
+            return true;
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * @return the number of requests that are waiting, of all keys.
+     */
+    public int getWaiting() {
+        int waiting = 0;
+        for (KeyQueue queue : queues.values()) {
+            synchronized (queue) {
+                for (Waiter waiter : queue.waiters) {
+                    if (waiter.state.get() == WAITING) { //the others are removed on the next retry.
+                        waiting++;
+                    }
+                }
+            }
+        }
+        return waiting;
+    }
+
+    @NotNull
+    public ExtendedLimitPerTime getLimit() {
+        return limit;
+    }
+
+    /**
+     * Cancels all waiting requests, and destroys the limit.
+     */
+    public void destroy() {
+        for (KeyQueue queue : queues.values()) {
+            List<Waiter> waiters;
+            synchronized (queue) {
+                waiters = new ArrayList<>(queue.waiters);
+                queue.waiters.clear();
+            }
+            for (Waiter waiter : waiters) {
+                waiter.cancel(false);
+            }
+        }
+        limit.destroy();
+    }
+
+
+    @NotNull
+    private ListenableFuture<Void> enqueue(@NotNull Object key, long permits, long timeoutNanos) {
+        Util.checkPermits(permits);
+        if (permits > maxPermits) {
+            return Futures.immediateFailedFuture(new IllegalArgumentException("Permits exceed the limit: "+permits+"!"));
+        }
+        final Waiter waiter = new Waiter(permits);
+        KeyQueue queue;
+        while (true) {
+            queue = queues.get(key);
+            if (queue==null) {
+                KeyQueue fresh = new KeyQueue(key);
+                queue = queues.putIfAbsent(key, fresh);
+                if (queue==null) {
+                    queue = fresh;
+                }
+            }
+            synchronized (queue) {
+                if (queue.dead) {
+                    continue; //was emptied and removed, make a new one.
+                }
+                queue.waiters.add(waiter);
+                break;
+            }
+        }
+        if (timeoutNanos >= 0) {
+            final long timeout = timeoutNanos;
+            final ScheduledFuture<?> timeoutTask = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    waiter.expire(new TimeoutException("No permits within "+timeout+"ns!"));
+                }
+            }, timeoutNanos, TimeUnit.NANOSECONDS);
+            Futures.addCallback(waiter, new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                    timeoutTask.cancel(false);
+                }
+                @Override
+                public void onFailure(@NotNull Throwable t) {
+                    timeoutTask.cancel(false);
+                }
+            });
+        }
+        drain(queue);
+        return waiter;
+    }
+
+    /**
+     * Grants the permits to the waiters of the queue in order, as long as the limit says yes.
+     * Then schedules the next retry if some are left.
+     */
+    private void drain(@NotNull final KeyQueue queue) {
+        List<Waiter> granted = null;
+        long retryMillis = -1;
+        synchronized (queue) {
+            if (queue.dead) {
+                return;
+            }
+            while (!queue.waiters.isEmpty()) {
+                Waiter head = queue.waiters.peek();
+                boolean consumed = false;
+                synchronized (head) {
+                    if (!head.state.compareAndSet(WAITING, GRANTING)) { //timed out or cancelled
+                        queue.waiters.poll();
+                        continue;
+                    }
+                    try {
+                        consumed = limit.consume(queue.key, head.permits);
+                    } finally {
+                        head.state.set(consumed ? DONE : WAITING);
+                    }
+                }
+                if (!consumed) {
+                    break;
+                }
+                queue.waiters.poll();
+                if (granted==null) {
+                    granted = new ArrayList<>();
+                }
+                granted.add(head);
+            }
+            if (queue.waiters.isEmpty()) {
+                queue.dead = true;
+                queues.remove(queue.key, queue);
+            } else if (!queue.retryScheduled) {
+                queue.retryScheduled = true;
+                retryMillis = retryMillis(queue.key, queue.waiters.peek().permits);
+            }
+        }
+        //completed outside of the lock, the listeners run in this thread.
+        if (granted != null) {
+            for (Waiter waiter : granted) {
+                waiter.complete();
+            }
+        }
+        if (retryMillis >= 0) {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (queue) {
+                        queue.retryScheduled = false;
+                    }
+                    drain(queue);
+                }
+            }, retryMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * At least 1ms: if the limit says "now" but just refused, someone else was faster, or the refill is late.
+     */
+    private long retryMillis(@NotNull Object key, long permits) {
+        if (!(limit instanceof Waitable)) {
+            return POLL_MILLIS;
+        }
+        long millis = ((Waitable) limit).millisUntil(key, permits);
+        return millis < 0 ? POLL_MILLIS : Math.max(1, millis);
+    }
+
+    private static ScheduledExecutorService createDefaultTimer() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Throttle-Timer")
+                .build());
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+
+    private static final class KeyQueue {
+        private final Object key;
+        private final Deque<Waiter> waiters = new ArrayDeque<>();
+        private boolean retryScheduled;
+        private boolean dead;
+
+        private KeyQueue(Object key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * @return true if the request got its permits, also if it is not completed yet.
+     */
+    private static boolean isGranted(@NotNull ListenableFuture<Void> future) {
+        return future instanceof Waiter && ((Waiter) future).state.get() == DONE;
+    }
+
+    private static final int WAITING = 0;
+    private static final int GRANTING = 1;
+    private static final int DONE = 2;
+    private static final int CANCELLED = 3;
+
+    /**
+     * A request, and the future of it. See class header for the states.
+     */
+    private static final class Waiter extends AbstractFuture<Void> {
+        private final long permits;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        private Waiter(long permits) {
+            this.permits = permits;
+        }
+
+        /**
+         * Only while waiting: waits for a grant in progress, and fails if it consumed the permits.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return giveUp() && super.cancel(mayInterruptIfRunning);
+        }
+
+        /**
+         * Times out, the same way as {@link #cancel}.
+         */
+        private void expire(@NotNull TimeoutException e) {
+            if (giveUp()) {
+                setException(e);
+            }
+        }
+
+        /**
+         * Called once the permits are consumed, outside of the lock of the queue: the listeners run in this thread.
+         */
+        private void complete() {
+            set(null);
+        }
+
+        /**
+         * @return true if it went from waiting to cancelled.
+         */
+        private boolean giveUp() {
+            while (true) {
+                int current = state.get();
+                if (current == WAITING) {
+                    if (state.compareAndSet(WAITING, CANCELLED)) {
+                        return true;
+                    }
+                } else if (current == GRANTING) {
+                    synchronized (this) {
+                        //the grant holds the monitor while it consumes.
+                    }
+                } else {
+                    return false;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,378 @@
+package crema.limitpertime;
+
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One limit that applies a different set of time limits per key, for example per plan: "free", "pro" and
+ * "enterprise".
+ *
+ * <p>A resolver function maps each key to the name of its tier. Its answers are cached, so the resolver can be a
+ * lookup in a database. Call {@link #invalidate(Object)} when a key changes its tier, or configure the cache to
+ * expire. A key that changes its tier starts over with the full limits of the new tier.</p>
+ *
+ * <p>All tiers count in one table and are cleaned up by one task on the {@link RefillScheduler}, so adding tiers
+ * costs no threads and no hash tables, just the few longs of the time limits.</p>
+ *
+ * <p>Only {@link LimitPerTimeSpec.Algorithm#FIXED_WINDOW fixed windows}, they behave the same as in a
+ * {@link FusedMultiLimitPerTime}.</p>
+ *
+ * <p>The time limits of a tier can be changed with {@link #updateTier}, the keys keep their counts.</p>
+ *
+ * <p>Implementation detail:
+ * The table is a {@link FusedRecords} with one lineage per tier: each key has one record with the packed slots of
+ * its tier's time limits, see {@link FusedWindows}, plus one slot with the generation. A consumption locks just
+ * the record of its key, whatever the tier, see {@link FusedRecords} for the long keys.
+ * Keys whose windows are all over are removed once per shortest of the tiers' longest time intervals. The more
+ * keys the tiers have together, the longer that takes: it runs in slices, see {@link FusedRecords#expungeStep},
+ * so the refills of other limits on the scheduler's thread are not delayed by it.
+ * </p>
+ *
+ * @see LimitsPerTime#tiered(Function)
+ * @author Alexei Arshavin, Optimaize
+ */
+public class TieredLimitPerTime implements ExtendedLimitPerTime, Refillable, KeyCounted, Waitable, Snapshottable {
+
+    private final Map<String,Tier> tiers;
+    private final LoadingCache<Object,Tier> tierCache;
+    private final FusedRecords records;
+    @NotNull
+    private final RefillScheduler scheduler;
+    private RefillScheduler.Registration expungeRegistration;
+
+    private TieredLimitPerTime(@NotNull Builder builder) {
+        this.records = new FusedRecords();
+        final Map<String,Tier> byName = new LinkedHashMap<>();
+        for (Map.Entry<String,List<LimitPerTimeSpec>> entry : builder.tiers.entrySet()) {
+            byName.put(entry.getKey(), new Tier(entry.getKey(), records.newLineage(new FusedWindows(entry.getValue()))));
+        }
+        this.tiers = byName;
+        final Function<Object,String> resolver = builder.resolver;
+        final Tier defaultTier = builder.defaultTier == null ? null : byName.get(builder.defaultTier);
+        this.tierCache = CacheBuilder.newBuilder()
+                .maximumSize(builder.cacheSize)
+                .expireAfterWrite(builder.cacheExpiryMillis, TimeUnit.MILLISECONDS)
+                .build(new CacheLoader<Object,Tier>() {
+                    @Override
+                    public Tier load(@NotNull Object key) {
+                        String name = resolver.apply(key);
+                        Tier tier = (name == null) ? defaultTier : byName.get(name);
+                        if (tier == null) {
+                            throw new IllegalArgumentException("No tier for key "+key+": "+name+"!");
+                        }
+                        return tier;
+                    }
+                });
+        this.scheduler = builder.scheduler;
+        this.expungeRegistration = scheduleExpunge();
+    }
+
+    @Override
+    public boolean consume(@NotNull Object key) {
+        return consumeOrSpec(key, 1) == null;
+    }
+
+    @Override
+    public boolean consume(long key) {
+        return consumeOrSpec(Long.valueOf(key), 1) == null;
+    }
+
+    /**
+     * All or nothing over all time limits of the key's tier.
+     */
+    @Override
+    public boolean consume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        return consumeOrSpec(key, permits) == null;
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec consumeOrSpec(@NotNull Object key) {
+        return consumeOrSpec(key, 1);
+    }
+
+    @NotNull @Override
+    public BitSet consumeAll(@NotNull Collection<?> keys) {
+        return Util.consumeEach(this, keys);
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key) {
+        return canConsumeOrSpec(key, 1) == null;
+    }
+
+    @Override
+    public boolean canConsume(long key) {
+        return canConsumeOrSpec(Long.valueOf(key), 1) == null;
+    }
+
+    @Override
+    public boolean canConsume(@NotNull Object key, long permits) {
+        Util.checkPermits(permits);
+        return canConsumeOrSpec(key, permits) == null;
+    }
+
+    @Nullable @Override
+    public LimitPerTimeSpec canConsumeOrSpec(@NotNull Object key) {
+        return canConsumeOrSpec(key, 1);
+    }
+
+    /**
+     * @return the name of the key's tier, resolved through the cache.
+     * @throws IllegalArgumentException if the resolver names no known tier, and there is no default.
+     */
+    @NotNull
+    public String getTier(@NotNull Object key) {
+        return tier(key).name;
+    }
+
+    /**
+     * @return the time limits of the tier, sorted.
+     * @throws IllegalArgumentException if there is no such tier.
+     */
+    @NotNull
+    public List<LimitPerTimeSpec> getSpec(@NotNull String tier) {
+        return records.getWindows(existingTier(tier).lineage).getSpecs();
+    }
+
+    /**
+     * Same as {@link #updateTier(String, List)}, parsed with the {@link LimitPerTimeSpecParser}.
+     */
+    public void updateTier(@NotNull String tier, @NotNull String spec) {
+        updateTier(tier, LimitPerTimeSpecParser.getInstance().parseSortValidate(spec));
+    }
+
+    /**
+     * Replaces the time limits of the tier, the keys keep their counts.
+     * See {@link ReconfigurableLimitPerTime#updateSpec} for how they are carried over.
+     * @throws IllegalArgumentException if there is no such tier, or a time limit can't be fused.
+     */
+    public synchronized void updateTier(@NotNull String tier, @NotNull List<LimitPerTimeSpec> spec) {
+        Tier t = existingTier(tier);
+        long before = expungeMillis();
+        records.update(t.lineage, new FusedWindows(LimitPerTimeSpecs.sortAndValidate(spec)));
+        if (expungeMillis() != before) {
+            expungeRegistration.cancel();
+            expungeRegistration = scheduleExpunge();
+        }
+    }
+
+    /**
+     * Forgets the cached tier of the key, the resolver is asked again on its next use.
+     */
+    public void invalidate(@NotNull Object key) {
+        tierCache.invalidate(key);
+    }
+
+    /**
+     * Removes the keys that were not used in the current interval of any of their time limits.
+     * Does not block consumers of other keys.
+     * @return the number of removed keys.
+     */
+    public int expungeStaleEntries() {
+        return records.expungeStaleEntries();
+    }
+
+    /**
+     * Does a slice of the expunge, see {@link FusedRecords#expungeStep}.
+     */
+    @Override
+    public void refill() {
+        records.expungeStep(expungeMillis());
+    }
+
+    @Override
+    public synchronized void destroy() {
+        expungeRegistration.cancel();
+        records.clear();
+        tierCache.invalidateAll();
+    }
+
+    /**
+     * The time until the last of the key's time limits that are used up starts a new interval.
+     */
+    @Override
+    public long millisUntil(@NotNull Object key, long permits) {
+        return Util.millisUntil(System.nanoTime() + records.waitNanos(key, tier(key).lineage, permits));
+    }
+
+    @Override
+    public long writeSnapshot(@NotNull LimitPerTimeSnapshot.Writer out) throws IOException {
+        return records.writeSnapshot(out);
+    }
+
+    @Override
+    public void readSnapshot(@NotNull Object key, @NotNull long[] rows, int n) {
+        records.readSnapshot(key, tier(key).lineage, rows, n);
+    }
+
+    @Override
+    public int getKeyCount() {
+        return records.size();
+    }
+
+    /**
+     * @return the time limits of all tiers, each distinct one once.
+     */
+    @NotNull @Override
+    public List<LimitPerTimeSpec> getSpec() {
+        Set<LimitPerTimeSpec> ret = new LinkedHashSet<>();
+        for (Tier tier : tiers.values()) {
+            ret.addAll(records.getWindows(tier.lineage).getSpecs());
+        }
+        return new ArrayList<>(ret);
+    }
+
+
+    @Nullable
+    private LimitPerTimeSpec consumeOrSpec(@NotNull Object key, long permits) {
+        return records.consumeOrSpec(key, tier(key).lineage, permits);
+    }
+
+    @Nullable
+    private LimitPerTimeSpec canConsumeOrSpec(@NotNull Object key, long permits) {
+        return records.canConsumeOrSpec(key, tier(key).lineage, permits);
+    }
+
+    @NotNull
+    private Tier tier(@NotNull Object key) {
+        try {
+            return tierCache.getUnchecked(key);
+        } catch (UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    @NotNull
+    private Tier existingTier(@NotNull String name) {
+        Tier tier = tiers.get(name);
+        if (tier == null) {
+            throw new IllegalArgumentException("No such tier: "+name+"!");
+        }
+        return tier;
+    }
+
+    @NotNull
+    private RefillScheduler.Registration scheduleExpunge() {
+        return WeakRefillTask.schedule(scheduler, this, FusedRecords.expungeTickMillis(expungeMillis()));
+    }
+
+    /**
+     * The shortest of the tiers' longest time intervals.
+     */
+    private long expungeMillis() {
+        long ret = Long.MAX_VALUE;
+        for (Tier tier : tiers.values()) {
+            ret = Math.min(ret, records.getWindows(tier.lineage).getLongestMillis());
+        }
+        return ret;
+    }
+
+
+    private static final class Tier {
+        private final String name;
+        private final FusedRecords.Lineage lineage;
+
+        private Tier(String name, FusedRecords.Lineage lineage) {
+            this.name = name;
+            this.lineage = lineage;
+        }
+    }
+
+    public static class Builder {
+        @NotNull
+        private final Function<Object,String> resolver;
+        private final Map<String,List<LimitPerTimeSpec>> tiers = new LinkedHashMap<>();
+        @Nullable
+        private String defaultTier = null;
+        private long cacheSize = 10000;
+        private long cacheExpiryMillis = TimeUnit.MINUTES.toMillis(1);
+        private RefillScheduler scheduler = HashedWheelRefillScheduler.getDefault();
+
+        Builder(@NotNull Function<Object,String> resolver) {
+            this.resolver = resolver;
+        }
+
+        /**
+         * Adds a tier, parsed with the {@link LimitPerTimeSpecParser}, for example "100 in 1 HOUR".
+         */
+        public Builder tier(@NotNull String name, @NotNull String spec) {
+            return tier(name, LimitPerTimeSpecParser.getInstance().parseSortValidate(spec));
+        }
+
+        /**
+         * Adds a tier.
+         * @param specs fixed windows only.
+         * @throws IllegalArgumentException if the name is taken, or a time limit can't be fused.
+         */
+        public Builder tier(@NotNull String name, @NotNull List<LimitPerTimeSpec> specs) {
+            if (tiers.containsKey(name)) {
+                throw new IllegalArgumentException("Duplicate tier: "+name+"!");
+            }
+            List<LimitPerTimeSpec> sorted = LimitPerTimeSpecs.sortAndValidate(specs);
+            new FusedWindows(sorted); //fail early
+            tiers.put(name, sorted);
+            return this;
+        }
+
+        /**
+         * Optional, the tier of the keys for which the resolver returns null.
+         * By default such keys are rejected with an {@link IllegalArgumentException}.
+         */
+        public Builder defaultTier(@NotNull String name) {
+            this.defaultTier = name;
+            return this;
+        }
+
+        /**
+         * Optional, by default up to 10000 keys remember their tier for 1 minute.
+         */
+        public Builder cache(long maximumSize, long expireAfterWrite, @NotNull TimeUnit timeUnit) {
+            if (maximumSize < 0) {
+                throw new IllegalArgumentException("Cache size must be >=0 but was: "+maximumSize+"!");
+            }
+            this.cacheSize = maximumSize;
+            this.cacheExpiryMillis = timeUnit.toMillis(expireAfterWrite);
+            return this;
+        }
+
+        /**
+         * Optional, by default the {@link HashedWheelRefillScheduler#getDefault() shared one} is used.
+         */
+        public Builder scheduler(@NotNull RefillScheduler scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * @throws IllegalStateException if no tier was added, or the default tier was not.
+         */
+        public TieredLimitPerTime build() {
+            if (tiers.isEmpty()) {
+                throw new IllegalStateException("Builder is empty, at least one tier is required!");
+            }
+            if (defaultTier != null && !tiers.containsKey(defaultTier)) {
+                throw new IllegalStateException("Default tier was not added: "+defaultTier+"!");
+            }
+            return new TieredLimitPerTime(this);
+        }
+    }
+
+}
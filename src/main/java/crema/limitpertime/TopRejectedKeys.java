@@ -0,0 +1,230 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Finds the keys that are rejected most often, in constant memory.
+ *
+ * <p>Uses the Space-Saving algorithm: it keeps {@code capacity} keys with a count each. A key that is not in yet
+ * takes the place of the one with the smallest count, and inherits that count plus one. Therefore the counts
+ * can be too high, by at most the {@link Entry#getError() error} of the entry, but never too low, in terms of the
+ * recorded rejections. Every key that makes up more than {@code 1/capacity} of the recorded rejections is
+ * guaranteed to be in.</p>
+ *
+ * <p>Recording never blocks the consumer: if another thread is recording or reading at the same moment, the
+ * rejection is skipped, and only counted in {@link #getSkipped()}. Under contention the recorded rejections are
+ * therefore a sample, and the guarantee holds for the sample only: a heavy hitter of all the rejections is very
+ * likely in, but not guaranteed, and its count is too low by what was skipped of it. Compare {@link #getSkipped()}
+ * with {@link #getTotal()} to see how much is missing. Reading copies the entries, it holds the lock for
+ * {@code capacity} steps.</p>
+ *
+ * <p>Implementation detail:
+ * A min-heap ordered by count, plus a map from the key to its position in the heap.
+ * Recording is O(log capacity), the memory is bounded by the capacity no matter how many keys are rejected.
+ * </p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+public class TopRejectedKeys {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Slot[] heap;
+    private final Map<Object,Slot> slots;
+    private int size = 0;
+    private long total = 0;
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * @param capacity the number of keys to keep, more means more precise counts.
+     */
+    TopRejectedKeys(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be >=1 but was: "+capacity+"!");
+        }
+        this.heap = new Slot[capacity];
+        this.slots = new HashMap<>(capacity * 2);
+    }
+
+    /**
+     * Records one rejection of the key, unless another thread is in here right now.
+     */
+    void rejected(@NotNull Object key) {
+        if (!lock.tryLock()) {
+            skipped.incrementAndGet();
+            return;
+        }
+        try {
+            total++;
+            Slot slot = slots.get(key);
+            if (slot != null) {
+                slot.count++;
+                siftDown(slot.index);
+            } else if (size < heap.length) {
+                slot = new Slot(key, 1, 0);
+                slot.index = size;
+                heap[size++] = slot;
+                slots.put(key, slot);
+                siftUp(slot.index);
+            } else {
+                slot = heap[0];
+                slots.remove(slot.key);
+                slot.key = key;
+                slot.error = slot.count;
+                slot.count++;
+                slots.put(key, slot);
+                siftDown(0);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param n how many, at most the capacity.
+     * @return the keys with the highest counts, highest first.
+     */
+    @NotNull
+    public List<Entry> getTop(int n) {
+        List<Entry> ret = new ArrayList<>(Math.min(n, heap.length));
+        lock.lock();
+        try {
+            for (int i = 0; i < size; i++) {
+                ret.add(new Entry(heap[i].key, heap[i].count, heap[i].error));
+            }
+        } finally {
+            lock.unlock();
+        }
+        Collections.sort(ret, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return Long.compare(o2.count, o1.count);
+            }
+        });
+        return ret.size() > n ? new ArrayList<>(ret.subList(0, n)) : ret;
+    }
+
+    /**
+     * @return the number of recorded rejections, of all keys.
+     */
+    public long getTotal() {
+        lock.lock();
+        try {
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of rejections that were not recorded because of contention.
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public int getCapacity() {
+        return heap.length;
+    }
+
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent].count <= heap[i].count) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && heap[left].count < heap[smallest].count) {
+                smallest = left;
+            }
+            if (right < size && heap[right].count < heap[smallest].count) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        Slot tmp = heap[i];
+        heap[i] = heap[j];
+        heap[j] = tmp;
+        heap[i].index = i;
+        heap[j].index = j;
+    }
+
+    private static final class Slot {
+        private Object key;
+        private long count;
+        private long error;
+        private int index;
+
+        private Slot(Object key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    /**
+     * A key with its estimated number of rejections.
+     */
+    public static final class Entry {
+        @NotNull
+        private final Object key;
+        private final long count;
+        private final long error;
+
+        Entry(@NotNull Object key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+
+        @NotNull
+        public Object getKey() {
+            return key;
+        }
+
+        /**
+         * @return an upper bound of the rejections of the key since it was recorded.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return by how much the count can be too high. {@code count - error} is a lower bound.
+         */
+        public long getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return key+"="+count+(error==0 ? "" : " (error "+error+")");
+        }
+    }
+
+}
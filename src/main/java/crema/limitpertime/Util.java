@@ -1,5 +1,7 @@
 package crema.limitpertime;
 
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -19,10 +21,40 @@ class Util {
         }
     }
 
+    static void checkPermits(long permits) {
+        if (permits < 1) {
+            throw new IllegalArgumentException("Permits must be >=1 but was: "+permits+"!");
+        }
+    }
+
     static void checkTimeUnit(TimeUnit timeUnit) {
         if (timeUnit==TimeUnit.NANOSECONDS || timeUnit==TimeUnit.MICROSECONDS) {
             throw new IllegalArgumentException("Milliseconds is the lowest permitted time unit!");
         }
     }
 
+    /**
+     * {@link ExtendedLimitPerTime#consumeAll} for the implementations that have no global lock to amortize.
+     */
+    static BitSet consumeEach(LimitPerTime limit, Collection<?> keys) {
+        BitSet consumed = new BitSet(keys.size());
+        int i = 0;
+        for (Object key : keys) {
+            if (limit.consume(key)) {
+                consumed.set(i);
+            }
+            i++;
+        }
+        return consumed;
+    }
+
+    /**
+     * @param dueNanos in {@link System#nanoTime()} terms.
+     * @return the millis until then, rounded up, 0 if it's due already.
+     */
+    static long millisUntil(long dueNanos) {
+        long nanos = dueNanos - System.nanoTime();
+        return nanos <= 0 ? 0 : (nanos + 999999) / 1000000;
+    }
+
 }
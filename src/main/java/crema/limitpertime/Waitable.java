@@ -0,0 +1,22 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A limit that can tell when a key will have permits again, so that a {@link Throttle} can wake its waiters at
+ * that moment instead of polling.
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+interface Waitable {
+
+    /**
+     * The answer is a snapshot: other consumers can take the permits first, or a refill can come late.
+     * The caller then simply asks again.
+     * @param permits not more than the limit.
+     * @return the millis until the key can consume that many permits, assuming nobody else consumes.
+     *         0 if it can right now. -1 if the limit can't tell.
+     */
+    long millisUntil(@NotNull Object key, long permits);
+
+}
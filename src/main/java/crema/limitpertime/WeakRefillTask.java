@@ -0,0 +1,57 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls {@link Refillable#refill()} without keeping the target reachable.
+ *
+ * <p>A limit that is not referenced anymore by the user can therefore be garbage collected even if
+ * {@link LimitPerTime#destroy()} was never called. The task then cancels itself on its next run.</p>
+ *
+ * @author Alexei Arshavin, Optimaize
+ */
+class WeakRefillTask implements Runnable {
+
+    private final WeakReference<Refillable> target;
+    private volatile RefillScheduler.Registration registration;
+
+    private WeakRefillTask(Refillable target) {
+        this.target = new WeakReference<>(target);
+    }
+
+    /**
+     * Schedules the refill of the {@code target} every {@code periodMillis}, the first time after one period.
+     */
+    @NotNull
+    static RefillScheduler.Registration schedule(@NotNull RefillScheduler scheduler, @NotNull Refillable target, long periodMillis) {
+        return schedule(scheduler, target, periodMillis, periodMillis);
+    }
+
+    /**
+     * Schedules the refill of the {@code target} every {@code periodMillis}, the first time after {@code initialDelayMillis}.
+     */
+    @NotNull
+    static RefillScheduler.Registration schedule(@NotNull RefillScheduler scheduler, @NotNull Refillable target, long initialDelayMillis, long periodMillis) {
+        WeakRefillTask task = new WeakRefillTask(target);
+        RefillScheduler.Registration registration = scheduler.schedule(task, initialDelayMillis, periodMillis, TimeUnit.MILLISECONDS);
+        task.registration = registration;
+        return registration;
+    }
+
+    @Override
+    public void run() {
+        Refillable refillable = target.get();
+        if (refillable != null) {
+            refillable.refill();
+        } else {
+            RefillScheduler.Registration r = registration;
+            if (r != null) {
+                r.cancel();
+            }
+        }
+    }
+
+}
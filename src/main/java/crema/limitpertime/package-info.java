@@ -11,15 +11,124 @@
  *
  * <p>Hint: use small/cheap Object keys, and try to limit the maximal time.</p>
  *
+ * <p>A multi limit of fixed windows, as created by LimitsPerTime.forString() and multi(), keeps one record per key
+ * for all its time limits: a small long[] with one slot per time limit, instead of one map entry per time limit.</p>
+ *
+ * <p>Numeric keys can be passed as a primitive long with consume(long) and canConsume(long). Those are counted in
+ * primitive open-addressing tables, without boxing and without an entry object per key.</p>
+ *
+ * <p>For tens of millions of keys the counters can be moved out of the Java heap with
+ * LimitsPerTime.multi().counterStores(CounterStores.offHeap(expectedKeys)). That store keeps only a 64 bit hash of
+ * each key plus the counter in direct memory, and clears in constant time. Prefer long or String keys with it.</p>
+ *
+ * <p>CounterStores.mapped(directory, expectedKeys) does the same in memory-mapped files. The counters and the start of
+ * the current time interval survive a restart: a new process attaches to the files as they are, and continues the
+ * interval instead of handing out a fresh quota.</p>
+ *
+ * <p>To put a hard bound on the number of keys, use CounterStores.bounded(maxKeys, overflow). Once full, FAIL_OPEN
+ * evicts an idle key (CLOCK), which then starts over with the full limit, and FAIL_CLOSED lets all keys that don't
+ * fit share one counter until the end of the time interval.</p>
+ *
+ * <p>For key spaces without a bound, such as anonymous IP addresses, LimitsPerTime.countMin(spec, width, depth) counts
+ * in a count-min sketch of fixed size instead of a map. The memory stays the same no matter how many keys an attacker
+ * makes up. It never lets a key exceed the limit, but can reject a key a bit early, see CountMinLimitPerTime for the
+ * error bound.</p>
+ *
  *
  *
  * <h2>ABOUT TIMERS</h2>
  *
- * <p>The implementations use old style Java timers for clearing the counters.</p>
+ * <p>The implementations clear the counters using a RefillScheduler. By default all limits share one
+ * HashedWheelRefillScheduler, a timing wheel that ticks every 10 milliseconds on a single thread, no matter how
+ * many limits exist. A scheduler with a different tick granularity can be passed to the LimitsPerTime factory methods.</p>
+ *
+ * <p>The thread is created with the daemon flag, therefore it doesn't stop your application from exiting normally.
+ * It ends by itself once no limit is registered anymore.</p>
+ *
+ * <p>Call destroy() on a limit when done. A limit that is garbage collected without it is unregistered on its next refill.</p>
+ *
+ * <p>LimitsPerTime.lazy() creates a limit that uses no timer at all: each counter remembers its time interval, and is
+ * reset on its next use once that interval is over.</p>
+ *
+ *
+ *
+ * <h2>ABOUT CLUSTERS</h2>
+ *
+ * <p>Each instance counts on its own: with 40 nodes, "100 in 1 HOUR" allows 4000 per key in the cluster. To limit over
+ * all nodes, pass a SharedQuotaStore with LimitsPerTime.multi()...sharedQuota(store, leaseSize). It needs one atomic
+ * "take up to n permits" operation, which maps to an increment in a database or a key-value server. Each node leases
+ * leaseSize permits of a key at a time and serves them locally, most calls don't go to the store. Unused leases are
+ * lost for the other nodes, a smaller lease size wastes less. InMemorySharedQuotaStore is the in-process reference
+ * implementation, for tests. Only fixed windows can be shared; they follow the wall clock, so the nodes' clocks must
+ * be in sync.</p>
+ *
+ *
+ *
+ * <h2>ABOUT TIERS</h2>
+ *
+ * <p>Different keys with different limits, for example per plan: LimitsPerTime.tiered(resolver).tier("free", "100 in
+ * 1 HOUR").tier("pro", "5000 in 1 HOUR").build() makes one limit for all of them. The resolver maps a key to the name
+ * of its tier, its answers are cached (10000 keys for 1 minute by default, see cache(), or call invalidate(key)). All
+ * tiers count in one table and share one refill task, so a tier costs no thread and no map of its own. Tiers are
+ * fixed windows only. A key that changes its tier starts over with the full limits of the new one.</p>
+ *
+ *
+ *
+ * <h2>ABOUT RECONFIGURATION</h2>
+ *
+ * <p>A limit of fixed windows can change its time limits while it is in use: LimitsPerTime.reconfigurable(spec)
+ * returns one with updateSpec(spec), and a tiered limit has updateTier(name, spec). The change is one volatile write,
+ * no consumer waits and no thread is created. The keys keep their counts: a time limit with the same time amount
+ * keeps the count of the current interval, a new time amount starts with the same share of its limit used as the old
+ * one with the closest time amount. Each key is converted on its next use.</p>
+ *
+ *
+ *
+ * <h2>ABOUT SNAPSHOTS</h2>
+ *
+ * <p>For rolling deploys, LimitPerTimeSnapshot.write(limit, channel) streams the counts of all keys to a
+ * WritableByteChannel in a compact binary form, and LimitPerTimeSnapshot.read(limit, channel) adds them to the limit
+ * of the new instance. The dump goes chunk by chunk and locks one key, or a batch of 1024 long keys, at a time,
+ * consumers go on meanwhile. Counts are matched by time amount, intervals that ended in between are dropped.
+ * Supported by the limits of fixed windows (multi, reconfigurable and tiered), for String, Long and Integer keys.</p>
+ *
+ *
+ *
+ * <h2>ABOUT JOURNAL</h2>
+ *
+ * <p>For quotas that must survive a crash, LimitsPerTime.journaled(limit, directory) writes every granted consumption to
+ * an append-only journal through a FileChannel, and replays it into the limit on startup. The consumptions of all
+ * threads are written and synced in batches by one writer thread (group commit): a consumer waits for about one
+ * sync, not for one sync per request. Durability.ASYNC doesn't wait at all and can lose the last batch. The journal
+ * is two files that take turns, it never holds much more than twice the longest time amount. On startup the used
+ * counts are restored per key and time limit, like a snapshot, capped at the limit. That is conservative, the
+ * permits of an interval that ended in between can count in the current one. For the limits that support
+ * snapshots and for single limits, with String, Long and Integer keys.</p>
+ *
+ *
+ *
+ * <h2>ABOUT THROTTLING</h2>
+ *
+ * <p>LimitsPerTime.throttle(limit) waits for permits instead of rejecting. throttle.acquireAsync(key) returns a Guava
+ * ListenableFuture that completes once the key got its permit, no thread waits for it. The requests of a key are
+ * served in order, and retried exactly when the limit has permits again: after the refill of a fixed window, or
+ * when enough time has passed for the other algorithms. For plain threads, throttle.tryAcquire(key, timeout, unit)
+ * blocks until then, woken the same way instead of polling.</p>
+ *
+ *
+ *
+ * <h2>ABOUT METRICS</h2>
  *
- * <p>There is one timer instance per time range definition.</p>
+ * <p>The counters are not instrumented by default. LimitsPerTime.multi()...buildMetered() returns a limit that counts
+ * accepted and rejected consumptions, the rejections per time limit, the number of keys in memory, and how long its
+ * refills take. LimitsPerTime.metered(limit) wraps an existing limit the same way, without the refill times.
+ * The counters are striped so that recording doesn't become a point of contention. Read them with getMetrics(), or
+ * publish them with getMetrics().registerMBean(name) and poll them over JMX.</p>
  *
- * <p>The timers are created with the daemon flag, therefore they don't stop your application from exiting normally.</p>
+ * <p>To find out which keys are rejected most, call getMetrics().trackRejectedKeys(100), also while running. It keeps
+ * the 100 most rejected keys with the Space-Saving algorithm in constant memory, and never blocks a consumer. For that
+ * it skips a rejection when another thread is recording at the same moment, under contention the top keys are a
+ * sample of the rejections, see getSkipped().</p>
  *
  *
  *
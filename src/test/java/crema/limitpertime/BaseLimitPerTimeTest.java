@@ -3,6 +3,10 @@ package crema.limitpertime;
 import com.google.common.base.Stopwatch;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -18,11 +22,11 @@ public abstract class BaseLimitPerTimeTest {
     /**
      * Allows 10 requests every 2000ms.
      */
-    protected abstract LimitPerTime ten2000ms();
+    protected abstract ExtendedLimitPerTime ten2000ms();
     /**
      * Allows 10 requests every 500ms.
      */
-    protected abstract LimitPerTime ten500ms();
+    protected abstract ExtendedLimitPerTime ten500ms();
 
     @Test
     public void testSingleThreaded() throws Exception {
@@ -47,7 +51,7 @@ public abstract class BaseLimitPerTimeTest {
 
     @Test
     public void exhaustOneButAllowOther() throws Exception {
-        LimitPerTime limitPerTime = ten2000ms();
+        ExtendedLimitPerTime limitPerTime = ten2000ms();
         for (int i=0; i<10; i++) {
             assertTrue(limitPerTime.consume("first"));
         }
@@ -66,9 +70,72 @@ public abstract class BaseLimitPerTimeTest {
         assertEquals(specFromConsume.getTimeUnit(), TimeUnit.MILLISECONDS);
     }
 
+    @Test
+    public void testLongKeys() throws Exception {
+        ExtendedLimitPerTime limitPerTime = ten2000ms();
+        for (int i=0; i<5; i++) {
+            assertTrue(limitPerTime.consume(42L));
+        }
+        //the boxed one counts against the same key:
+        for (int i=0; i<5; i++) {
+            assertTrue(limitPerTime.consume((Object) 42L));
+        }
+        assertFalse(limitPerTime.canConsume(42L));
+        assertFalse(limitPerTime.consume(42L));
+        assertFalse(limitPerTime.canConsume((Object) 42L));
+        assertTrue(limitPerTime.canConsume(0L));
+        assertTrue(limitPerTime.consume(0L));
+        assertTrue(limitPerTime.consume(-1L));
+        limitPerTime.destroy();
+    }
+
+    @Test
+    public void testConsumeAll() throws Exception {
+        ExtendedLimitPerTime limitPerTime = ten2000ms();
+        List<Object> keys = new ArrayList<>();
+        for (int i=0; i<12; i++) {
+            keys.add("foo");
+        }
+        keys.add("bar");
+        keys.add(7L);
+        BitSet consumed = limitPerTime.consumeAll(keys);
+        assertEquals(consumed.cardinality(), 12);
+        assertEquals(consumed.nextClearBit(0), 10);
+        assertFalse(consumed.get(11));
+        assertTrue(consumed.get(12));
+        assertTrue(consumed.get(13));
+        assertFalse(limitPerTime.canConsume("foo"));
+        assertTrue(limitPerTime.consumeAll(Collections.emptyList()).isEmpty());
+        limitPerTime.destroy();
+    }
+
+    @Test
+    public void testConsumePermits() throws Exception {
+        ExtendedLimitPerTime limitPerTime = ten2000ms();
+        assertFalse(limitPerTime.canConsume("foo", 11));
+        assertFalse(limitPerTime.consume("foo", 11));
+        assertTrue(limitPerTime.canConsume("foo", 7));
+        assertTrue(limitPerTime.consume("foo", 7));
+        assertFalse(limitPerTime.canConsume("foo", 4));
+        assertFalse(limitPerTime.consume("foo", 4)); //all or nothing
+        assertTrue(limitPerTime.consume("foo", 2));
+        assertTrue(limitPerTime.consume("foo"));
+        assertFalse(limitPerTime.consume("foo"));
+
+        assertTrue(limitPerTime.consume(42L, 10));
+        assertFalse(limitPerTime.consume(42L));
+        assertTrue(limitPerTime.canConsume("bar", 10));
+        limitPerTime.destroy();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testConsumePermits_zero() throws Exception {
+        ten2000ms().consume("foo", 0);
+    }
+
     @Test
     public void testCanConsume() throws Exception {
-        LimitPerTime limitPerTime = ten2000ms();
+        ExtendedLimitPerTime limitPerTime = ten2000ms();
 
         //because we never consume we can ask 1000 times even though only 10 consumptions are permitted.
         for (int i=0; i<1000; i++) {
@@ -96,7 +163,7 @@ public abstract class BaseLimitPerTimeTest {
     }
 
 
-    protected void testSingleThreaded(LimitPerTime limitPerTime) throws Exception {
+    protected void testSingleThreaded(ExtendedLimitPerTime limitPerTime) throws Exception {
         //trying to consume 20 when only 10 are allowed in this time
         int counter = 0;
         for (int i=0; i<20; i++) {
@@ -108,7 +175,7 @@ public abstract class BaseLimitPerTimeTest {
     }
 
 
-    protected void testMultipleKeys(LimitPerTime limitPerTime) throws Exception {
+    protected void testMultipleKeys(ExtendedLimitPerTime limitPerTime) throws Exception {
         //trying to consume 20 when only 10 are allowed in this time
         int counter = 0;
         for (int i=0; i<20; i++) {
@@ -122,7 +189,7 @@ public abstract class BaseLimitPerTimeTest {
         assertEquals(counter, 50);
     }
 
-    protected void testTiming(LimitPerTime limitPerTime) throws Exception {
+    protected void testTiming(ExtendedLimitPerTime limitPerTime) throws Exception {
         //consuming 20 must take a bit more than 2000ms
         Stopwatch stopwatch = Stopwatch.createStarted();
         int counter = 0;
@@ -137,7 +204,7 @@ public abstract class BaseLimitPerTimeTest {
                 .isLessThanOrEqualTo(2500); //should be just a bit above 2000.
     }
 
-    protected void aBitOfStressTest(LimitPerTime limitPerTime) throws Exception {
+    protected void aBitOfStressTest(ExtendedLimitPerTime limitPerTime) throws Exception {
         int counter = 0;
         Stopwatch stopwatch = Stopwatch.createStarted();
         while (stopwatch.elapsed(TimeUnit.MILLISECONDS) < 3000) {
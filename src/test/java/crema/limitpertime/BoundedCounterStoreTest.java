@@ -0,0 +1,101 @@
+package crema.limitpertime;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class BoundedCounterStoreTest extends BaseLimitPerTimeTest {
+
+    @Override
+    protected ExtendedLimitPerTime ten2000ms() {
+        return new SimpleLimitPerTime(new LimitPerTimeSpec(10, 2000, TimeUnit.MILLISECONDS), HashedWheelRefillScheduler.getDefault(), CounterStores.bounded(2000, CounterStores.Overflow.FAIL_CLOSED));
+    }
+
+    @Override
+    protected ExtendedLimitPerTime ten500ms() {
+        return new SimpleLimitPerTime(new LimitPerTimeSpec(10, 500, TimeUnit.MILLISECONDS), HashedWheelRefillScheduler.getDefault(), CounterStores.bounded(2000, CounterStores.Overflow.FAIL_CLOSED));
+    }
+
+    @Test
+    public void testEvictsIdleKeys() throws Exception {
+        BoundedCounterStore store = new BoundedCounterStore(3, CounterStores.Overflow.FAIL_OPEN);
+        store.put("a", 1);
+        store.put("b", 2);
+        store.put(3L, 3);
+        assertEquals(store.get(3, -1), 3);
+        store.put("d", 4); //one round to unmark all, then evicts "a"
+        assertEquals(store.size(), 3);
+        assertEquals(store.get("a", -1), -1);
+        store.get("b", -1);
+        store.put("e", 5); //"b" was used, skips it
+        assertEquals(store.get("b", -1), 2);
+        assertEquals(store.get(Long.valueOf(3), -1), -1);
+        assertEquals(store.get("d", -1), 4);
+        assertEquals(store.get("e", -1), 5);
+        assertEquals(store.getEvictionCount(), 2);
+        store.clear();
+        assertEquals(store.size(), 0);
+        assertEquals(store.get("b", -1), -1);
+    }
+
+    @Test
+    public void testSharesOverflow() throws Exception {
+        BoundedCounterStore store = new BoundedCounterStore(2, CounterStores.Overflow.FAIL_CLOSED);
+        store.put("a", 1);
+        store.put("b", 2);
+        assertEquals(store.get("c", -1), -1);
+        store.put("c", 7);
+        assertEquals(store.get("c", -1), 7);
+        assertEquals(store.get("x", -1), 7);
+        assertEquals(store.get("a", -1), 1);
+        assertEquals(store.size(), 2);
+        assertEquals(store.getEvictionCount(), 0);
+        store.clear();
+        assertEquals(store.get("x", -1), -1);
+    }
+
+    @Test
+    public void testFailOpen() throws Exception {
+        ExtendedLimitPerTime limitPerTime = LimitsPerTime.multi()
+                .add(1, 1, TimeUnit.HOURS)
+                .counterStores(CounterStores.bounded(2, CounterStores.Overflow.FAIL_OPEN))
+                .build();
+        assertTrue(limitPerTime.consume("a"));
+        assertFalse(limitPerTime.consume("a"));
+        assertTrue(limitPerTime.consume("b"));
+        assertTrue(limitPerTime.consume("c"));
+        assertTrue(limitPerTime.consume("d"));
+        assertTrue(limitPerTime.consume("a")); //was evicted
+        limitPerTime.destroy();
+    }
+
+    @Test
+    public void testFailClosed() throws Exception {
+        ExtendedLimitPerTime limitPerTime = LimitsPerTime.multi()
+                .add(2, 1, TimeUnit.HOURS)
+                .add(5, 1, TimeUnit.DAYS)
+                .counterStores(CounterStores.bounded(2, CounterStores.Overflow.FAIL_CLOSED))
+                .build();
+        assertTrue(limitPerTime.consume("a"));
+        assertTrue(limitPerTime.consume("b"));
+        assertTrue(limitPerTime.consume("c"));
+        assertTrue(limitPerTime.consume("d"));
+        assertFalse(limitPerTime.consume("e")); //c and d used up the shared limit
+        assertTrue(limitPerTime.consume("a"));
+        assertFalse(limitPerTime.consume("a"));
+        limitPerTime.destroy();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testMaxKeys() throws Exception {
+        CounterStores.bounded(0, CounterStores.Overflow.FAIL_OPEN);
+    }
+
+}
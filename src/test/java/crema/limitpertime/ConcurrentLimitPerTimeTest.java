@@ -0,0 +1,59 @@
+package crema.limitpertime;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class ConcurrentLimitPerTimeTest extends BaseLimitPerTimeTest {
+
+    @Override
+    protected ExtendedLimitPerTime ten2000ms() {
+        return new ConcurrentLimitPerTime(10, 2000, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected ExtendedLimitPerTime ten500ms() {
+        return new ConcurrentLimitPerTime(10, 500, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testManyThreadsOneKey() throws Exception {
+        final ExtendedLimitPerTime limitPerTime = new ConcurrentLimitPerTime(1000, 1, TimeUnit.HOURS);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int t=0; t<8; t++) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int counter = 0;
+                        for (int i=0; i<500; i++) {
+                            if (limitPerTime.consume("foo")) counter++;
+                        }
+                        return counter;
+                    }
+                }));
+            }
+            int total = 0;
+            for (Future<Integer> future : futures) {
+                total += future.get();
+            }
+            //4000 attempts, exactly the limit may pass:
+            assertEquals(total, 1000);
+        } finally {
+            executor.shutdown();
+            limitPerTime.destroy();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package crema.limitpertime;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class ConcurrentLongLongMapTest {
+
+    @Test
+    public void testPutReplaceGet() throws Exception {
+        ConcurrentLongLongMap map = new ConcurrentLongLongMap();
+        assertEquals(map.get(1, -1), -1);
+        assertFalse(map.replace(1, -1, 10));
+        assertTrue(map.putIfAbsent(1, 10));
+        assertFalse(map.putIfAbsent(1, 11));
+        assertTrue(map.putIfAbsent(0, 20));
+        assertTrue(map.putIfAbsent(Long.MIN_VALUE, 30));
+        assertEquals(map.get(1, -1), 10);
+        assertEquals(map.get(0, -1), 20);
+        assertEquals(map.get(Long.MIN_VALUE, -1), 30);
+        assertEquals(map.size(), 3);
+        assertFalse(map.replace(1, 9, 11));
+        assertTrue(map.replace(1, 10, 11));
+        assertTrue(map.replace(0, 20, 21));
+        assertEquals(map.get(1, -1), 11);
+        assertEquals(map.get(0, -1), 21);
+        assertEquals(map.size(), 3);
+    }
+
+    @Test
+    public void testGrowAndRemove() throws Exception {
+        ConcurrentLongLongMap map = new ConcurrentLongLongMap();
+        for (long i=0; i<100000; i++) {
+            assertTrue(map.putIfAbsent(i, i));
+        }
+        assertEquals(map.size(), 100000);
+        assertEquals(map.removeValuesBelow(60000), 60000);
+        assertEquals(map.size(), 40000);
+        assertEquals(map.get(0, -1), -1);
+        assertEquals(map.get(59999, -1), -1);
+        assertEquals(map.get(60000, -1), 60000);
+        assertEquals(map.get(99999, -1), 99999);
+        map.clear();
+        assertEquals(map.size(), 0);
+        assertEquals(map.get(99999, -1), -1);
+        assertTrue(map.putIfAbsent(99999, 1));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNoneNotPermitted() throws Exception {
+        new ConcurrentLongLongMap().putIfAbsent(1, ConcurrentLongLongMap.NONE);
+    }
+
+    /**
+     * Counts up a few keys while the tables are rebuilt by other keys, not a single update may get lost.
+     */
+    @Test
+    public void testNoUpdateLostWhileRebuilding() throws Exception {
+        final ConcurrentLongLongMap map = new ConcurrentLongLongMap();
+        final int threads = 4;
+        final int increments = 100000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] counters = new Thread[threads];
+        for (int t=0; t<threads; t++) {
+            counters[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i=0; i<increments; i++) {
+                            long key = i % 64;
+                            while (true) {
+                                long value = map.get(key, ConcurrentLongLongMap.NONE);
+                                if (value == ConcurrentLongLongMap.NONE ? map.putIfAbsent(key, 1) : map.replace(key, value, value + 1)) {
+                                    break;
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            counters[t].start();
+        }
+        Thread rebuilder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    for (long round=0; round<20; round++) {
+                        for (long key=1000; key<21000; key++) {
+                            map.putIfAbsent(key, -round - 1); //grows, and the hot keys are never below
+                        }
+                        map.removeValuesBelow(0);
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        rebuilder.start();
+        start.countDown();
+        for (Thread counter : counters) {
+            counter.join();
+        }
+        rebuilder.join();
+        assertNull(failure.get());
+        long sum = 0;
+        for (long key=0; key<64; key++) {
+            sum += map.get(key, 0);
+        }
+        assertEquals(sum, (long) threads * increments);
+        assertEquals(map.size(), 64);
+    }
+
+}
@@ -0,0 +1,77 @@
+package crema.limitpertime;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class CountMinLimitPerTimeTest extends BaseLimitPerTimeTest {
+
+    @Override
+    protected ExtendedLimitPerTime ten2000ms() {
+        return LimitsPerTime.countMin(new LimitPerTimeSpec(10, 2000, TimeUnit.MILLISECONDS), 1 << 16, 4);
+    }
+
+    @Override
+    protected ExtendedLimitPerTime ten500ms() {
+        return LimitsPerTime.countMin(new LimitPerTimeSpec(10, 500, TimeUnit.MILLISECONDS), 1 << 16, 4);
+    }
+
+    /**
+     * With far more keys than counters, no key ever gets more than the limit.
+     */
+    @Test
+    public void testNeverUnderCounts() throws Exception {
+        CountMinLimitPerTime limitPerTime = new CountMinLimitPerTime(new LimitPerTimeSpec(3, 1, TimeUnit.HOURS), 64, 2,
+                new HashedWheelRefillScheduler(1, TimeUnit.HOURS, 8)); //never refills within the test
+        int accepted = 0;
+        for (int round=0; round<5; round++) {
+            for (long key=0; key<10000; key++) {
+                if (limitPerTime.consume(key)) {
+                    accepted++;
+                }
+            }
+        }
+        assertTrue(accepted <= 3 * 10000);
+        for (long key=0; key<10000; key++) {
+            assertFalse(limitPerTime.consume(key));
+        }
+        limitPerTime.destroy();
+    }
+
+    @Test
+    public void testRefill() throws Exception {
+        CountMinLimitPerTime limitPerTime = new CountMinLimitPerTime(new LimitPerTimeSpec(2, 1, TimeUnit.HOURS), 1024, 3,
+                new HashedWheelRefillScheduler(1, TimeUnit.HOURS, 8));
+        assertTrue(limitPerTime.consume("foo", 2));
+        assertFalse(limitPerTime.canConsume("foo"));
+        limitPerTime.refill();
+        assertTrue(limitPerTime.consume("foo", 2));
+        limitPerTime.refill();
+        limitPerTime.refill();
+        assertTrue(limitPerTime.consume("foo", 2));
+        assertFalse(limitPerTime.consume("foo"));
+        limitPerTime.destroy();
+    }
+
+    @Test
+    public void testArguments() throws Exception {
+        LimitPerTimeSpec spec = new LimitPerTimeSpec(2, 1, TimeUnit.HOURS);
+        for (int[] wd : new int[][]{{100, 4}, {0, 4}, {64, 0}, {64, 17}}) {
+            try {
+                LimitsPerTime.countMin(spec, wd[0], wd[1]);
+                throw new AssertionError("accepted: "+wd[0]+" * "+wd[1]);
+            } catch (IllegalArgumentException expected) {
+                //ok
+            }
+        }
+        assertEquals(LimitsPerTime.countMin(spec, 64, 16).getSpec().get(0), spec);
+    }
+
+}
@@ -0,0 +1,196 @@
+package crema.limitpertime;
+
+import com.google.common.base.Stopwatch;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class FusedMultiLimitPerTimeTest extends BaseLimitPerTimeTest {
+
+    @Override
+    protected ExtendedLimitPerTime ten2000ms() {
+        return new FusedMultiLimitPerTime(Collections.singletonList(new LimitPerTimeSpec(10, 2000, TimeUnit.MILLISECONDS)), HashedWheelRefillScheduler.getDefault());
+    }
+
+    @Override
+    protected ExtendedLimitPerTime ten500ms() {
+        return new FusedMultiLimitPerTime(Collections.singletonList(new LimitPerTimeSpec(10, 500, TimeUnit.MILLISECONDS)), HashedWheelRefillScheduler.getDefault());
+    }
+
+    @Test
+    public void testMulti() throws Exception {
+        //because the reset on the longest comes after 500ms
+        runMulti(450, 15); //before reset
+        runMulti(750, 30); //after reset
+    }
+
+    @Test
+    public void testForStringIsFused() throws Exception {
+        ExtendedLimitPerTime limitPerTime = LimitsPerTime.forString("2 in 1 HOUR; 5 in 1 DAY");
+        assertTrue(limitPerTime instanceof FusedMultiLimitPerTime);
+        assertNull(limitPerTime.consumeOrSpec("foo"));
+        assertNull(limitPerTime.consumeOrSpec("foo"));
+        assertEquals(limitPerTime.consumeOrSpec("foo"), new LimitPerTimeSpec(2, 1, TimeUnit.HOURS));
+        assertEquals(limitPerTime.canConsumeOrSpec("bar"), null);
+        limitPerTime.destroy();
+    }
+
+    @Test
+    public void testExpungeStaleEntries() throws Exception {
+        FusedMultiLimitPerTime limitPerTime = new FusedMultiLimitPerTime(Arrays.asList(
+                new LimitPerTimeSpec(2, 100, TimeUnit.MILLISECONDS),
+                new LimitPerTimeSpec(3, 200, TimeUnit.MILLISECONDS)
+        ), new HashedWheelRefillScheduler(1, TimeUnit.HOURS, 8)); //never runs within the test
+        limitPerTime.consume("foo");
+        limitPerTime.consume("bar");
+        limitPerTime.consume(42L);
+        assertEquals(limitPerTime.expungeStaleEntries(), 0);
+        Thread.sleep(450);
+        assertEquals(limitPerTime.expungeStaleEntries(), 3);
+        assertTrue(limitPerTime.consume("foo"));
+        limitPerTime.destroy();
+    }
+
+    @Test
+    public void testExpungeInSlices() throws Exception {
+        FusedMultiLimitPerTime limitPerTime = new FusedMultiLimitPerTime(Arrays.asList(
+                new LimitPerTimeSpec(2, 100, TimeUnit.MILLISECONDS),
+                new LimitPerTimeSpec(3, 200, TimeUnit.MILLISECONDS)
+        ), new HashedWheelRefillScheduler(1, TimeUnit.HOURS, 8));
+        for (int i=0; i<10000; i++) {
+            limitPerTime.consume("key" + i);
+            limitPerTime.consume((long) i);
+        }
+        Thread.sleep(450);
+        limitPerTime.refill();
+        assertEquals(limitPerTime.getKeyCount(), 20000 - FusedRecords.EXPUNGE_SLICE);
+        int steps = 1;
+        while (limitPerTime.getKeyCount() > 0) {
+            limitPerTime.refill();
+            steps++;
+        }
+        assertEquals(steps, (20000 + FusedRecords.EXPUNGE_SLICE - 1) / FusedRecords.EXPUNGE_SLICE);
+        limitPerTime.refill(); //ends the run
+        limitPerTime.refill(); //the next one is not due yet
+        assertEquals(limitPerTime.getKeyCount(), 0);
+        limitPerTime.destroy();
+    }
+
+    @Test
+    public void testLongKeys() throws Exception {
+        FusedMultiLimitPerTime limitPerTime = new FusedMultiLimitPerTime(Arrays.asList(
+                new LimitPerTimeSpec(2, 100, TimeUnit.MILLISECONDS),
+                new LimitPerTimeSpec(3, 1, TimeUnit.HOURS)
+        ), new HashedWheelRefillScheduler(1, TimeUnit.HOURS, 8));
+        assertTrue(limitPerTime.consume(42L));
+        assertTrue(limitPerTime.consume(Long.valueOf(42))); //the same key, boxed or not
+        assertFalse(limitPerTime.canConsume(42L));
+        assertNotNull(limitPerTime.consumeOrSpec(42L));
+        assertTrue(limitPerTime.millisUntil(Long.valueOf(42), 1) > 0);
+        assertTrue(limitPerTime.consume("42")); //not the same key
+        assertEquals(limitPerTime.getKeyCount(), 2);
+        Thread.sleep(150);
+        assertTrue(limitPerTime.consume(42L));
+        assertNotNull(limitPerTime.consumeOrSpec(42L)); //the hour is used up
+        limitPerTime.destroy();
+        assertEquals(limitPerTime.getKeyCount(), 0);
+    }
+
+    @Test
+    public void testUpdateSpec() throws Exception {
+        ReconfigurableLimitPerTime limitPerTime = LimitsPerTime.reconfigurable(Arrays.asList(
+                new LimitPerTimeSpec(4, 1, TimeUnit.HOURS),
+                new LimitPerTimeSpec(10, 1, TimeUnit.DAYS)
+        ), new HashedWheelRefillScheduler(1, TimeUnit.HOURS, 8));
+        assertTrue(limitPerTime.consume("foo", 3));
+        assertTrue(limitPerTime.consume("bar", 1));
+        //same hour: the count is carried over. new week: the share of the day is.
+        limitPerTime.updateSpec(Arrays.asList(
+                new LimitPerTimeSpec(6, 1, TimeUnit.HOURS),
+                new LimitPerTimeSpec(50, 7, TimeUnit.DAYS)
+        ));
+        assertEquals(limitPerTime.getSpec().get(1), new LimitPerTimeSpec(50, 7, TimeUnit.DAYS));
+        assertTrue(limitPerTime.canConsume("foo", 3));
+        assertEquals(limitPerTime.canConsumeOrSpec("foo"), null);
+        assertTrue(limitPerTime.consume("foo", 3));
+        assertEquals(limitPerTime.consumeOrSpec("foo"), new LimitPerTimeSpec(6, 1, TimeUnit.HOURS));
+        assertTrue(limitPerTime.consume("baz", 6));
+        //lowered: a key may be used up right away.
+        limitPerTime.updateSpec(Collections.singletonList(new LimitPerTimeSpec(2, 1, TimeUnit.HOURS)));
+        assertTrue(limitPerTime.consume("bar"));
+        assertFalse(limitPerTime.consume("bar"));
+        assertFalse(limitPerTime.canConsume("foo"));
+        assertEquals(limitPerTime.getSpec().size(), 1);
+        limitPerTime.destroy();
+    }
+
+    @Test
+    public void testUpdateSpec_share() throws Exception {
+        ReconfigurableLimitPerTime limitPerTime = LimitsPerTime.reconfigurable(Collections.singletonList(
+                new LimitPerTimeSpec(10, 1, TimeUnit.HOURS)
+        ), new HashedWheelRefillScheduler(1, TimeUnit.HOURS, 8));
+        assertTrue(limitPerTime.consume("foo", 5));
+        limitPerTime.updateSpec(Collections.singletonList(new LimitPerTimeSpec(100, 1, TimeUnit.DAYS)));
+        assertTrue(limitPerTime.consume("foo", 50));
+        assertFalse(limitPerTime.consume("foo"));
+        limitPerTime.destroy();
+    }
+
+    @Test
+    public void testUpdateSpec_dropsOldGenerations() throws Exception {
+        FusedMultiLimitPerTime limitPerTime = new FusedMultiLimitPerTime(Collections.singletonList(
+                new LimitPerTimeSpec(10, 1, TimeUnit.HOURS)
+        ), new HashedWheelRefillScheduler(1, TimeUnit.HOURS, 8));
+        assertTrue(limitPerTime.consume("foo"));
+        for (int i=1; i<=100; i++) {
+            limitPerTime.updateSpec(Collections.singletonList(new LimitPerTimeSpec(10 + i, 1, TimeUnit.HOURS)));
+        }
+        assertEquals(limitPerTime.getGenerationCount(), 101);
+        limitPerTime.expungeStaleEntries(); //too soon, a consumer may still be on its way with an old one.
+        assertEquals(limitPerTime.getGenerationCount(), 101);
+        limitPerTime.expungeStaleEntries();
+        assertEquals(limitPerTime.getGenerationCount(), 2); //the current one, and the one "foo" still refers to.
+        assertTrue(limitPerTime.consume("foo", 109)); //the count was carried over.
+        assertFalse(limitPerTime.consume("foo"));
+        limitPerTime.expungeStaleEntries();
+        assertEquals(limitPerTime.getGenerationCount(), 1);
+        limitPerTime.updateSpec(Collections.singletonList(new LimitPerTimeSpec(5, 1, TimeUnit.HOURS)));
+        limitPerTime.destroy();
+        assertEquals(limitPerTime.getGenerationCount(), 1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testOnlyFixedWindows() throws Exception {
+        new FusedMultiLimitPerTime(Collections.singletonList(new LimitPerTimeSpec(10, 1, TimeUnit.SECONDS, LimitPerTimeSpec.Algorithm.GCRA)), HashedWheelRefillScheduler.getDefault());
+    }
+
+    private void runMulti(long runFor, int expected) {
+        ExtendedLimitPerTime limitPerTime = new FusedMultiLimitPerTime(Arrays.asList(
+                new LimitPerTimeSpec(2, 10, TimeUnit.MILLISECONDS),
+                new LimitPerTimeSpec(5, 50, TimeUnit.MILLISECONDS),
+                new LimitPerTimeSpec(7, 100, TimeUnit.MILLISECONDS),
+                new LimitPerTimeSpec(15, 500, TimeUnit.MILLISECONDS)
+        ), HashedWheelRefillScheduler.getDefault());
+
+        int counter = 0;
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (stopwatch.elapsed(TimeUnit.MILLISECONDS) < runFor) {
+            if (limitPerTime.consume("foo")) counter++;
+        }
+
+        limitPerTime.destroy();
+        assertEquals(counter, expected);
+    }
+
+}
@@ -0,0 +1,57 @@
+package crema.limitpertime;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class GcraLimitPerTimeTest extends BaseLimitPerTimeTest {
+
+    @Override
+    protected ExtendedLimitPerTime ten2000ms() {
+        return new GcraLimitPerTime(10, 2000, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected ExtendedLimitPerTime ten500ms() {
+        return new GcraLimitPerTime(10, 500, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testSpreadAfterBurst() throws Exception {
+        //one token comes back every 20ms
+        ExtendedLimitPerTime limitPerTime = new GcraLimitPerTime(10, 200, TimeUnit.MILLISECONDS);
+        for (int i=0; i<10; i++) {
+            assertTrue(limitPerTime.consume("foo"));
+        }
+        assertFalse(limitPerTime.consume("foo"));
+        Thread.sleep(25);
+        assertTrue(limitPerTime.consume("foo"));
+        assertFalse(limitPerTime.consume("foo"));
+    }
+
+    @Test
+    public void testExpungeStaleEntries() throws Exception {
+        GcraLimitPerTime limitPerTime = new GcraLimitPerTime(10, 50, TimeUnit.MILLISECONDS);
+        for (int i=0; i<100; i++) {
+            limitPerTime.consume("key-"+i);
+        }
+        assertEquals(limitPerTime.expungeStaleEntries(), 0);
+        Thread.sleep(20);
+        assertEquals(limitPerTime.expungeStaleEntries(), 100);
+        assertTrue(limitPerTime.consume("key-1"));
+    }
+
+    @Test
+    public void testForString() throws Exception {
+        ExtendedLimitPerTime limitPerTime = LimitsPerTime.forString("10 in 5 MINUTES gcra");
+        assertTrue(limitPerTime instanceof GcraLimitPerTime);
+        assertEquals(limitPerTime.getSpec().get(0).getAlgorithm(), LimitPerTimeSpec.Algorithm.GCRA);
+    }
+}
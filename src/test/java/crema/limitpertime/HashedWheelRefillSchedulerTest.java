@@ -0,0 +1,91 @@
+package crema.limitpertime;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.assertEquals;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class HashedWheelRefillSchedulerTest {
+
+    @Test
+    public void testPeriodic() throws Exception {
+        HashedWheelRefillScheduler scheduler = new HashedWheelRefillScheduler(5, TimeUnit.MILLISECONDS, 8);
+        CountingTask task = new CountingTask();
+        //period is longer than one round of the wheel (40ms):
+        RefillScheduler.Registration registration = scheduler.schedule(task, 100, 100, TimeUnit.MILLISECONDS);
+        Thread.sleep(450);
+        registration.cancel();
+        assertEquals(task.count.get(), 4);
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        HashedWheelRefillScheduler scheduler = new HashedWheelRefillScheduler(5, TimeUnit.MILLISECONDS, 8);
+        CountingTask task = new CountingTask();
+        RefillScheduler.Registration registration = scheduler.schedule(task, 20, 20, TimeUnit.MILLISECONDS);
+        Thread.sleep(110);
+        registration.cancel();
+        int count = task.count.get();
+        assertThat(count).isGreaterThanOrEqualTo(4);
+        Thread.sleep(100);
+        assertEquals(task.count.get(), count);
+    }
+
+    @Test
+    public void testManyTasksOneThread() throws Exception {
+        HashedWheelRefillScheduler scheduler = new HashedWheelRefillScheduler(10, TimeUnit.MILLISECONDS, 64);
+        List<RefillScheduler.Registration> registrations = new ArrayList<>();
+        final List<String> threadNames = new ArrayList<>();
+        for (int i=0; i<1000; i++) {
+            registrations.add(scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (threadNames) {
+                        threadNames.add(Thread.currentThread().getName());
+                    }
+                }
+            }, 0, 50, TimeUnit.MILLISECONDS));
+        }
+        Thread.sleep(120);
+        for (RefillScheduler.Registration registration : registrations) {
+            registration.cancel();
+        }
+        synchronized (threadNames) {
+            assertThat(threadNames.size()).isGreaterThanOrEqualTo(2000);
+            assertThat(threadNames).containsOnly("RefillScheduler-HashedWheel");
+        }
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStopOthers() throws Exception {
+        HashedWheelRefillScheduler scheduler = new HashedWheelRefillScheduler(5, TimeUnit.MILLISECONDS, 8);
+        RefillScheduler.Registration failing = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("expected by test");
+            }
+        }, 10, 10, TimeUnit.MILLISECONDS);
+        CountingTask task = new CountingTask();
+        RefillScheduler.Registration registration = scheduler.schedule(task, 10, 10, TimeUnit.MILLISECONDS);
+        Thread.sleep(100);
+        failing.cancel();
+        registration.cancel();
+        assertThat(task.count.get()).isGreaterThanOrEqualTo(5);
+    }
+
+    private static class CountingTask implements Runnable {
+        private final AtomicInteger count = new AtomicInteger();
+        @Override
+        public void run() {
+            count.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package crema.limitpertime;
+
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class JournaledLimitPerTimeTest {
+
+    private static final RefillScheduler IDLE = new HashedWheelRefillScheduler(1, TimeUnit.HOURS, 8);
+    private static final List<LimitPerTimeSpec> SPEC = Arrays.asList(
+            new LimitPerTimeSpec(3, 1, TimeUnit.HOURS),
+            new LimitPerTimeSpec(10, 1, TimeUnit.DAYS)
+    );
+
+    @Test
+    public void testRecovery() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        JournaledLimitPerTime old = LimitsPerTime.journaled(LimitsPerTime.multi(SPEC, IDLE), dir);
+        assertTrue(old.consume("foo", 2));
+        assertTrue(old.consume(42L));
+        assertFalse(old.consume("foo", 2)); //not granted, not journaled
+        assertEquals(old.consumeAll(Arrays.asList("bar", "bar", "bar", "bar")).cardinality(), 3);
+        old.destroy();
+
+        JournaledLimitPerTime fresh = LimitsPerTime.journaled(LimitsPerTime.multi(SPEC, IDLE), dir);
+        assertEquals(fresh.getRestoredKeyCount(), 3);
+        assertTrue(fresh.consume("foo"));
+        assertFalse(fresh.consume("foo"));
+        assertTrue(fresh.consume(42L, 2));
+        assertFalse(fresh.canConsume(42L));
+        assertFalse(fresh.canConsume("bar"));
+        fresh.destroy();
+
+        JournaledLimitPerTime again = LimitsPerTime.journaled(LimitsPerTime.multi(SPEC, IDLE), dir);
+        assertEquals(again.getRestoredKeyCount(), 3);
+        assertFalse(again.canConsume("foo"));
+        again.destroy();
+    }
+
+    @Test
+    public void testTornTail() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        JournaledLimitPerTime old = LimitsPerTime.journaled(LimitsPerTime.multi(SPEC, IDLE), dir);
+        assertTrue(old.consume("foo"));
+        old.destroy();
+        try (FileChannel channel = FileChannel.open(dir.resolve("journal-0.lpt"), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 100, 1, 2, 3}));
+        }
+
+        JournaledLimitPerTime fresh = LimitsPerTime.journaled(LimitsPerTime.multi(SPEC, IDLE), dir);
+        assertEquals(fresh.getRestoredKeyCount(), 1);
+        assertTrue(fresh.consume("foo", 2));
+        assertFalse(fresh.canConsume("foo"));
+        fresh.destroy();
+
+        JournaledLimitPerTime again = LimitsPerTime.journaled(LimitsPerTime.multi(SPEC, IDLE), dir);
+        assertEquals(again.getRestoredKeyCount(), 1);
+        assertFalse(again.canConsume("foo")); //appended after the cut, not after the garbage.
+        again.destroy();
+    }
+
+    /**
+     * More was used than the shortest time limit allows: the longer one must get all of it back.
+     */
+    @Test
+    public void testRecoveryBeyondShortestLimit() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        List<LimitPerTimeSpec> spec = Arrays.asList(
+                new LimitPerTimeSpec(10, 100, TimeUnit.MILLISECONDS),
+                new LimitPerTimeSpec(60, 1, TimeUnit.HOURS)
+        );
+        JournaledLimitPerTime old = LimitsPerTime.journaled(LimitsPerTime.multi(spec, IDLE), dir);
+        int granted = 0;
+        while (granted < 50) {
+            if (old.consume("foo")) {
+                granted++;
+            } else {
+                Thread.sleep(20);
+            }
+        }
+        old.destroy();
+
+        JournaledLimitPerTime fresh = LimitsPerTime.journaled(LimitsPerTime.multi(spec, IDLE), dir);
+        assertEquals(fresh.getRestoredKeyCount(), 1);
+        Thread.sleep(150);
+        assertTrue(fresh.consume("foo", 10));
+        Thread.sleep(150);
+        assertFalse(fresh.consume("foo"));
+        fresh.destroy();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNotSupported() throws Exception {
+        LimitsPerTime.journaled(LimitsPerTime.multi()
+                .add(new LimitPerTimeSpec(10, 1, TimeUnit.MINUTES, LimitPerTimeSpec.Algorithm.SLIDING_WINDOW))
+                .add(new LimitPerTimeSpec(100, 1, TimeUnit.HOURS))
+                .build(), Files.createTempDirectory("journal"));
+    }
+
+    @Test
+    public void testExpiredEntriesAreNotReplayed() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        JournaledLimitPerTime old = LimitsPerTime.journaled(LimitsPerTime.lazy(5, 200, TimeUnit.MILLISECONDS), dir);
+        assertTrue(old.consume("foo", 5));
+        old.destroy();
+        Thread.sleep(300);
+
+        JournaledLimitPerTime fresh = LimitsPerTime.journaled(LimitsPerTime.lazy(5, 200, TimeUnit.MILLISECONDS), dir);
+        assertEquals(fresh.getRestoredKeyCount(), 0);
+        assertTrue(fresh.consume("foo", 5));
+        fresh.destroy();
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        final JournaledLimitPerTime limit = LimitsPerTime.journaled(
+                LimitsPerTime.multi(Arrays.asList(new LimitPerTimeSpec(1000000, 1, TimeUnit.HOURS)), IDLE), dir);
+        final int threads = 8;
+        final int perThread = 200;
+        final AtomicInteger granted = new AtomicInteger();
+        List<Thread> list = new ArrayList<>();
+        for (int t=0; t<threads; t++) {
+            final String key = "key" + t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i=0; i<perThread; i++) {
+                        if (limit.consume(key)) {
+                            granted.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            thread.start();
+            list.add(thread);
+        }
+        for (Thread thread : list) {
+            thread.join();
+        }
+        assertEquals(granted.get(), threads * perThread);
+        assertTrue(limit.getSyncCount() < threads * perThread, "syncs: "+limit.getSyncCount());
+        limit.destroy();
+
+        JournaledLimitPerTime fresh = LimitsPerTime.journaled(
+                LimitsPerTime.multi(Arrays.asList(new LimitPerTimeSpec(1000000, 1, TimeUnit.HOURS)), IDLE), dir);
+        assertEquals(fresh.getRestoredKeyCount(), threads);
+        assertTrue(fresh.consume("key0", 1000000 - perThread));
+        assertFalse(fresh.canConsume("key0"));
+        fresh.destroy();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnsupportedKey() throws Exception {
+        JournaledLimitPerTime limit = LimitsPerTime.journaled(LimitsPerTime.multi(SPEC, IDLE), Files.createTempDirectory("journal"));
+        try {
+            limit.consume(new Object());
+        } finally {
+            limit.destroy();
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package crema.limitpertime;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class LazyLimitPerTimeTest extends BaseLimitPerTimeTest {
+
+    @Override
+    protected ExtendedLimitPerTime ten2000ms() {
+        return new LazyLimitPerTime(10, 2000, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected ExtendedLimitPerTime ten500ms() {
+        return new LazyLimitPerTime(10, 500, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testExpungeStaleEntries() throws Exception {
+        LazyLimitPerTime limitPerTime = new LazyLimitPerTime(2, 100, TimeUnit.MILLISECONDS);
+        for (int i=0; i<100; i++) {
+            limitPerTime.consume("key-"+i);
+        }
+        assertTrue(limitPerTime.consume("foo"));
+        assertTrue(limitPerTime.consume("foo"));
+        assertFalse(limitPerTime.consume("foo"));
+        //nothing is stale yet:
+        assertEquals(limitPerTime.expungeStaleEntries(), 0);
+
+        Thread.sleep(150);
+        assertTrue(limitPerTime.consume("foo"));
+        assertEquals(limitPerTime.expungeStaleEntries(), 100);
+        //the one used in this interval was kept:
+        assertTrue(limitPerTime.consume("foo"));
+        assertFalse(limitPerTime.consume("foo"));
+        //and the removed ones start fresh:
+        assertTrue(limitPerTime.consume("key-1"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testLimitTooHigh() throws Exception {
+        new LazyLimitPerTime(Long.MAX_VALUE / 2, 1, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,133 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class LeasingLimitPerTimeTest {
+
+    private static final RefillScheduler IDLE = new HashedWheelRefillScheduler(1, TimeUnit.HOURS, 8);
+
+    @Test
+    public void testClusterWide() throws Exception {
+        CountingStore store = new CountingStore();
+        LimitPerTimeSpec spec = new LimitPerTimeSpec(100, 1, TimeUnit.HOURS);
+        List<ExtendedLimitPerTime> nodes = new ArrayList<>();
+        for (int i=0; i<4; i++) {
+            nodes.add(new LeasingLimitPerTime(spec, store, 10, IDLE));
+        }
+        int accepted = 0;
+        for (int round=0; round<100; round++) {
+            for (ExtendedLimitPerTime node : nodes) {
+                if (node.consume("foo")) {
+                    accepted++;
+                }
+            }
+        }
+        assertEquals(accepted, 100); //the leases add up exactly here.
+        assertEquals(store.takes.get(), 10 + 4); //one per lease, plus the one of each node that found it exhausted.
+        for (ExtendedLimitPerTime node : nodes) {
+            assertFalse(node.canConsume("foo"));
+            assertTrue(node.canConsume("bar"));
+            node.destroy();
+        }
+    }
+
+    @Test
+    public void testUnusedLease() throws Exception {
+        InMemorySharedQuotaStore store = new InMemorySharedQuotaStore();
+        LimitPerTimeSpec spec = new LimitPerTimeSpec(10, 1, TimeUnit.HOURS);
+        ExtendedLimitPerTime node1 = new LeasingLimitPerTime(spec, store, 4, IDLE);
+        ExtendedLimitPerTime node2 = new LeasingLimitPerTime(spec, store, 4, IDLE);
+        assertTrue(node1.consume("foo"));        //leases 4
+        assertTrue(node2.consume("foo", 5));     //leases 5
+        assertTrue(node2.canConsume("foo", 1));  //1 left in the store
+        assertFalse(node2.consume("foo", 2));    //gets the last 1, not enough
+        assertTrue(node2.consume("foo"));
+        assertTrue(node1.consume("foo", 3));     //node1 still has 3
+        assertFalse(node1.consume("foo"));
+        node1.destroy();
+        node2.destroy();
+    }
+
+    @Test
+    public void testMulti() throws Exception {
+        InMemorySharedQuotaStore store = new InMemorySharedQuotaStore();
+        ExtendedLimitPerTime node1 = LimitsPerTime.multi().add(2, 1, TimeUnit.HOURS).add(3, 1, TimeUnit.DAYS).sharedQuota(store, 1).build();
+        ExtendedLimitPerTime node2 = LimitsPerTime.multi().add(2, 1, TimeUnit.HOURS).add(3, 1, TimeUnit.DAYS).sharedQuota(store, 1).build();
+        assertNull(node1.consumeOrSpec("foo"));
+        assertNull(node2.consumeOrSpec("foo"));
+        assertEquals(node1.consumeOrSpec("foo"), new LimitPerTimeSpec(2, 1, TimeUnit.HOURS));
+        assertEquals(node2.consumeOrSpec("foo"), new LimitPerTimeSpec(2, 1, TimeUnit.HOURS));
+        assertEquals(store.size(), 2);
+        node1.destroy();
+        node2.destroy();
+    }
+
+    @Test
+    public void testNewWindow() throws Exception {
+        InMemorySharedQuotaStore store = new InMemorySharedQuotaStore();
+        LimitPerTimeSpec spec = new LimitPerTimeSpec(1, 200, TimeUnit.MILLISECONDS);
+        LeasingLimitPerTime node = new LeasingLimitPerTime(spec, store, 1, IDLE);
+        //start right after a window boundary, the windows follow the wall clock.
+        Thread.sleep(200 - System.currentTimeMillis() % 200 + 5);
+        assertTrue(node.consume(7L));
+        assertFalse(node.consume(7L));
+        assertTrue(node.millisUntil(7L, 1) > 0);
+        Thread.sleep(node.millisUntil(7L, 1) + 5);
+        assertTrue(node.consume(7L));
+        Thread.sleep(450);
+        node.refill();
+        assertEquals(node.getKeyCount(), 0);
+        assertEquals(store.expungeStaleEntries(), 1);
+        node.destroy();
+    }
+
+    /**
+     * The window of 1 ms is over between the check and the consumption now and then.
+     */
+    @Test
+    public void testMultiAcrossWindows() throws Exception {
+        InMemorySharedQuotaStore store = new InMemorySharedQuotaStore();
+        ExtendedLimitPerTime node = LimitsPerTime.multi()
+                .add(1000, 1, TimeUnit.MILLISECONDS)
+                .add(1000000000, 1, TimeUnit.HOURS)
+                .sharedQuota(store, 10)
+                .build();
+        for (int i=0; i<1000000; i++) {
+            node.consumeOrSpec("foo"); //must not throw
+        }
+        node.destroy();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testOnlyFixedWindows() throws Exception {
+        LimitsPerTime.multi()
+                .add(2, 1, TimeUnit.HOURS)
+                .add(new LimitPerTimeSpec(3, 1, TimeUnit.DAYS, LimitPerTimeSpec.Algorithm.GCRA))
+                .sharedQuota(new InMemorySharedQuotaStore(), 1)
+                .build();
+    }
+
+    private static class CountingStore extends InMemorySharedQuotaStore {
+        private final AtomicInteger takes = new AtomicInteger();
+        @Override
+        public long take(@NotNull LimitPerTimeSpec spec, @NotNull Object key, long window, long permits) {
+            takes.incrementAndGet();
+            return super.take(spec, key, window, permits);
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+package crema.limitpertime;
+
+import com.google.common.base.Functions;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class LimitPerTimeSnapshotTest {
+
+    private static final RefillScheduler IDLE = new HashedWheelRefillScheduler(1, TimeUnit.HOURS, 8);
+    private static final List<LimitPerTimeSpec> SPEC = Arrays.asList(
+            new LimitPerTimeSpec(3, 1, TimeUnit.HOURS),
+            new LimitPerTimeSpec(10, 1, TimeUnit.DAYS)
+    );
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        ExtendedLimitPerTime old = LimitsPerTime.multi(SPEC, IDLE);
+        for (int i=0; i<20000; i++) { //more than one chunk
+            assertTrue(old.consume("key" + i, 3));
+        }
+        assertTrue(old.consume(42L));
+        assertTrue(old.consume(Integer.valueOf(7), 2));
+        old.consume(new Object()); //not supported, skipped
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(LimitPerTimeSnapshot.write(old, Channels.newChannel(out)), 20002);
+
+        ExtendedLimitPerTime fresh = LimitsPerTime.multi(SPEC, IDLE);
+        assertTrue(fresh.consume("key0")); //used on the new instance already, adds up.
+        assertEquals(LimitPerTimeSnapshot.read(fresh, Channels.newChannel(new ByteArrayInputStream(out.toByteArray()))), 20002);
+        assertFalse(fresh.canConsume("key0"));
+        assertFalse(fresh.canConsume("key19999"));
+        assertTrue(fresh.consume(42L, 2));
+        assertFalse(fresh.consume(42L));
+        assertTrue(fresh.consume(Integer.valueOf(7)));
+        assertFalse(fresh.consume(Integer.valueOf(7)));
+        assertTrue(fresh.canConsume("other", 3));
+        old.destroy();
+        fresh.destroy();
+    }
+
+    @Test
+    public void testLongKeysInBatches() throws Exception {
+        final ExtendedLimitPerTime old = LimitsPerTime.multi(SPEC, IDLE);
+        for (long key=0; key<100000; key++) { //more than one batch per stripe
+            assertTrue(old.consume(key));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final WritableByteChannel channel = Channels.newChannel(out);
+        final long[] added = {1000000};
+        WritableByteChannel growing = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                for (int i=0; i<5000 && added[0] < 1100000; i++) { //the stripes grow between the batches
+                    assertTrue(old.consume(added[0]++, 3));
+                }
+                return channel.write(src);
+            }
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+            @Override
+            public void close() {
+            }
+        };
+        long written = LimitPerTimeSnapshot.write(old, growing);
+        assertTrue(written >= 100000 && written <= added[0] - 1000000 + 100000, "written: " + written);
+
+        ExtendedLimitPerTime fresh = LimitsPerTime.multi(SPEC, IDLE);
+        LimitPerTimeSnapshot.read(fresh, Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+        for (long key=0; key<100000; key++) {
+            assertTrue(fresh.consume(key, 2), "key: " + key); //in once, not twice.
+            assertFalse(fresh.canConsume(key));
+        }
+        old.destroy();
+        fresh.destroy();
+    }
+
+    @Test
+    public void testOnlyMatchingTimeAmounts() throws Exception {
+        ExtendedLimitPerTime old = LimitsPerTime.multi(SPEC, IDLE);
+        assertTrue(old.consume("foo", 3));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LimitPerTimeSnapshot.write(old, Channels.newChannel(out));
+
+        TieredLimitPerTime fresh = LimitsPerTime.tiered(Functions.constant("free"))
+                .tier("free", "20 in 1 MINUTE; 20 in 1 DAY")
+                .scheduler(IDLE)
+                .build();
+        LimitPerTimeSnapshot.read(fresh, Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+        assertTrue(fresh.consume("foo", 17)); //the minute is not in the snapshot, the day has 3 used.
+        assertEquals(fresh.consumeOrSpec("foo"), new LimitPerTimeSpec(20, 1, TimeUnit.DAYS));
+        old.destroy();
+        fresh.destroy();
+    }
+
+    @Test
+    public void testCutOff() throws Exception {
+        ExtendedLimitPerTime old = LimitsPerTime.multi(SPEC, IDLE);
+        assertTrue(old.consume("foo"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LimitPerTimeSnapshot.write(old, Channels.newChannel(out));
+        byte[] bytes = Arrays.copyOf(out.toByteArray(), out.size() - 4);
+        try {
+            LimitPerTimeSnapshot.read(LimitsPerTime.multi(SPEC, IDLE), Channels.newChannel(new ByteArrayInputStream(bytes)));
+            fail();
+        } catch (EOFException expected) {
+        }
+        old.destroy();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNotSupported() throws Exception {
+        LimitPerTimeSnapshot.write(LimitsPerTime.single(10, 1, TimeUnit.HOURS), Channels.newChannel(new ByteArrayOutputStream()));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNotASnapshot() throws Exception {
+        LimitPerTimeSnapshot.read(LimitsPerTime.multi(SPEC, IDLE), Channels.newChannel(new ByteArrayInputStream(new byte[16])));
+    }
+
+}
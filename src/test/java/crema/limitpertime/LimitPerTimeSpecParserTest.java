@@ -3,8 +3,11 @@ package crema.limitpertime;
 import org.testng.annotations.Test;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
 
 /**
  * @author Alexei Arshavin, Optimaize
@@ -16,4 +19,67 @@ public class LimitPerTimeSpecParserTest {
         List<LimitPerTimeSpec> spec = LimitPerTimeSpecParser.getInstance().parse("10 in 5 MINUTES; 100 in 1 HOUR; 1000 in 1day");
         assertEquals(spec.size(), 3);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testParseAlgorithm() throws Exception {
+        List<LimitPerTimeSpec> spec = LimitPerTimeSpecParser.getInstance().parse("10 in 5 MINUTES sliding; 100 in 1 HOUR fixed; 1000 in 1day");
+        assertEquals(spec.get(0), new LimitPerTimeSpec(10, 5, TimeUnit.MINUTES, LimitPerTimeSpec.Algorithm.SLIDING_WINDOW));
+        assertEquals(spec.get(1).getAlgorithm(), LimitPerTimeSpec.Algorithm.FIXED_WINDOW);
+        assertEquals(spec.get(2).getAlgorithm(), LimitPerTimeSpec.Algorithm.FIXED_WINDOW);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testParseAlgorithm_unknown() throws Exception {
+        LimitPerTimeSpecParser.getInstance().parse("10 in 5 MINUTES leaky");
+    }
+
+    @Test
+    public void testParseUnits() throws Exception {
+        List<LimitPerTimeSpec> spec = LimitPerTimeSpecParser.getInstance().parse("5 in 300ms; 6 IN 2 Milliseconds; 7in1s;8 in 3 m ; 9 in 1 hours gcra");
+        assertEquals(spec.get(0), new LimitPerTimeSpec(5, 300, TimeUnit.MILLISECONDS));
+        assertEquals(spec.get(1), new LimitPerTimeSpec(6, 2, TimeUnit.MILLISECONDS));
+        assertEquals(spec.get(2), new LimitPerTimeSpec(7, 1, TimeUnit.SECONDS));
+        assertEquals(spec.get(3), new LimitPerTimeSpec(8, 3, TimeUnit.MINUTES));
+        assertEquals(spec.get(4), new LimitPerTimeSpec(9, 1, TimeUnit.HOURS, LimitPerTimeSpec.Algorithm.GCRA));
+    }
+
+    @Test
+    public void testParseEmpty() throws Exception {
+        assertTrue(LimitPerTimeSpecParser.getInstance().parse("").isEmpty());
+        assertTrue(LimitPerTimeSpecParser.getInstance().parse(" ; ;").isEmpty());
+        assertEquals(LimitPerTimeSpecParser.getInstance().parse(";10 in 5 MINUTES;").size(), 1);
+    }
+
+    @Test
+    public void testInterned() throws Exception {
+        String s = "10 in 5 MINUTES; 100 in 1 HOUR";
+        List<LimitPerTimeSpec> spec = LimitPerTimeSpecParser.getInstance().parse(s);
+        assertSame(LimitPerTimeSpecParser.getInstance().parse(new String(s)), spec);
+        assertSame(LimitPerTimeSpecParser.getInstance().parseSortValidate(s), LimitPerTimeSpecParser.getInstance().parseSortValidate(s));
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testInterned_unmodifiable() throws Exception {
+        LimitPerTimeSpecParser.getInstance().parse("10 in 5 MINUTES").clear();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testParse_missingIn() throws Exception {
+        LimitPerTimeSpecParser.getInstance().parse("10 on 5 MINUTES");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testParse_unknownUnit() throws Exception {
+        LimitPerTimeSpecParser.getInstance().parse("10 in 5 fortnights");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testParse_trailingGarbage() throws Exception {
+        LimitPerTimeSpecParser.getInstance().parse("10 in 5 MINUTES sliding fast");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testParse_tooSmallUnit() throws Exception {
+        LimitPerTimeSpecParser.getInstance().parse("10 in 5 MICROSECONDS");
+    }
+}
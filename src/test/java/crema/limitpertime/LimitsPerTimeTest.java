@@ -1,8 +1,20 @@
 package crema.limitpertime;
 
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.testng.annotations.Test;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
 
 /**
  * @author Alexei Arshavin, Optimaize
@@ -19,4 +31,63 @@ public class LimitsPerTimeTest {
     public void testForString_illegal() throws Exception {
         LimitsPerTime.forString("10 in 5 MINUTES; 5 in 1 HOUR");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testForString_sliding() throws Exception {
+        LimitPerTime limitPerTime = LimitsPerTime.forString("10 in 5 MINUTES sliding");
+        assertTrue(limitPerTime instanceof SlidingWindowLimitPerTime);
+        limitPerTime.destroy();
+    }
+
+    @Test
+    public void testExtended() throws Exception {
+        ExtendedLimitPerTime limitPerTime = LimitsPerTime.lazy(1, 1, TimeUnit.HOURS);
+        assertSame(LimitsPerTime.extended(limitPerTime), limitPerTime);
+
+        ExtendedLimitPerTime plain = LimitsPerTime.extended(new OncePerKey());
+        assertTrue(plain.consume(5L));
+        assertFalse(plain.consume((Object) 5L)); //boxed, same key
+        assertFalse(plain.canConsume(5L));
+        assertTrue(plain.consume("foo", 1));
+        assertEquals(plain.consumeAll(Arrays.asList("bar", "bar")).cardinality(), 1);
+        assertTrue(LimitsPerTime.metered(new OncePerKey()).consume(7L));
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testExtended_permits() throws Exception {
+        LimitsPerTime.extended(new OncePerKey()).consume("foo", 2);
+    }
+
+    /**
+     * Implements just the {@link LimitPerTime}, like a limit from outside of the library.
+     */
+    private static class OncePerKey implements LimitPerTime {
+        private static final LimitPerTimeSpec SPEC = new LimitPerTimeSpec(1, 1, TimeUnit.DAYS);
+        private final Set<Object> used = Collections.synchronizedSet(new HashSet<>());
+        @Override
+        public boolean consume(@NotNull Object key) {
+            return used.add(key);
+        }
+        @Nullable @Override
+        public LimitPerTimeSpec consumeOrSpec(@NotNull Object key) {
+            return consume(key) ? null : SPEC;
+        }
+        @Override
+        public boolean canConsume(@NotNull Object key) {
+            return !used.contains(key);
+        }
+        @Nullable @Override
+        public LimitPerTimeSpec canConsumeOrSpec(@NotNull Object key) {
+            return canConsume(key) ? null : SPEC;
+        }
+        @Override
+        public void destroy() {
+            used.clear();
+        }
+        @NotNull @Override
+        public List<LimitPerTimeSpec> getSpec() {
+            return Collections.singletonList(SPEC);
+        }
+    }
+
+}
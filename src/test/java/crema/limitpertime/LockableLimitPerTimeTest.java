@@ -13,12 +13,12 @@ import static org.testng.Assert.assertTrue;
 public class LockableLimitPerTimeTest extends BaseLimitPerTimeTest {
 
     @Override
-    protected LimitPerTime ten2000ms() {
+    protected ExtendedLimitPerTime ten2000ms() {
         return new LockableLimitPerTime(10, 2000, TimeUnit.MILLISECONDS);
     }
 
     @Override
-    protected LimitPerTime ten500ms() {
+    protected ExtendedLimitPerTime ten500ms() {
         return new LockableLimitPerTime(10, 500, TimeUnit.MILLISECONDS);
     }
 
@@ -0,0 +1,86 @@
+package crema.limitpertime;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class LongArrayHashMapTest {
+
+    @Test
+    public void testPutGet() throws Exception {
+        LongArrayHashMap map = new LongArrayHashMap();
+        assertNull(map.get(1));
+        long[] one = {10};
+        long[] zero = {20};
+        map.put(1, one);
+        map.put(0, zero);
+        map.put(Long.MIN_VALUE, new long[]{30});
+        assertSame(map.get(1), one);
+        assertSame(map.get(0), zero);
+        assertEquals(map.get(Long.MIN_VALUE)[0], 30);
+        assertEquals(map.size(), 3);
+        map.put(1, new long[]{11});
+        assertEquals(map.get(1)[0], 11);
+        assertEquals(map.size(), 3);
+    }
+
+    @Test
+    public void testVisit() throws Exception {
+        LongArrayHashMap map = new LongArrayHashMap();
+        for (long i=0; i<1000; i++) {
+            map.put(i, new long[]{i});
+        }
+        int removed = map.visit(new LongArrayHashMap.Visitor() {
+            @Override
+            public boolean visit(long key, @NotNull long[] value) {
+                return value[0] < 600;
+            }
+        });
+        assertEquals(removed, 600);
+        assertEquals(map.size(), 400);
+        assertNull(map.get(0));
+        assertNull(map.get(599));
+        assertEquals(map.get(600)[0], 600);
+        assertEquals(map.get(999)[0], 999);
+        map.clear();
+        assertEquals(map.size(), 0);
+        assertNull(map.get(999));
+    }
+
+    @Test
+    public void testVisitInSlices() throws Exception {
+        LongArrayHashMap map = new LongArrayHashMap();
+        for (long i=0; i<1000; i++) {
+            map.put(i * 31, new long[]{i});
+        }
+        final long[] seen = new long[1000];
+        LongArrayHashMap.Visitor everyOther = new LongArrayHashMap.Visitor() {
+            @Override
+            public boolean visit(long key, @NotNull long[] value) {
+                seen[(int) value[0]]++;
+                return value[0] % 2 == 0;
+            }
+        };
+        int slot = 0;
+        while (slot < map.capacity()) {
+            slot = map.visit(everyOther, slot, 7);
+        }
+        assertEquals(map.size(), 500);
+        for (long i=0; i<1000; i++) {
+            assertTrue(seen[(int) i] >= 1);
+            if (i % 2 == 0) {
+                assertNull(map.get(i * 31));
+            } else {
+                assertEquals(map.get(i * 31)[0], i);
+            }
+        }
+    }
+
+}
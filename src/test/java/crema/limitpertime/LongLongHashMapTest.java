@@ -0,0 +1,94 @@
+package crema.limitpertime;
+
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class LongLongHashMapTest {
+
+    @Test
+    public void testPutGet() throws Exception {
+        LongLongHashMap map = new LongLongHashMap();
+        assertEquals(map.get(1, -1), -1);
+        map.put(1, 10);
+        map.put(0, 20);
+        map.put(Long.MIN_VALUE, 30);
+        assertEquals(map.get(1, -1), 10);
+        assertEquals(map.get(0, -1), 20);
+        assertEquals(map.get(Long.MIN_VALUE, -1), 30);
+        assertEquals(map.size(), 3);
+        map.put(1, 11);
+        assertEquals(map.get(1, -1), 11);
+        assertEquals(map.size(), 3);
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        LongLongHashMap map = new LongLongHashMap();
+        for (long i=0; i<1000; i++) {
+            map.put(i, i);
+        }
+        map.clear();
+        assertEquals(map.size(), 0);
+        assertEquals(map.get(0, -1), -1);
+        assertEquals(map.get(500, -1), -1);
+    }
+
+    @Test
+    public void testRemoveValuesBelow() throws Exception {
+        LongLongHashMap map = new LongLongHashMap();
+        for (long i=0; i<1000; i++) {
+            map.put(i, i);
+        }
+        assertEquals(map.removeValuesBelow(600), 600);
+        assertEquals(map.size(), 400);
+        assertEquals(map.get(0, -1), -1);
+        assertEquals(map.get(599, -1), -1);
+        assertEquals(map.get(600, -1), 600);
+        assertEquals(map.get(999, -1), 999);
+    }
+
+    /**
+     * Compares against a HashMap with many collisions and removals, for the backward shift deletion.
+     */
+    @Test
+    public void testRandomAgainstHashMap() throws Exception {
+        Random random = new Random(42);
+        LongLongHashMap map = new LongLongHashMap();
+        Map<Long,Long> expected = new HashMap<>();
+        for (int i=0; i<200000; i++) {
+            long key = random.nextInt(2000) - 1000;
+            switch (random.nextInt(3)) {
+                case 0:
+                case 1:
+                    long value = random.nextLong();
+                    map.put(key, value);
+                    expected.put(key, value);
+                    break;
+                default:
+                    assertEquals(map.remove(key), expected.remove(key) != null);
+            }
+        }
+        assertEquals(map.size(), expected.size());
+        for (long key=-1000; key<1000; key++) {
+            Long value = expected.get(key);
+            if (value == null) {
+                assertEquals(map.get(key, 7), 7);
+                assertFalse(map.remove(key));
+            } else {
+                assertEquals(map.get(key, 7), (long) value);
+                assertTrue(map.remove(key));
+            }
+        }
+        assertEquals(map.size(), 0);
+    }
+}
@@ -0,0 +1,165 @@
+package crema.limitpertime;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class MappedCounterStoreTest {
+
+    private File dir;
+
+    @BeforeMethod
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("counters").toFile();
+    }
+
+    @AfterMethod
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        File file = new File(dir, "test.counters");
+        MappedCounterStore store = MappedCounterStore.open(file, 100, 60000);
+        store.put("a", 10);
+        store.put(0L, 20);
+        store.put(7, 30);
+        long intervalStart = store.getIntervalStartMillis();
+        store.close();
+
+        store = MappedCounterStore.open(file, 100, 60000);
+        assertEquals(store.get("a", -1), 10);
+        assertEquals(store.get(0, -1), 20);
+        assertEquals(store.get(Long.valueOf(7), -1), 30);
+        assertEquals(store.get("b", -1), -1);
+        assertEquals(store.size(), 3);
+        assertEquals(store.getIntervalStartMillis(), intervalStart);
+        store.clear();
+        assertEquals(store.get("a", -1), -1);
+        assertEquals(store.get(0, -1), -1);
+        store.close();
+
+        store = MappedCounterStore.open(file, 100, 60000);
+        assertEquals(store.size(), 0);
+        assertEquals(store.get(7, -1), -1);
+        store.close();
+    }
+
+    @Test
+    public void testOtherIntervalDropsCounters() throws Exception {
+        File file = new File(dir, "test.counters");
+        MappedCounterStore store = MappedCounterStore.open(file, 100, 60000);
+        store.put("a", 10);
+        store.close();
+
+        store = MappedCounterStore.open(file, 100, 1000);
+        assertEquals(store.get("a", -1), -1);
+        store.close();
+    }
+
+    @Test
+    public void testLocked() throws Exception {
+        File file = new File(dir, "test.counters");
+        MappedCounterStore store = MappedCounterStore.open(file, 100, 60000);
+        try {
+            MappedCounterStore.open(file, 100, 60000);
+            fail();
+        } catch (RuntimeException expected) {
+            //in the same process the JVM reports an OverlappingFileLockException.
+        }
+        store.close();
+        MappedCounterStore.open(file, 100, 60000).close();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNotACounterStore() throws Exception {
+        File file = new File(dir, "test.counters");
+        Files.write(file.toPath(), new byte[100]);
+        MappedCounterStore.open(file, 100, 60000);
+    }
+
+    @Test
+    public void testFull() throws Exception {
+        File file = new File(dir, "test.counters");
+        MappedCounterStore store = MappedCounterStore.open(file, 10, 60000);
+        for (long i=1; i<=12; i++) {
+            store.put(i, i);
+        }
+        assertFalse(store.isOverflowing());
+        assertEquals(store.size(), 12);
+        store.put(13, 1); //does not fit, fails closed.
+        assertTrue(store.isOverflowing());
+        assertEquals(store.size(), 12);
+        assertEquals(store.get(14, -1), 1);
+        store.put(14, 2);
+        assertEquals(store.get(13, -1), 2);
+        assertEquals(store.get(12, -1), 12);
+        store.close();
+
+        store = MappedCounterStore.open(file, 10, 60000);
+        assertTrue(store.isOverflowing());
+        assertEquals(store.get(13, -1), 2);
+        store.clear();
+        assertFalse(store.isOverflowing());
+        assertEquals(store.get(13, -1), -1);
+        store.close();
+    }
+
+    /**
+     * A new limit on the same directory continues with the counters and the time interval of the old one.
+     */
+    @Test
+    public void testLimitSurvivesRestart() throws Exception {
+        LimitPerTimeSpec spec = new LimitPerTimeSpec(10, 1000, TimeUnit.MILLISECONDS);
+        LimitPerTime limit = new SimpleLimitPerTime(spec, HashedWheelRefillScheduler.getDefault(), CounterStores.mapped(dir, 100));
+        for (int i=0; i<10; i++) {
+            assertTrue(limit.consume("key"));
+        }
+        assertFalse(limit.consume("key"));
+        limit.destroy();
+
+        limit = new SimpleLimitPerTime(spec, HashedWheelRefillScheduler.getDefault(), CounterStores.mapped(dir, 100));
+        assertFalse(limit.consume("key"));
+        assertTrue(limit.consume("other"));
+        Thread.sleep(1200);
+        assertTrue(limit.consume("key"));
+        limit.destroy();
+    }
+
+    /**
+     * The interval ended while no process was running.
+     */
+    @Test
+    public void testLimitStartsNewInterval() throws Exception {
+        LimitPerTimeSpec spec = new LimitPerTimeSpec(1, 200, TimeUnit.MILLISECONDS);
+        LimitPerTime limit = new SimpleLimitPerTime(spec, HashedWheelRefillScheduler.getDefault(), CounterStores.mapped(dir, 100));
+        assertTrue(limit.consume("key"));
+        limit.destroy();
+        Thread.sleep(300);
+
+        limit = new SimpleLimitPerTime(spec, HashedWheelRefillScheduler.getDefault(), CounterStores.mapped(dir, 100));
+        assertTrue(limit.consume("key"));
+        limit.destroy();
+    }
+
+}
@@ -0,0 +1,102 @@
+package crema.limitpertime;
+
+import org.testng.annotations.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class MeteredLimitPerTimeTest extends BaseLimitPerTimeTest {
+
+    @Override
+    protected ExtendedLimitPerTime ten2000ms() {
+        return LimitsPerTime.multi().add(10, 2000, TimeUnit.MILLISECONDS).buildMetered();
+    }
+
+    @Override
+    protected ExtendedLimitPerTime ten500ms() {
+        return LimitsPerTime.multi().add(10, 500, TimeUnit.MILLISECONDS).buildMetered();
+    }
+
+    @Test
+    public void testCounts() throws Exception {
+        MeteredLimitPerTime limitPerTime = LimitsPerTime.metered(LimitsPerTime.single(2, 1, TimeUnit.HOURS));
+        LimitPerTimeMetrics metrics = limitPerTime.getMetrics();
+        assertTrue(limitPerTime.consume("foo"));
+        assertTrue(limitPerTime.consume("foo"));
+        assertFalse(limitPerTime.consume("foo"));
+        assertTrue(limitPerTime.consume(7L));
+        assertTrue(limitPerTime.consume(7L, 1));
+        assertFalse(limitPerTime.consume(7L, 1));
+        assertTrue(limitPerTime.canConsume("bar")); //not counted
+        assertEquals(limitPerTime.consumeAll(Arrays.asList("bar", "bar", "bar")).cardinality(), 2);
+        assertEquals(metrics.getAccepted(), 6);
+        assertEquals(metrics.getRejected(), 3);
+        assertEquals(metrics.getRejected(new LimitPerTimeSpec(2, 1, TimeUnit.HOURS)), 3);
+        assertEquals(metrics.getKeyCount(), 3);
+        limitPerTime.destroy();
+    }
+
+    @Test
+    public void testRejectedBySpec() throws Exception {
+        LimitPerTimeSpec perHour = new LimitPerTimeSpec(2, 1, TimeUnit.HOURS);
+        LimitPerTimeSpec perDay = new LimitPerTimeSpec(3, 1, TimeUnit.DAYS);
+        MeteredLimitPerTime limitPerTime = LimitsPerTime.multi().add(perDay).add(perHour).buildMetered();
+        assertTrue(limitPerTime.consume("foo"));
+        assertTrue(limitPerTime.consume("foo"));
+        assertFalse(limitPerTime.consume("foo"));
+        assertFalse(limitPerTime.consume("foo", 3));
+        assertTrue(limitPerTime.consume(7L));
+        assertTrue(limitPerTime.consume(7L));
+        assertFalse(limitPerTime.consume(7L));
+        assertEquals(limitPerTime.consumeAll(Arrays.asList("bar", "bar", "bar")).cardinality(), 2);
+        assertFalse(limitPerTime.consume("baz", 3)); //1 would fit, not attributed
+        Map<LimitPerTimeSpec,Long> rejected = limitPerTime.getMetrics().getRejectedBySpec();
+        assertEquals(rejected.keySet().iterator().next(), perHour);
+        assertEquals((long) rejected.get(perHour), 4L);
+        assertEquals((long) rejected.get(perDay), 0L);
+        assertEquals(limitPerTime.getMetrics().getRejected(), 5);
+        assertEquals(limitPerTime.getMetrics().getKeyCount(), 3);
+        limitPerTime.destroy();
+    }
+
+    @Test
+    public void testRefills() throws Exception {
+        MeteredLimitPerTime limitPerTime = LimitsPerTime.multi()
+                .add(1, 100, TimeUnit.MILLISECONDS)
+                .scheduler(new HashedWheelRefillScheduler(10, TimeUnit.MILLISECONDS, 64))
+                .buildMetered();
+        assertEquals(limitPerTime.getMetrics().getRefillCount(), 0);
+        Thread.sleep(350);
+        LimitPerTimeMetrics metrics = limitPerTime.getMetrics();
+        assertTrue(metrics.getRefillCount() >= 2, "refills: "+metrics.getRefillCount());
+        assertTrue(metrics.getRefillNanosTotal() >= metrics.getRefillNanosMax());
+        limitPerTime.destroy();
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        String name = "crema.limitpertime:type=LimitPerTime,name=MeteredLimitPerTimeTest";
+        MeteredLimitPerTime limitPerTime = LimitsPerTime.metered(LimitsPerTime.single(2, 1, TimeUnit.HOURS));
+        limitPerTime.getMetrics().registerMBean(name);
+        try {
+            limitPerTime.consume("foo");
+            Object accepted = ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(name), "Accepted");
+            assertEquals(accepted, 1L);
+        } finally {
+            limitPerTime.getMetrics().unregisterMBean(name);
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(name)));
+        limitPerTime.destroy();
+    }
+
+}
@@ -3,9 +3,16 @@ package crema.limitpertime;
 import com.google.common.base.Stopwatch;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
 
 /**
  * @author Alexei Arshavin, Optimaize
@@ -13,12 +20,12 @@ import static org.testng.Assert.assertEquals;
 public class MultiLimitPerTimeTest extends BaseLimitPerTimeTest {
 
     @Override
-    protected LimitPerTime ten2000ms() {
+    protected ExtendedLimitPerTime ten2000ms() {
         return MultiLimitPerTime.create().add(10, 2000, TimeUnit.MILLISECONDS).build();
     }
 
     @Override
-    protected LimitPerTime ten500ms() {
+    protected ExtendedLimitPerTime ten500ms() {
         return MultiLimitPerTime.create().add(10, 500, TimeUnit.MILLISECONDS).build();
     }
 
@@ -29,6 +36,72 @@ public class MultiLimitPerTimeTest extends BaseLimitPerTimeTest {
         runMulti(750, 30); //after reset
     }
 
+    @Test
+    public void testMixedAlgorithms() throws Exception {
+        ExtendedLimitPerTime limitPerTime = LimitsPerTime.forString("2 in 1 HOUR sliding; 5 in 1 DAY");
+        assertNull(limitPerTime.consumeOrSpec("foo"));
+        assertNull(limitPerTime.consumeOrSpec("foo"));
+        assertEquals(limitPerTime.consumeOrSpec("foo"), new LimitPerTimeSpec(2, 1, TimeUnit.HOURS, LimitPerTimeSpec.Algorithm.SLIDING_WINDOW));
+        limitPerTime.destroy();
+    }
+
+    /**
+     * The same key from many threads: all windows must stay exact.
+     */
+    @Test
+    public void testManyThreadsOneKey() throws Exception {
+        final ExtendedLimitPerTime limitPerTime = MultiLimitPerTime.create()
+                .add(1000, 1, TimeUnit.HOURS)
+                .add(1500, 1, TimeUnit.DAYS)
+                .build();
+        assertEquals(runThreads(limitPerTime, 8, 500, 1), 1000);
+        limitPerTime.destroy();
+    }
+
+    /**
+     * Many keys from many threads, each key gets exactly its limit.
+     */
+    @Test
+    public void testManyThreadsManyKeys() throws Exception {
+        final ExtendedLimitPerTime limitPerTime = MultiLimitPerTime.create()
+                .add(10, 1, TimeUnit.HOURS)
+                .add(15, 1, TimeUnit.DAYS)
+                .add(new LimitPerTimeSpec(20, 7, TimeUnit.DAYS, LimitPerTimeSpec.Algorithm.SLIDING_WINDOW))
+                .build();
+        assertEquals(runThreads(limitPerTime, 8, 2000, 100), 100 * 10);
+        limitPerTime.destroy();
+    }
+
+    /**
+     * Each thread consumes {@code attempts} times, cycling over {@code numKeys} keys.
+     * @return the total number of successful consumptions.
+     */
+    private int runThreads(final ExtendedLimitPerTime limitPerTime, int numThreads, final int attempts, final int numKeys) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int t=0; t<numThreads; t++) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int counter = 0;
+                        for (int i=0; i<attempts; i++) {
+                            if (limitPerTime.consume("key"+(i % numKeys))) counter++;
+                        }
+                        return counter;
+                    }
+                }));
+            }
+            int total = 0;
+            for (Future<Integer> future : futures) {
+                total += future.get();
+            }
+            return total;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     private void runMulti(long runFor, int expected) {
         MultiLimitPerTime limitPerTime = MultiLimitPerTime.create()
                 .add(2, 10, TimeUnit.MILLISECONDS)
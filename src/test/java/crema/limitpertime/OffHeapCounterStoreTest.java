@@ -0,0 +1,113 @@
+package crema.limitpertime;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class OffHeapCounterStoreTest extends BaseLimitPerTimeTest {
+
+    @Override
+    protected ExtendedLimitPerTime ten2000ms() {
+        return new SimpleLimitPerTime(new LimitPerTimeSpec(10, 2000, TimeUnit.MILLISECONDS), HashedWheelRefillScheduler.getDefault(), CounterStores.offHeap(100));
+    }
+
+    @Override
+    protected ExtendedLimitPerTime ten500ms() {
+        return new SimpleLimitPerTime(new LimitPerTimeSpec(10, 500, TimeUnit.MILLISECONDS), HashedWheelRefillScheduler.getDefault(), CounterStores.offHeap(100));
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        OffHeapCounterStore store = new OffHeapCounterStore(10);
+        assertEquals(store.get("a", -1), -1);
+        store.put("a", 10);
+        store.put(0L, 20);
+        store.put(Long.MIN_VALUE, 30);
+        assertEquals(store.get("a", -1), 10);
+        assertEquals(store.get(0, -1), 20);
+        assertEquals(store.get(Long.valueOf(0), -1), 20);
+        assertEquals(store.get(Long.MIN_VALUE, -1), 30);
+        assertEquals(store.size(), 3);
+        store.put("a", 11);
+        assertEquals(store.get("a", -1), 11);
+        assertEquals(store.size(), 3);
+    }
+
+    @Test
+    public void testFull() throws Exception {
+        OffHeapCounterStore store = new OffHeapCounterStore(10, 32);
+        for (long i=1; i<=24; i++) {
+            store.put(i, i);
+        }
+        assertFalse(store.isOverflowing());
+        store.put(25, 1);
+        assertTrue(store.isOverflowing());
+        assertEquals(store.size(), 24);
+        assertEquals(store.get(26, -1), 1); //the keys that don't fit share one counter
+        store.put(26, 2);
+        assertEquals(store.get(25, -1), 2);
+        assertEquals(store.get(24, -1), 24);
+        store.put(24, 0);
+        assertEquals(store.get(24, -1), 0);
+        store.clear();
+        assertFalse(store.isOverflowing());
+        assertEquals(store.get(25, -1), -1);
+        store.put(25, 5);
+        assertEquals(store.get(25, -1), 5);
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        OffHeapCounterStore store = new OffHeapCounterStore(2000);
+        long bytes = store.getCapacityInBytes();
+        for (long i=0; i<1000; i++) {
+            store.put(i, i);
+        }
+        store.clear();
+        assertEquals(store.size(), 0);
+        assertEquals(store.get(0, -1), -1);
+        assertEquals(store.get(500, -1), -1);
+        store.put(500, 1);
+        assertEquals(store.get(500, -1), 1);
+        assertEquals(store.get(501, -1), -1);
+        assertEquals(store.getCapacityInBytes(), bytes);
+    }
+
+    @Test
+    public void testGrow() throws Exception {
+        OffHeapCounterStore store = new OffHeapCounterStore(1);
+        long bytes = store.getCapacityInBytes();
+        store.clear(); //the old generation must not survive the growing
+        for (long i=0; i<100000; i++) {
+            store.put("key"+i, i);
+        }
+        assertTrue(store.getCapacityInBytes() > bytes);
+        assertEquals(store.size(), 100000);
+        for (long i=0; i<100000; i++) {
+            assertEquals(store.get("key"+i, -1), i);
+        }
+        assertEquals(store.get("key100000", -1), -1);
+    }
+
+    @Test
+    public void testMultiWithOffHeap() throws Exception {
+        ExtendedLimitPerTime limit = LimitsPerTime.multi()
+                .add(3, 2, TimeUnit.SECONDS)
+                .add(5, 1, TimeUnit.MINUTES)
+                .counterStores(CounterStores.offHeap(100))
+                .build();
+        for (int i=0; i<3; i++) {
+            assertTrue(limit.consume(7L));
+        }
+        assertFalse(limit.consume(7));
+        assertTrue(limit.consume("other"));
+    }
+
+}
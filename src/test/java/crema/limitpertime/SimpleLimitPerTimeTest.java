@@ -8,12 +8,12 @@ import java.util.concurrent.TimeUnit;
 public class SimpleLimitPerTimeTest extends BaseLimitPerTimeTest {
 
     @Override
-    protected LimitPerTime ten2000ms() {
+    protected ExtendedLimitPerTime ten2000ms() {
         return new SimpleLimitPerTime(10, 2000, TimeUnit.MILLISECONDS);
     }
 
     @Override
-    protected LimitPerTime ten500ms() {
+    protected ExtendedLimitPerTime ten500ms() {
         return new SimpleLimitPerTime(10, 500, TimeUnit.MILLISECONDS);
     }
 
@@ -0,0 +1,75 @@
+package crema.limitpertime;
+
+import com.google.common.base.Stopwatch;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class SlidingWindowLimitPerTimeTest extends BaseLimitPerTimeTest {
+
+    @Override
+    protected ExtendedLimitPerTime ten2000ms() {
+        return new SlidingWindowLimitPerTime(10, 2000, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected ExtendedLimitPerTime ten500ms() {
+        return new SlidingWindowLimitPerTime(10, 500, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Overridden because the 11th consumption only works once a tenth of the previous interval has slid out.
+     */
+    @Test
+    @Override
+    public void testTiming() throws Exception {
+        ExtendedLimitPerTime limitPerTime = ten500ms();
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        int counter = 0;
+        while (counter < 11) {
+            if (limitPerTime.consume("foo")) counter++;
+        }
+        limitPerTime.destroy();
+        assertThat(stopwatch.elapsed(TimeUnit.MILLISECONDS))
+                .isGreaterThanOrEqualTo(540)
+                .isLessThanOrEqualTo(700);
+    }
+
+    @Test
+    public void testNoBurstAtIntervalEnd() throws Exception {
+        ExtendedLimitPerTime limitPerTime = new SlidingWindowLimitPerTime(10, 200, TimeUnit.MILLISECONDS);
+        for (int i=0; i<10; i++) {
+            assertTrue(limitPerTime.consume("foo"));
+        }
+        //the fixed window would grant all 10 again now:
+        Thread.sleep(210);
+        assertFalse(limitPerTime.consume("foo"));
+        //half the previous interval has slid out:
+        Thread.sleep(100);
+        int counter = 0;
+        for (int i=0; i<10; i++) {
+            if (limitPerTime.consume("foo")) counter++;
+        }
+        assertThat(counter).isBetween(4, 7);
+    }
+
+    @Test
+    public void testExpungeStaleEntries() throws Exception {
+        SlidingWindowLimitPerTime limitPerTime = new SlidingWindowLimitPerTime(10, 50, TimeUnit.MILLISECONDS);
+        for (int i=0; i<100; i++) {
+            limitPerTime.consume("key-"+i);
+        }
+        assertEquals(limitPerTime.expungeStaleEntries(), 0);
+        Thread.sleep(120);
+        assertEquals(limitPerTime.expungeStaleEntries(), 100);
+        assertTrue(limitPerTime.consume("key-1"));
+    }
+}
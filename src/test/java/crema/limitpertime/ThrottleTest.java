@@ -0,0 +1,269 @@
+package crema.limitpertime;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class ThrottleTest {
+
+    @Test
+    public void testImmediate() throws Exception {
+        Throttle throttle = LimitsPerTime.throttle(LimitsPerTime.single(2, 1, TimeUnit.HOURS));
+        assertTrue(throttle.acquireAsync("foo").isDone());
+        assertTrue(throttle.acquireAsync("foo").isDone());
+        ListenableFuture<Void> third = throttle.acquireAsync("foo");
+        assertFalse(third.isDone());
+        assertEquals(throttle.getWaiting(), 1);
+        assertTrue(throttle.acquireAsync("bar").isDone());
+        throttle.destroy();
+        assertTrue(third.isCancelled());
+    }
+
+    @Test
+    public void testWaitsForRefill() throws Exception {
+        runWaits(LimitsPerTime.single(2, 300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testWaitsForLazy() throws Exception {
+        runWaits(LimitsPerTime.lazy(2, 300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testWaitsForFused() throws Exception {
+        runWaits(LimitsPerTime.multi().add(2, 300, TimeUnit.MILLISECONDS).add(100, 1, TimeUnit.HOURS).build());
+    }
+
+    @Test
+    public void testWaitsForGcra() throws Exception {
+        //one token every 150ms
+        runWaits(LimitsPerTime.single(new LimitPerTimeSpec(2, 300, TimeUnit.MILLISECONDS, LimitPerTimeSpec.Algorithm.GCRA)));
+    }
+
+    @Test
+    public void testWaitsForSliding() throws Exception {
+        runWaits(LimitsPerTime.single(new LimitPerTimeSpec(2, 300, TimeUnit.MILLISECONDS, LimitPerTimeSpec.Algorithm.SLIDING_WINDOW)));
+    }
+
+    /**
+     * 6 requests at once, at most 2 per 300ms: the last ones complete after about 600ms, in order.
+     */
+    private void runWaits(LimitPerTime limit) throws Exception {
+        Throttle throttle = LimitsPerTime.throttle(limit);
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        List<ListenableFuture<Void>> futures = new ArrayList<>();
+        for (int i=0; i<6; i++) {
+            futures.add(throttle.acquireAsync(7L));
+        }
+        for (ListenableFuture<Void> future : futures) {
+            future.get(2, TimeUnit.SECONDS);
+        }
+        long millis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+        assertTrue(millis >= 250 && millis < 1500, "took: "+millis);
+        assertEquals(throttle.getWaiting(), 0);
+        throttle.destroy();
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        Throttle throttle = LimitsPerTime.throttle(LimitsPerTime.single(1, 1, TimeUnit.HOURS));
+        throttle.acquireAsync("foo").get();
+        ListenableFuture<Void> future = throttle.acquireAsync("foo", 1, 50, TimeUnit.MILLISECONDS);
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        throttle.destroy();
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        Throttle throttle = LimitsPerTime.throttle(LimitsPerTime.single(1, 200, TimeUnit.MILLISECONDS));
+        throttle.acquireAsync("foo").get();
+        ListenableFuture<Void> cancelled = throttle.acquireAsync("foo");
+        ListenableFuture<Void> next = throttle.acquireAsync("foo");
+        cancelled.cancel(false);
+        next.get(1, TimeUnit.SECONDS); //gets the permit of the cancelled one.
+        try {
+            cancelled.get();
+            fail();
+        } catch (CancellationException expected) {
+            //ok
+        }
+        throttle.destroy();
+    }
+
+    @Test
+    public void testTooManyPermits() throws Exception {
+        Throttle throttle = LimitsPerTime.throttle(LimitsPerTime.single(3, 1, TimeUnit.HOURS));
+        try {
+            throttle.acquireAsync("foo", 4).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        throttle.destroy();
+    }
+
+    @Test
+    public void testTryAcquire() throws Exception {
+        Throttle throttle = LimitsPerTime.throttle(LimitsPerTime.single(1, 300, TimeUnit.MILLISECONDS));
+        assertTrue(throttle.tryAcquire("foo", 0, TimeUnit.MILLISECONDS));
+        assertFalse(throttle.tryAcquire("foo", 20, TimeUnit.MILLISECONDS));
+        assertEquals(throttle.getWaiting(), 0);
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        assertTrue(throttle.tryAcquire("foo", 1, TimeUnit.SECONDS));
+        assertTrue(stopwatch.elapsed(TimeUnit.MILLISECONDS) < 500);
+        throttle.destroy();
+    }
+
+    @Test
+    public void testTryAcquireThreads() throws Exception {
+        final Throttle throttle = LimitsPerTime.throttle(LimitsPerTime.single(2, 200, TimeUnit.MILLISECONDS));
+        final AtomicInteger acquired = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i=0; i<6; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (throttle.tryAcquire("foo", 2, TimeUnit.SECONDS)) {
+                            acquired.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(acquired.get(), 6);
+        throttle.destroy();
+    }
+
+    @Test
+    public void testTryAcquireInterrupted() throws Exception {
+        Throttle throttle = LimitsPerTime.throttle(LimitsPerTime.single(1, 1, TimeUnit.HOURS));
+        throttle.tryAcquire("foo", 0, TimeUnit.MILLISECONDS);
+        Thread.currentThread().interrupt();
+        try {
+            throttle.tryAcquire("foo", 1, TimeUnit.SECONDS);
+            fail();
+        } catch (InterruptedException expected) {
+            //ok
+        }
+        throttle.destroy();
+    }
+
+    @Test
+    public void testCancelWhileGranting() throws Exception {
+        final GrantOnRelease limit = new GrantOnRelease();
+        Throttle throttle = LimitsPerTime.throttle(limit);
+        final ListenableFuture<Void> future = throttle.acquireAsync("foo");
+        assertFalse(future.isDone());
+        limit.open();
+        final boolean[] cancelled = {true};
+        Thread canceller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cancelled[0] = future.cancel(false);
+            }
+        });
+        try {
+            assertTrue(limit.entered.await(5, TimeUnit.SECONDS)); //the retry is in the consume now
+            canceller.start();
+            canceller.join(100);
+            assertTrue(canceller.isAlive()); //waits for the grant
+        } finally {
+            limit.release.countDown(); //frees the shared timer thread in any case
+        }
+        canceller.join();
+        assertFalse(cancelled[0]);
+        future.get(1, TimeUnit.SECONDS); //has the permits it consumed
+        throttle.destroy();
+    }
+
+    @Test
+    public void testTimeoutWhileGranting() throws Exception {
+        GrantOnRelease limit = new GrantOnRelease();
+        Throttle throttle = LimitsPerTime.throttle(limit);
+        ListenableFuture<Void> future = throttle.acquireAsync("foo", 1, 100, TimeUnit.MILLISECONDS);
+        limit.open();
+        try {
+            assertTrue(limit.entered.await(5, TimeUnit.SECONDS));
+            Thread.sleep(200); //the timeout is due meanwhile
+        } finally {
+            limit.release.countDown();
+        }
+        future.get(1, TimeUnit.SECONDS);
+        throttle.destroy();
+    }
+
+    /**
+     * Rejects until opened, then the next consumption blocks until released, and consumes.
+     */
+    private static class GrantOnRelease implements LimitPerTime {
+        private volatile boolean open = false;
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        void open() {
+            open = true;
+        }
+        @Override
+        public boolean consume(@NotNull Object key) {
+            if (!open) {
+                return false;
+            }
+            entered.countDown();
+            Uninterruptibles.awaitUninterruptibly(release);
+            return true;
+        }
+        @Nullable @Override
+        public LimitPerTimeSpec consumeOrSpec(@NotNull Object key) {
+            return consume(key) ? null : getSpec().get(0);
+        }
+        @Override
+        public boolean canConsume(@NotNull Object key) {
+            return open;
+        }
+        @Nullable @Override
+        public LimitPerTimeSpec canConsumeOrSpec(@NotNull Object key) {
+            return open ? null : getSpec().get(0);
+        }
+        @Override
+        public void destroy() {
+        }
+        @NotNull @Override
+        public List<LimitPerTimeSpec> getSpec() {
+            return Collections.singletonList(new LimitPerTimeSpec(1, 1, TimeUnit.HOURS));
+        }
+    }
+
+}
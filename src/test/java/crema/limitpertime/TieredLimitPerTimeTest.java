@@ -0,0 +1,173 @@
+package crema.limitpertime;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class TieredLimitPerTimeTest extends BaseLimitPerTimeTest {
+
+    private static final RefillScheduler IDLE = new HashedWheelRefillScheduler(1, TimeUnit.HOURS, 8);
+
+    @NotNull @Override
+    protected ExtendedLimitPerTime ten2000ms() {
+        return LimitsPerTime.tiered(Functions.constant("all"))
+                .tier("all", Collections.singletonList(new LimitPerTimeSpec(10, 2000, TimeUnit.MILLISECONDS)))
+                .build();
+    }
+
+    @NotNull @Override
+    protected ExtendedLimitPerTime ten500ms() {
+        return LimitsPerTime.tiered(Functions.constant("all"))
+                .tier("all", Collections.singletonList(new LimitPerTimeSpec(10, 500, TimeUnit.MILLISECONDS)))
+                .build();
+    }
+
+    @Test
+    public void testTiers() throws Exception {
+        final Map<Object,String> plans = new HashMap<>();
+        plans.put("alice", "pro");
+        plans.put("bob", "free");
+        TieredLimitPerTime limitPerTime = LimitsPerTime.tiered(Functions.forMap(plans, null))
+                .tier("free", "2 in 1 HOUR")
+                .tier("pro", "5 in 1 HOUR; 100 in 1 DAY")
+                .defaultTier("free")
+                .scheduler(IDLE)
+                .build();
+        assertEquals(limitPerTime.getTier("alice"), "pro");
+        assertEquals(limitPerTime.getTier("carol"), "free");
+        for (int i=0; i<5; i++) {
+            assertTrue(limitPerTime.consume("alice"));
+        }
+        assertFalse(limitPerTime.consume("alice"));
+        for (String key : new String[]{"bob", "carol"}) {
+            assertTrue(limitPerTime.consume(key, 2));
+            assertEquals(limitPerTime.consumeOrSpec(key), new LimitPerTimeSpec(2, 1, TimeUnit.HOURS));
+        }
+        assertEquals(limitPerTime.getKeyCount(), 3);
+        assertEquals(limitPerTime.getSpec().size(), 3);
+        assertEquals(limitPerTime.getSpec("pro").size(), 2);
+        limitPerTime.destroy();
+    }
+
+    @Test
+    public void testTierChange() throws Exception {
+        final Map<Object,String> plans = new HashMap<>();
+        plans.put("bob", "free");
+        TieredLimitPerTime limitPerTime = LimitsPerTime.tiered(Functions.forMap(plans))
+                .tier("free", "1 in 1 HOUR")
+                .tier("pro", "3 in 1 HOUR")
+                .scheduler(IDLE)
+                .build();
+        assertTrue(limitPerTime.consume("bob"));
+        assertFalse(limitPerTime.consume("bob"));
+        plans.put("bob", "pro");
+        assertFalse(limitPerTime.consume("bob")); //still cached
+        limitPerTime.invalidate("bob");
+        assertEquals(limitPerTime.getTier("bob"), "pro");
+        assertTrue(limitPerTime.canConsume("bob", 3)); //starts over
+        assertTrue(limitPerTime.consume("bob", 3));
+        assertFalse(limitPerTime.consume("bob"));
+        assertEquals(limitPerTime.getKeyCount(), 1);
+        limitPerTime.destroy();
+    }
+
+    @Test
+    public void testUpdateTier() throws Exception {
+        TieredLimitPerTime limitPerTime = LimitsPerTime.tiered(Functions.constant("free"))
+                .tier("free", "2 in 1 HOUR")
+                .tier("pro", "10 in 1 HOUR")
+                .scheduler(IDLE)
+                .build();
+        assertTrue(limitPerTime.consume("bob", 2));
+        assertFalse(limitPerTime.consume("bob"));
+        limitPerTime.updateTier("free", "3 in 1 HOUR");
+        assertEquals(limitPerTime.getSpec("free"), Collections.singletonList(new LimitPerTimeSpec(3, 1, TimeUnit.HOURS)));
+        assertTrue(limitPerTime.consume("bob"));
+        assertFalse(limitPerTime.consume("bob"));
+        limitPerTime.destroy();
+    }
+
+    @Test
+    public void testResolverIsCached() throws Exception {
+        final int[] calls = {0};
+        TieredLimitPerTime limitPerTime = LimitsPerTime.tiered(new Function<Object,String>() {
+                    @Override
+                    public String apply(Object key) {
+                        calls[0]++;
+                        return "free";
+                    }
+                })
+                .tier("free", "100 in 1 HOUR")
+                .scheduler(IDLE)
+                .build();
+        for (int i=0; i<10; i++) {
+            assertTrue(limitPerTime.consume("foo"));
+        }
+        assertEquals(calls[0], 1);
+        limitPerTime.destroy();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownTier() throws Exception {
+        TieredLimitPerTime limitPerTime = LimitsPerTime.tiered(Functions.constant("gold"))
+                .tier("free", "1 in 1 HOUR")
+                .scheduler(IDLE)
+                .build();
+        limitPerTime.consume("foo");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testOnlyFixedWindows() throws Exception {
+        List<LimitPerTimeSpec> specs = Collections.singletonList(new LimitPerTimeSpec(10, 1, TimeUnit.SECONDS, LimitPerTimeSpec.Algorithm.GCRA));
+        LimitsPerTime.tiered(Functions.constant("free")).tier("free", specs);
+    }
+
+    @Test
+    public void testExpunge() throws Exception {
+        TieredLimitPerTime limitPerTime = LimitsPerTime.tiered(Functions.constant("free"))
+                .tier("free", Collections.singletonList(new LimitPerTimeSpec(10, 100, TimeUnit.MILLISECONDS)))
+                .scheduler(IDLE)
+                .build();
+        assertTrue(limitPerTime.consume("foo"));
+        assertNull(limitPerTime.consumeOrSpec("bar"));
+        assertEquals(limitPerTime.expungeStaleEntries(), 0);
+        Thread.sleep(250);
+        assertEquals(limitPerTime.expungeStaleEntries(), 2);
+        assertEquals(limitPerTime.getKeyCount(), 0);
+        limitPerTime.destroy();
+    }
+
+    @Test
+    public void testExpungeInSlices() throws Exception {
+        TieredLimitPerTime limitPerTime = LimitsPerTime.tiered(Functions.constant("free"))
+                .tier("free", Collections.singletonList(new LimitPerTimeSpec(10, 100, TimeUnit.MILLISECONDS)))
+                .scheduler(IDLE)
+                .build();
+        for (int i=0; i<10000; i++) {
+            limitPerTime.consume("key" + i);
+        }
+        Thread.sleep(250);
+        limitPerTime.refill();
+        assertEquals(limitPerTime.getKeyCount(), 10000 - FusedRecords.EXPUNGE_SLICE);
+        while (limitPerTime.getKeyCount() > 0) {
+            limitPerTime.refill();
+        }
+        limitPerTime.destroy();
+    }
+
+}
@@ -0,0 +1,76 @@
+package crema.limitpertime;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Alexei Arshavin, Optimaize
+ */
+public class TopRejectedKeysTest {
+
+    @Test
+    public void testExact() throws Exception {
+        TopRejectedKeys top = new TopRejectedKeys(3);
+        for (int i = 0; i < 5; i++) top.rejected("a");
+        for (int i = 0; i < 3; i++) top.rejected("b");
+        top.rejected(7L);
+        List<TopRejectedKeys.Entry> entries = top.getTop(10);
+        assertEquals(entries.size(), 3);
+        assertEquals(entries.get(0).getKey(), "a");
+        assertEquals(entries.get(0).getCount(), 5);
+        assertEquals(entries.get(0).getError(), 0);
+        assertEquals(entries.get(1).getKey(), "b");
+        assertEquals(entries.get(2).getKey(), 7L);
+        assertEquals(top.getTop(1).size(), 1);
+        assertEquals(top.getTotal(), 9);
+    }
+
+    @Test
+    public void testHeavyHittersSurviveManyOthers() throws Exception {
+        TopRejectedKeys top = new TopRejectedKeys(10);
+        for (int i = 0; i < 100000; i++) {
+            top.rejected("other" + i);
+            if (i % 4 == 0) top.rejected("bot1");
+            if (i % 5 == 0) top.rejected("bot2");
+        }
+        List<TopRejectedKeys.Entry> entries = top.getTop(2);
+        assertEquals(entries.get(0).getKey(), "bot1");
+        assertEquals(entries.get(1).getKey(), "bot2");
+        TopRejectedKeys.Entry bot1 = entries.get(0);
+        assertTrue(bot1.getCount() >= 25000);
+        assertTrue(bot1.getCount() - bot1.getError() <= 25000);
+        assertEquals(top.getTop(100).size(), 10);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testCapacity() throws Exception {
+        new TopRejectedKeys(0);
+    }
+
+    @Test
+    public void testMetered() throws Exception {
+        MeteredLimitPerTime limitPerTime = LimitsPerTime.metered(LimitsPerTime.single(1, 1, TimeUnit.HOURS));
+        LimitPerTimeMetrics metrics = limitPerTime.getMetrics();
+        assertNull(metrics.getTopRejectedKeys());
+        limitPerTime.consume("before");
+        limitPerTime.consume("before");
+        TopRejectedKeys top = metrics.trackRejectedKeys(10);
+        for (int i = 0; i < 4; i++) limitPerTime.consume("foo");
+        limitPerTime.consume(5L);
+        limitPerTime.consume(5L);
+        assertEquals(top.getTop(1).get(0).getKey(), "foo");
+        assertEquals(top.getTop(1).get(0).getCount(), 3);
+        assertEquals((long) metrics.getTopRejectedKeyCounts().get("5"), 1L);
+        assertEquals(metrics.getTopRejectedKeyCounts().size(), 2);
+        metrics.stopTrackingRejectedKeys();
+        assertTrue(metrics.getTopRejectedKeyCounts().isEmpty());
+        limitPerTime.destroy();
+    }
+
+}